@@ -0,0 +1,136 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import javax.net.SocketFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.charset.Charset;
+
+/**
+ * Creates sockets which accept the handshake and discard everything written to them, so benchmarks measure the
+ * client alone.
+ */
+final class DiscardingSocketFactory extends SocketFactory {
+
+	private static final byte[] HANDSHAKE_RESPONSES = "ok\nok\n".getBytes(Charset.forName("ASCII"));
+
+	@Override
+	public Socket createSocket() {
+		return new DiscardingSocket();
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Socket createSocket(String host, int port, InetAddress localHost, int localPort) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Socket createSocket(InetAddress host, int port) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) {
+		throw new UnsupportedOperationException();
+	}
+
+	private static final class DiscardingSocket extends Socket {
+		private final OutputStream out = new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		};
+
+		private boolean closed = false;
+		private boolean outputShutdown = false;
+
+		// Options only matter to a real connection.
+
+		@Override
+		public void setTcpNoDelay(boolean on) {
+		}
+
+		@Override
+		public void setKeepAlive(boolean on) {
+		}
+
+		@Override
+		public void setTrafficClass(int tc) {
+		}
+
+		@Override
+		public void setPerformancePreferences(int connectionTime, int latency, int bandwidth) {
+		}
+
+		@Override
+		public void setSoTimeout(int timeout) {
+		}
+
+		@Override
+		public void connect(SocketAddress endpoint, int timeout) {
+		}
+
+		@Override
+		public InetAddress getLocalAddress() {
+			return InetAddress.getLoopbackAddress();
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return new ByteArrayInputStream(HANDSHAKE_RESPONSES);
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return out;
+		}
+
+		@Override
+		public boolean isClosed() {
+			return closed;
+		}
+
+		@Override
+		public boolean isOutputShutdown() {
+			return outputShutdown;
+		}
+
+		@Override
+		public void shutdownOutput() {
+			outputShutdown = true;
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			closed = true;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding of names, values and whole lines, which every report does for every attribute of every metric.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EncodingBenchmark {
+
+	private final LineEncoder lines = new LineEncoder();
+	private String name = "com.example.UserResource.get(id, name) requests";
+	private double value = 1234.56789;
+	private long timestamp = 1420070400;
+
+	@Benchmark
+	public String sanitizeName() {
+		return LineEncoder.sanitizeName(name);
+	}
+
+	@Benchmark
+	public int encodeName() {
+		return lines.reset().appendName(name).size();
+	}
+
+	@Benchmark
+	public int encodeValue() {
+		return lines.reset().append(value, 2).size();
+	}
+
+	@Benchmark
+	public int encodeLine() {
+		return lines.reset()
+		            .appendAscii("gauge ")
+		            .appendName(name)
+		            .space()
+		            .append(value, 2)
+		            .space()
+		            .append(timestamp)
+		            .newLine()
+		            .size();
+	}
+}
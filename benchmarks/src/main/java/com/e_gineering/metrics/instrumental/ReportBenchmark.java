@@ -0,0 +1,113 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A full report of a synthetic registry holding equal numbers of gauges, counters, histograms, meters and timers, to
+ * a connection which discards everything.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ReportBenchmark {
+
+	@Param({"1000", "10000", "100000"})
+	private int metrics;
+
+	@Param({"1", "4"})
+	private int parallelism;
+
+	private Instrumental instrumental;
+	private InstrumentalReporter reporter;
+
+	@Setup
+	public void setUp() throws IOException {
+		final MetricRegistry registry = new MetricRegistry();
+		final Random random = new Random(42);
+		for (int i = 0; i < metrics; i++) {
+			final String name = MetricRegistry.name("com.example", "Service" + i / 100, "metric" + i);
+			switch (i % 5) {
+				case 0:
+					final double value = random.nextDouble() * 1000;
+					registry.register(name, new Gauge<Double>() {
+						@Override
+						public Double getValue() {
+							return value;
+						}
+					});
+					break;
+				case 1:
+					registry.counter(name).inc(random.nextInt(10000));
+					break;
+				case 2:
+					final Histogram histogram = registry.histogram(name);
+					for (int j = 0; j < 100; j++) {
+						histogram.update(random.nextInt(1000));
+					}
+					break;
+				case 3:
+					registry.meter(name).mark(random.nextInt(10000));
+					break;
+				default:
+					final Timer timer = registry.timer(name);
+					for (int j = 0; j < 100; j++) {
+						timer.update(random.nextInt(1000), TimeUnit.MILLISECONDS);
+					}
+					break;
+			}
+		}
+
+		instrumental = new Instrumental("benchmark", new InetSocketAddress(InetAddress.getLoopbackAddress(), 8000), new DiscardingSocketFactory());
+		instrumental.setLocalHostname("benchmark");
+		reporter = InstrumentalReporter.forRegistry(registry)
+		                               .convertRatesTo(TimeUnit.SECONDS)
+		                               .convertDurationsTo(TimeUnit.MILLISECONDS)
+		                               .withParallelism(parallelism)
+		                               .build(instrumental);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		reporter.stop();
+		instrumental.close();
+	}
+
+	@Benchmark
+	public void report() {
+		reporter.report();
+	}
+}
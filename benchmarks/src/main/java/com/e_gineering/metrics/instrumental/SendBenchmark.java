@@ -0,0 +1,77 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * Sending single lines and aggregated events through a shared {@link Instrumental} whose socket discards everything,
+ * from one thread and from several at once.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SendBenchmark {
+
+	private Instrumental instrumental;
+
+	@Setup
+	public void connect() throws IOException {
+		instrumental = new Instrumental("benchmark", new InetSocketAddress(InetAddress.getLoopbackAddress(), 8000), new DiscardingSocketFactory());
+		instrumental.setLocalHostname("benchmark");
+		instrumental.connect();
+	}
+
+	@TearDown
+	public void close() throws IOException {
+		instrumental.close();
+	}
+
+	@Benchmark
+	public void send() throws IOException {
+		instrumental.send(MetricType.GAUGE, "com.example.requests", "1234.56", 1420070400);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void sendFromFourThreads() throws IOException {
+		instrumental.send(MetricType.GAUGE, "com.example.requests", "1234.56", 1420070400);
+	}
+
+	@Benchmark
+	public void increment() {
+		instrumental.increment("com.example.events");
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void incrementFromFourThreads() {
+		instrumental.increment("com.example.events");
+	}
+}
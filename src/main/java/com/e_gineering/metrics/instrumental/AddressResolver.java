@@ -0,0 +1,188 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caches the addresses a collector hostname resolves to, so reconnecting doesn't wait on DNS.
+ *
+ * Only the first lookup happens on the caller's thread. Once the addresses are older than the TTL they are still
+ * used, while they are looked up again in the background; if that lookup fails the old addresses are kept. When a
+ * hostname resolves to several addresses, each connection attempt takes the next one, so a failed address is not
+ * retried until the others have been.
+ *
+ * Times are {@link System#nanoTime()} values, passed in by the caller. Instances are thread-safe.
+ */
+class AddressResolver {
+
+	static final long DEFAULT_TTL = TimeUnit.MINUTES.toNanos(1);
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AddressResolver.class);
+
+	/**
+	 * How long the background lookup thread waits for more lookups before stopping, in seconds.
+	 */
+	private static final long IDLE_SECONDS = 60;
+
+	private final String hostname;
+	private final int port;
+	private final Executor executor;
+	private final AtomicInteger next = new AtomicInteger();
+	private final AtomicBoolean refreshing = new AtomicBoolean();
+
+	private volatile long ttl = DEFAULT_TTL;
+	private volatile Resolution resolution = null;
+
+	AddressResolver(String hostname, int port) {
+		this(hostname, port, Background.EXECUTOR);
+	}
+
+	AddressResolver(String hostname, int port, Executor executor) {
+		this.hostname = hostname;
+		this.port = port;
+		this.executor = executor;
+	}
+
+	void setTtl(long ttl, TimeUnit unit) {
+		if (ttl <= 0) {
+			throw new IllegalArgumentException("ttl must be positive");
+		}
+		this.ttl = unit.toNanos(ttl);
+	}
+
+	/**
+	 * @return The address to try connecting to next.
+	 * @throws UnknownHostException If the hostname has never been resolved, and cannot be now.
+	 */
+	InetSocketAddress next(long now) throws UnknownHostException {
+		Resolution current = resolution;
+		if (current == null) {
+			current = resolve(now);
+		} else {
+			refreshIfStale(current, now);
+		}
+		final InetSocketAddress[] addresses = current.addresses;
+		return addresses[(next.getAndIncrement() & Integer.MAX_VALUE) % addresses.length];
+	}
+
+	/**
+	 * @return Whether the hostname still resolves to the given address, as far as is known. Stale addresses are
+	 * looked up again in the background, so a later call may give a different answer.
+	 */
+	boolean isCurrent(InetAddress address, long now) {
+		final Resolution current = resolution;
+		if (current == null || address == null) {
+			return true;
+		}
+		refreshIfStale(current, now);
+		for (InetSocketAddress candidate : current.addresses) {
+			if (address.equals(candidate.getAddress())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Looks up the addresses of the hostname; overridden in tests.
+	 */
+	InetAddress[] lookup(String hostname) throws UnknownHostException {
+		return InetAddress.getAllByName(hostname);
+	}
+
+	private Resolution resolve(long now) throws UnknownHostException {
+		final InetAddress[] found = lookup(hostname);
+		if (found.length == 0) {
+			throw new UnknownHostException(hostname);
+		}
+		final InetSocketAddress[] addresses = new InetSocketAddress[found.length];
+		for (int i = 0; i < found.length; i++) {
+			addresses[i] = new InetSocketAddress(found[i], port);
+		}
+		final Resolution resolved = new Resolution(addresses, now);
+		resolution = resolved;
+		return resolved;
+	}
+
+	private void refreshIfStale(final Resolution current, final long now) {
+		if (now - current.resolvedAt < ttl || !refreshing.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						resolve(now);
+					} catch (UnknownHostException e) {
+						LOGGER.debug("Unable to resolve {}, still using the addresses it last resolved to", hostname, e);
+						// Don't try again until another TTL has passed.
+						resolution = new Resolution(current.addresses, now);
+					} finally {
+						refreshing.set(false);
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			refreshing.set(false);
+			throw e;
+		}
+	}
+
+	/**
+	 * Runs every resolver's background lookups, one at a time, on a single daemon thread which is only started once
+	 * needed and stops while there are none to do.
+	 */
+	private static final class Background {
+		private static final Executor EXECUTOR = executor();
+
+		private static Executor executor() {
+			final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, IDLE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					final Thread thread = new Thread(runnable, "instrumental-resolver");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.allowCoreThreadTimeOut(true);
+			return executor;
+		}
+	}
+
+	private static final class Resolution {
+		private final InetSocketAddress[] addresses;
+		private final long resolvedAt;
+
+		private Resolution(InetSocketAddress[] addresses, long resolvedAt) {
+			this.addresses = addresses;
+			this.resolvedAt = resolvedAt;
+		}
+	}
+}
@@ -0,0 +1,221 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sums increments and averages gauges per name between sends, so application threads can record events at any rate
+ * while only one line per name is sent each interval.
+ *
+ * Each name's accumulator is striped: a thread updates the cell picked by its id, so threads rarely contend for the
+ * same cell, and cells are spaced a cache line apart. The cells are only added up when the interval is sent.
+ *
+ * A name updated in no interval is forgotten when that interval is drained, so names used once don't pile up. Its
+ * accumulator is retired by marking every cell, which an update finding it marked takes as its cue to start a new
+ * one; an update landing first keeps it alive. Only one thread at a time may drain.
+ */
+final class Aggregator {
+
+	/**
+	 * Decimal places of averaged gauge values.
+	 */
+	static final int PRECISION = 6;
+
+	/**
+	 * Longs per cache line, so neighbouring stripes never share one.
+	 */
+	private static final int PADDING = 8;
+	private static final int MAX_STRIPES = 64;
+	private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+	private static final long RETIRED = Long.MIN_VALUE;
+
+	private final ConcurrentMap<String, Accumulator> increments = new ConcurrentHashMap<String, Accumulator>();
+	private final ConcurrentMap<String, Accumulator> gauges = new ConcurrentHashMap<String, Accumulator>();
+
+	void increment(String name, long delta) {
+		while (!accumulator(increments, name).add(delta)) {
+			// Being retired; it's gone from the map once that's done.
+			Thread.yield();
+		}
+	}
+
+	void gauge(String name, double value) {
+		while (!accumulator(gauges, name).record(value)) {
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * @return The number of names being aggregated.
+	 */
+	int size() {
+		return increments.size() + gauges.size();
+	}
+
+	/**
+	 * Encodes a line for each name updated since the last call, and starts their next interval.
+	 */
+	void drainTo(LineEncoder lines, long timestamp) {
+		for (Accumulator increment : increments.values()) {
+			final long sum = increment.drainSum();
+			if (sum != 0) {
+				increment.encode(lines, MetricType.INCREMENT).append(sum).space().append(timestamp).newLine();
+			} else if (increment.retire(Accumulator.SUM)) {
+				increments.remove(increment.name, increment);
+			}
+		}
+		for (Accumulator gauge : gauges.values()) {
+			// An update racing with this may land its value in one interval and its count in the next, skewing both
+			// means slightly; that's the price of never blocking the updating threads.
+			final long count = gauge.drainCount();
+			final double sum = gauge.drainDoubleSum();
+			if (count > 0) {
+				gauge.encode(lines, MetricType.GAUGE).append(sum / count, PRECISION).space().append(timestamp).newLine();
+			} else if (gauge.retire(Accumulator.COUNT)) {
+				gauges.remove(gauge.name, gauge);
+			}
+		}
+	}
+
+	private static Accumulator accumulator(ConcurrentMap<String, Accumulator> accumulators, String name) {
+		Accumulator accumulator = accumulators.get(name);
+		if (accumulator == null) {
+			accumulator = new Accumulator(name);
+			final Accumulator existing = accumulators.putIfAbsent(name, accumulator);
+			if (existing != null) {
+				accumulator = existing;
+			}
+		}
+		return accumulator;
+	}
+
+	private static int stripes(int processors) {
+		int stripes = 1;
+		while (stripes < processors && stripes < MAX_STRIPES) {
+			stripes <<= 1;
+		}
+		return stripes;
+	}
+
+	/**
+	 * A sum, and a count of the values added to it, per stripe.
+	 */
+	private static final class Accumulator {
+		private static final int SUM = 0;
+		private static final int COUNT = 1;
+
+		private final String name;
+		private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+		private volatile boolean retiring = false; // Set before any cell is marked
+
+		private Accumulator(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @return false, adding nothing, if this is being retired.
+		 */
+		private boolean add(long delta) {
+			final int cell = stripe() + SUM;
+			long sum;
+			do {
+				sum = cells.get(cell);
+				// A sum that happens to equal the mark only holds the update up until retiring it fails.
+				if (sum == RETIRED && retiring) {
+					return false;
+				}
+			} while (!cells.compareAndSet(cell, sum, sum + delta));
+			return true;
+		}
+
+		/**
+		 * @return false, recording nothing, if this is being retired.
+		 */
+		private boolean record(double value) {
+			final int stripe = stripe();
+			long count;
+			do {
+				count = cells.get(stripe + COUNT);
+				if (count == RETIRED && retiring) {
+					return false;
+				}
+			} while (!cells.compareAndSet(stripe + COUNT, count, count + 1));
+			long bits;
+			do {
+				bits = cells.get(stripe + SUM);
+			} while (!cells.compareAndSet(stripe + SUM, bits, Double.doubleToRawLongBits(Double.longBitsToDouble(bits) + value)));
+			return true;
+		}
+
+		/**
+		 * Marks every cell at the given offset, which all must still be zero, so no later update lands here.
+		 *
+		 * @return false, leaving this as it was, if an update got to a cell first.
+		 */
+		private boolean retire(int offset) {
+			retiring = true;
+			int stripe = 0;
+			while (stripe < cells.length() && cells.compareAndSet(stripe + offset, 0, RETIRED)) {
+				stripe += PADDING;
+			}
+			if (stripe == cells.length()) {
+				return true;
+			}
+			// Updates don't touch marked cells, so they're still zero underneath.
+			for (stripe -= PADDING; stripe >= 0; stripe -= PADDING) {
+				cells.set(stripe + offset, 0);
+			}
+			retiring = false;
+			return false;
+		}
+
+		private long drainSum() {
+			long sum = 0;
+			for (int stripe = 0; stripe < cells.length(); stripe += PADDING) {
+				sum += cells.getAndSet(stripe + SUM, 0);
+			}
+			return sum;
+		}
+
+		private double drainDoubleSum() {
+			double sum = 0;
+			for (int stripe = 0; stripe < cells.length(); stripe += PADDING) {
+				// Zero bits are 0.0
+				sum += Double.longBitsToDouble(cells.getAndSet(stripe + SUM, 0));
+			}
+			return sum;
+		}
+
+		private long drainCount() {
+			long count = 0;
+			for (int stripe = 0; stripe < cells.length(); stripe += PADDING) {
+				count += cells.getAndSet(stripe + COUNT, 0);
+			}
+			return count;
+		}
+
+		private LineEncoder encode(LineEncoder lines, MetricType type) {
+			return lines.appendAscii(type.getProtocolKey()).space().appendName(name).space();
+		}
+
+		private static int stripe() {
+			return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+		}
+	}
+}
@@ -0,0 +1,731 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A non-blocking connection to Instrumental.
+ *
+ * Lines are copied into a bounded in-memory queue and written to the collector by a dedicated I/O thread using a
+ * non-blocking {@link SocketChannel}, so callers never wait on the network. The I/O thread connects, reconnects after
+ * failures, and abandons a connection when a write makes no progress within the write timeout. When the queue is full,
+ * new lines are dropped and counted rather than blocking the caller.
+ *
+ * {@link #isConnected()} reports whether lines are being accepted, which is the case from {@link #connect()} until
+ * {@link #close()}, regardless of the state of the underlying connection. Lines sent before the first
+ * {@link #connect()} start the I/O thread as it would; lines sent after {@link #close()} are dropped until the next
+ * {@link #connect()}.
+ *
+ * Notices are coalesced and rate limited as {@link Instrumental} does, and written by the I/O thread.
+ */
+public class AsyncInstrumental implements BulkInstrumentalSender, SenderStats {
+
+	/**
+	 * Default size of the queue of lines waiting to be written, in bytes.
+	 */
+	public static final int DEFAULT_QUEUE_SIZE = 4 * 1024 * 1024;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AsyncInstrumental.class);
+
+	private static final Charset ASCII = Charset.forName("ASCII");
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	/**
+	 * How often the I/O thread checks for notices held back by the rate limit, in milliseconds.
+	 */
+	private static final long NOTICE_POLL_INTERVAL = 100;
+
+	private final String apiKey;
+	private final String hostname;
+	private final int port;
+	private final InetSocketAddress address;
+
+	private int queueSize = DEFAULT_QUEUE_SIZE;
+	private long connectTimeoutMillis = 5000;
+	private long writeTimeoutMillis = 5000;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition stopped = lock.newCondition();
+	private final LineEncoder encoder = new LineEncoder();
+	private final CircuitBreaker breaker = new CircuitBreaker();
+	private final Handshake.Commands handshake;
+	private final AddressResolver resolver;
+	private final NoticeQueue notices = new NoticeQueue();
+
+	// Guarded by lock
+	private byte[] queue = null;
+	private int head = 0;
+	private int count = 0;
+	private Thread ioThread = null;
+	private boolean closed = false;
+
+	private volatile boolean running = false;
+	private final AtomicLong droppedLines = new AtomicLong();
+	private final AtomicLong connectAttempts = new AtomicLong();
+	private final AtomicLong connectFailures = new AtomicLong();
+	private volatile long bytesWritten = 0; // Only written by the I/O thread
+
+	/**
+	 * Creates a connection to Instrumentalapp.com, using the default collector URI and Port.
+	 *
+	 * @param apiKey Your project API key.
+	 */
+	public AsyncInstrumental(String apiKey) {
+		this(apiKey, "collector.instrumentalapp.com", 8000);
+	}
+
+	public AsyncInstrumental(String apiKey, String hostname, int port) {
+		this.apiKey = apiKey;
+		this.hostname = hostname;
+		this.port = port;
+		this.address = null;
+		this.handshake = new Handshake.Commands(apiKey);
+		this.resolver = new AddressResolver(hostname, port);
+	}
+
+	public AsyncInstrumental(String apiKey, InetSocketAddress address) {
+		this.apiKey = apiKey;
+		this.hostname = null;
+		this.port = -1;
+		this.address = address;
+		this.handshake = new Handshake.Commands(apiKey);
+		this.resolver = null;
+	}
+
+	/**
+	 * Sets the number of bytes of lines which may be waiting to be written before new lines are dropped. Takes effect
+	 * on the next {@link #connect()}.
+	 *
+	 * @param queueSize The queue size, in bytes.
+	 */
+	public void setQueueSize(int queueSize) {
+		if (queueSize <= 0) {
+			throw new IllegalArgumentException("queueSize must be positive");
+		}
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * Sets the hostname this client is reported under. By default it is the name of the local address of the first
+	 * connection, which takes a reverse DNS lookup.
+	 */
+	public void setLocalHostname(String localHostname) {
+		handshake.setLocalHostname(localHostname);
+	}
+
+	/**
+	 * Sets how long the addresses the collector hostname resolved to are used before being looked up again, in the
+	 * background. Defaults to 1 minute. Has no effect when constructed with an address.
+	 */
+	public void setAddressTtl(long ttl, TimeUnit unit) {
+		if (resolver != null) {
+			resolver.setTtl(ttl, unit);
+		}
+	}
+
+	/**
+	 * Sets how long the I/O thread waits for a connection to be established.
+	 */
+	public void setConnectTimeout(long timeout, TimeUnit unit) {
+		this.connectTimeoutMillis = checkTimeout(unit.toMillis(timeout));
+	}
+
+	/**
+	 * Sets how long a write to the collector, or a handshake, may take before the connection is abandoned as stalled.
+	 */
+	public void setWriteTimeout(long timeout, TimeUnit unit) {
+		this.writeTimeoutMillis = checkTimeout(unit.toMillis(timeout));
+	}
+
+	/**
+	 * Sets how long the I/O thread waits before reconnecting after a failure. The wait doubles with each consecutive
+	 * failure, up to the maximum, and is randomized between half and all of that. Defaults to 1 second, up to 2
+	 * minutes.
+	 */
+	public void setReconnectBackoff(long initialDelay, long maxDelay, TimeUnit unit) {
+		breaker.setDelays(initialDelay, maxDelay, unit);
+	}
+
+	/**
+	 * Sets how many notices may be sent per second, in bursts of up to a second's worth. Notices beyond the limit wait
+	 * their turn. Defaults to 10.
+	 */
+	public void setNoticeRateLimit(int perSecond) {
+		notices.setRateLimit(perSecond);
+	}
+
+	/**
+	 * Sets how long after a notice others with the same text are dropped as repeats of it. Defaults to 10 seconds;
+	 * 0 sends every notice.
+	 */
+	public void setNoticeCoalescingWindow(long window, TimeUnit unit) {
+		notices.setCoalescingWindow(unit.toNanos(window));
+	}
+
+	/**
+	 * Starts accepting lines and the I/O thread which writes them. Returns without waiting for the connection to be
+	 * established.
+	 */
+	@Override
+	public void connect() throws IllegalStateException, IOException {
+		lock.lock();
+		try {
+			if (running) {
+				throw new IllegalStateException("Already connected");
+			}
+			closed = false;
+			start();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean isConnected() {
+		return running;
+	}
+
+	@Override
+	public void send(MetricType type, String name, String value, long timestamp) throws IOException {
+		lock.lock();
+		try {
+			encoder.reset().encode(type, name, value, timestamp);
+			enqueue(encoder.array(), 0, encoder.size());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void write(byte[] lines, int offset, int length) throws IOException {
+		lock.lock();
+		try {
+			enqueue(lines, offset, length);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sends a named Notice at the current system time, with no duration to Instrumental
+	 *
+	 * @param name The text of the notice.
+	 */
+	public void notice(String name) {
+		notice(name, 0, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Sends a named Notice at the current system time, with the given duration.
+	 *
+	 * @param name The text of the notice
+	 * @param duration Period duration.
+	 * @param durationUnit Period TimeUnit.
+	 */
+	public void notice(String name, long duration, TimeUnit durationUnit) {
+		notice(name, System.currentTimeMillis(), TimeUnit.MILLISECONDS, duration, durationUnit);
+	}
+
+	/**
+	 * Sends a named Notice at the given start time for the given duration.
+	 *
+	 * Notices with the same text as one given within the coalescing window are dropped, and they are sent no faster
+	 * than the rate limit. Notices still queued are sent when the sender is closed.
+	 *
+	 * @param name The text of the notice
+	 * @param start When the notice started (Measure in wall-clock time like unix timestamp since 1970)
+	 * @param startUnit start TimeUnit (ie, MILLISECONDS, or SECONDS, etc.)
+	 * @param duration Period duration.
+	 * @param durationUnit Period TimeUnit.
+	 */
+	public void notice(String name, long start, TimeUnit startUnit, long duration, TimeUnit durationUnit) {
+		lock.lock();
+		try {
+			if (accepting(1)) {
+				notices.offer(name, TimeUnit.SECONDS.convert(start, startUnit), TimeUnit.SECONDS.convert(duration, durationUnit), System.nanoTime());
+				notEmpty.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Lines are written as soon as the I/O thread can, so there is nothing to wait for here.
+	 */
+	@Override
+	public void flush() throws IOException {
+		lock.lock();
+		try {
+			if (count > 0) {
+				notEmpty.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int getFailures() {
+		return breaker.getFailures();
+	}
+
+	/**
+	 * @return The number of lines dropped because the queue was full, because they could not be written before the
+	 * sender was closed, or because they were sent after it was closed.
+	 */
+	@Override
+	public long getDroppedLines() {
+		return droppedLines.get() + notices.getDropped();
+	}
+
+	/**
+	 * @return The number of notices dropped as repeats of one with the same text.
+	 */
+	public long getCoalescedNotices() {
+		return notices.getCoalesced();
+	}
+
+	@Override
+	public long getConnectAttempts() {
+		return connectAttempts.get();
+	}
+
+	@Override
+	public long getConnectFailures() {
+		return connectFailures.get();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	@Override
+	public long getQueuedBytes() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops accepting lines, giving the I/O thread up to the write timeout to write those already queued.
+	 */
+	@Override
+	public void close() throws IOException {
+		final Thread thread;
+		lock.lock();
+		try {
+			closed = true;
+			if (!running) {
+				return;
+			}
+			running = false;
+			thread = ioThread;
+			ioThread = null;
+			notEmpty.signalAll();
+			stopped.signalAll();
+		} finally {
+			lock.unlock();
+		}
+
+		try {
+			thread.join(connectTimeoutMillis + writeTimeoutMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (thread.isAlive()) {
+			thread.interrupt();
+		}
+	}
+
+	// Must hold lock
+	private void start() {
+		if (queue == null || (count == 0 && queue.length != queueSize)) {
+			queue = new byte[queueSize];
+			head = 0;
+		}
+		running = true;
+		// Lines a previous I/O thread had not taken yet are picked up by the new one.
+		ioThread = new Thread(new IoLoop(), "instrumental-io");
+		ioThread.setDaemon(true);
+		ioThread.start();
+		notEmpty.signalAll();
+	}
+
+	/**
+	 * Starts the I/O thread if nothing has been sent yet; once closed, drops the given number of lines instead.
+	 *
+	 * @return whether lines are being accepted
+	 */
+	// Must hold lock
+	private boolean accepting(long lines) {
+		if (running) {
+			return true;
+		}
+		if (closed) {
+			if (droppedLines.getAndAdd(lines) == 0) {
+				LOGGER.warn("Dropping lines sent to Instrumental after the sender was closed");
+			} else {
+				LOGGER.debug("Dropping lines sent to Instrumental after the sender was closed");
+			}
+			return false;
+		}
+		start();
+		return true;
+	}
+
+	// Must hold lock
+	private void enqueue(byte[] lines, int offset, int length) {
+		if (accepting(countLines(lines, offset, length))) {
+			append(lines, offset, length);
+		}
+	}
+
+	// Must hold lock
+	private void append(byte[] lines, int offset, int length) {
+		final int available = queue.length - count;
+		int accepted = length;
+		if (accepted > available) {
+			// Only queue whole lines; the rest are dropped.
+			accepted = lineEnd(lines, offset, available);
+			droppedLines.addAndGet(countLines(lines, offset + accepted, length - accepted));
+		}
+
+		final int tail = (head + count) % queue.length;
+		final int first = Math.min(accepted, queue.length - tail);
+		System.arraycopy(lines, offset, queue, tail, first);
+		System.arraycopy(lines, offset + first, queue, 0, accepted - first);
+		count += accepted;
+
+		if (accepted > 0) {
+			notEmpty.signal();
+		}
+	}
+
+	/**
+	 * @return The length of the longest run of whole lines at the start of the given range of at most {@code max}
+	 * bytes.
+	 */
+	private static int lineEnd(byte[] bytes, int offset, int max) {
+		for (int i = offset + max - 1; i >= offset; i--) {
+			if (bytes[i] == '\n') {
+				return i - offset + 1;
+			}
+		}
+		return 0;
+	}
+
+	private static long countLines(byte[] bytes, int offset, int length) {
+		long lines = 0;
+		for (int i = offset; i < offset + length; i++) {
+			if (bytes[i] == '\n') {
+				lines++;
+			}
+		}
+		return lines;
+	}
+
+	private static long checkTimeout(long millis) {
+		if (millis <= 0) {
+			throw new IllegalArgumentException("Timeouts must be positive");
+		}
+		return millis;
+	}
+
+	/**
+	 * Owns the channel; runs on the I/O thread.
+	 */
+	private final class IoLoop implements Runnable {
+		private final ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+		private final ByteBuffer response = ByteBuffer.allocate(256);
+		private SocketChannel channel = null;
+		private Selector selector = null;
+
+		@Override
+		public void run() {
+			try {
+				while (take()) {
+					while (chunk.hasRemaining()) {
+						if (channel == null && !open()) {
+							if (!running) {
+								droppedLines.addAndGet(countLines(chunk));
+								chunk.position(chunk.limit());
+							} else {
+								pause(TimeUnit.NANOSECONDS.toMillis(breaker.remaining(System.nanoTime())) + 1);
+							}
+							continue;
+						}
+
+						final int start = chunk.position();
+						try {
+							writeFully(chunk, deadline(writeTimeoutMillis));
+							bytesWritten += chunk.position() - start;
+							breaker.onSuccess();
+						} catch (IOException e) {
+							bytesWritten += chunk.position() - start;
+							breaker.onFailure(System.nanoTime());
+							LOGGER.warn("Unable to write to Instrumental", e);
+							closeChannel();
+							// Start again from the first line the collector may not have received in full.
+							chunk.position(lineStart(chunk));
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				LOGGER.debug("Instrumental I/O thread interrupted", e);
+			} finally {
+				closeChannel();
+			}
+		}
+
+		/**
+		 * Waits for queued lines and moves as many whole lines as fit into the chunk buffer.
+		 *
+		 * @return false once the sender has been closed and the queue is empty, or once this thread has been replaced
+		 * by a newer one.
+		 */
+		private boolean take() throws InterruptedException {
+			lock.lock();
+			try {
+				while (true) {
+					if (ioThread != Thread.currentThread() && (running || count == 0 && notices.size() == 0)) {
+						return false;
+					}
+					queueNotices();
+					if (count > 0) {
+						break;
+					}
+					if (notices.size() > 0) {
+						notEmpty.await(NOTICE_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+					} else {
+						notEmpty.await();
+					}
+				}
+
+				int length = Math.min(count, chunk.capacity());
+				if (length < count) {
+					length = queuedLineEnd(length);
+				}
+
+				chunk.clear();
+				final int first = Math.min(length, queue.length - head);
+				chunk.put(queue, head, first);
+				chunk.put(queue, 0, length - first);
+				chunk.flip();
+
+				head = (head + length) % queue.length;
+				count -= length;
+				return true;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Moves as many notices as the rate limit allows, or all of them once closed, into the queue.
+		 */
+		// Must hold lock
+		private void queueNotices() {
+			final LineEncoder lines = encoder.reset();
+			if (running) {
+				notices.drainTo(lines, System.nanoTime());
+			} else {
+				notices.drainAllTo(lines);
+			}
+			if (lines.size() > 0) {
+				append(lines.array(), 0, lines.size());
+			}
+		}
+
+		// Must hold lock
+		private int queuedLineEnd(int max) {
+			for (int i = max; i > 0; i--) {
+				if (queue[(head + i - 1) % queue.length] == '\n') {
+					return i;
+				}
+			}
+			// A single line larger than the chunk; it will be written across several chunks.
+			return max;
+		}
+
+		private void pause(long millis) throws InterruptedException {
+			lock.lock();
+			try {
+				if (running) {
+					stopped.await(millis, TimeUnit.MILLISECONDS);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private boolean open() {
+			if (!breaker.tryAcquire(System.nanoTime())) {
+				return false;
+			}
+
+			connectAttempts.incrementAndGet();
+			try {
+				final InetSocketAddress target = resolver != null ? resolver.next(System.nanoTime()) : address;
+				if (target.isUnresolved()) {
+					throw new UnknownHostException(target.getHostName());
+				}
+
+				selector = Selector.open();
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				channel.socket().setKeepAlive(true);
+				channel.socket().setTrafficClass(0x04 | 0x10); // Reliability, low-delay
+				channel.register(selector, 0);
+
+				final long connectDeadline = deadline(connectTimeoutMillis);
+				if (!channel.connect(target)) {
+					while (!channel.finishConnect()) {
+						await(SelectionKey.OP_CONNECT, connectDeadline, "connect");
+					}
+				}
+
+				final long handshakeDeadline = deadline(writeTimeoutMillis);
+				response.clear();
+				writeFully(ByteBuffer.wrap(handshake.get(channel.socket().getLocalAddress())), handshakeDeadline);
+				if (!Handshake.isOk(readLine(handshakeDeadline))) {
+					throw new ProtocolException("hello failed");
+				}
+				if (!Handshake.isOk(readLine(handshakeDeadline))) {
+					throw new ProtocolException("authenticate failed");
+				}
+				breaker.onConnected();
+				return true;
+			} catch (IOException e) {
+				connectFailures.incrementAndGet();
+				breaker.onFailure(System.nanoTime());
+				if (breaker.getFailures() == 1) {
+					LOGGER.warn("Unable to connect to Instrumental", e);
+				} else {
+					LOGGER.debug("Unable to connect to Instrumental", e);
+				}
+				closeChannel();
+				return false;
+			}
+		}
+
+		private void writeFully(ByteBuffer buffer, long deadline) throws IOException {
+			while (buffer.hasRemaining()) {
+				if (channel.write(buffer) == 0) {
+					await(SelectionKey.OP_WRITE, deadline, "write");
+				}
+			}
+		}
+
+		private String readLine(long deadline) throws IOException {
+			while (true) {
+				for (int i = 0; i < response.position(); i++) {
+					if (response.get(i) == '\n') {
+						final int end = i > 0 && response.get(i - 1) == '\r' ? i - 1 : i;
+						final byte[] line = new byte[end];
+						response.flip();
+						response.get(line);
+						response.position(i + 1);
+						response.compact();
+						return new String(line, ASCII);
+					}
+				}
+				if (!response.hasRemaining()) {
+					throw new ProtocolException("Response too long");
+				}
+				final int read = channel.read(response);
+				if (read < 0) {
+					throw new EOFException("Connection closed by collector");
+				} else if (read == 0) {
+					await(SelectionKey.OP_READ, deadline, "read");
+				}
+			}
+		}
+
+		private void await(int ops, long deadline, String operation) throws IOException {
+			final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (remaining <= 0) {
+				throw new SocketTimeoutException(operation + " timed out");
+			}
+			channel.keyFor(selector).interestOps(ops);
+			selector.select(remaining);
+			selector.selectedKeys().clear();
+		}
+
+		private long deadline(long timeoutMillis) {
+			return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		}
+
+		private int lineStart(ByteBuffer buffer) {
+			for (int i = buffer.position() - 1; i >= 0; i--) {
+				if (buffer.get(i) == '\n') {
+					return i + 1;
+				}
+			}
+			return 0;
+		}
+
+		private long countLines(ByteBuffer buffer) {
+			long lines = 0;
+			for (int i = buffer.position(); i < buffer.limit(); i++) {
+				if (buffer.get(i) == '\n') {
+					lines++;
+				}
+			}
+			return lines;
+		}
+
+		private void closeChannel() {
+			try {
+				if (channel != null) {
+					channel.close();
+				}
+				if (selector != null) {
+					selector.close();
+				}
+			} catch (IOException e) {
+				LOGGER.debug("Error closing Instrumental channel", e);
+			} finally {
+				channel = null;
+				selector = null;
+			}
+		}
+	}
+}
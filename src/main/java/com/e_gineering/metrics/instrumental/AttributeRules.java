@@ -0,0 +1,79 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which attributes are reported for each histogram, meter and timer, as a bit mask indexed by attribute
+ * ordinal. The first rule whose pattern matches the whole of a metric's registry name decides; metrics no rule matches
+ * report the default attributes.
+ */
+final class AttributeRules {
+
+	static final int ALL = mask(EnumSet.allOf(MetricAttribute.class));
+
+	/**
+	 * The attributes read from a snapshot, which isn't worth taking if none of them are reported.
+	 */
+	static final int SNAPSHOT = mask(EnumSet.range(MetricAttribute.MAX, MetricAttribute.P999));
+
+	/**
+	 * Not a valid mask, so can mark one which hasn't been worked out yet.
+	 */
+	static final int UNRESOLVED = -1;
+
+	private final int defaults;
+	private final List<Pattern> patterns;
+	private final int[] masks;
+
+	AttributeRules(Set<MetricAttribute> defaults, List<Pattern> patterns, List<Set<MetricAttribute>> attributes) {
+		this.defaults = mask(defaults);
+		this.patterns = new ArrayList<Pattern>(patterns);
+		this.masks = new int[attributes.size()];
+		for (int i = 0; i < masks.length; i++) {
+			masks[i] = mask(attributes.get(i));
+		}
+	}
+
+	/**
+	 * @return the attributes to report for the metric registered under the given name.
+	 */
+	int resolve(String name) {
+		for (int i = 0; i < masks.length; i++) {
+			if (patterns.get(i).matcher(name).matches()) {
+				return masks[i];
+			}
+		}
+		return defaults;
+	}
+
+	static boolean includes(int mask, MetricAttribute attribute) {
+		return (mask & (1 << attribute.ordinal())) != 0;
+	}
+
+	static int mask(Set<MetricAttribute> attributes) {
+		int mask = 0;
+		for (MetricAttribute attribute : attributes) {
+			mask |= 1 << attribute.ordinal();
+		}
+		return mask;
+	}
+}
@@ -0,0 +1,34 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import java.io.IOException;
+
+/**
+ * A sender which also accepts lines the reporter has already encoded, so they can be sent without being turned back
+ * into strings. The reporter sends to any other {@link InstrumentalSender} one line at a time.
+ */
+public interface BulkInstrumentalSender extends InstrumentalSender {
+
+	/**
+	 * Sends complete, newline-terminated protocol lines which have already been encoded, connecting first if needed.
+	 *
+	 * @param lines A buffer holding the encoded lines.
+	 * @param offset The offset of the first line in the buffer.
+	 * @param length The number of bytes to send.
+	 */
+	public void write(byte[] lines, int offset, int length) throws IOException;
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a sender may try to connect again after failing, backing off exponentially with jitter.
+ *
+ * The breaker is closed while everything works. Each consecutive failure opens it, refusing connection attempts for
+ * twice as long as the last time, up to a maximum. Delays are randomized between half and all of that, so a fleet of
+ * clients which lost the collector at the same moment doesn't return to it all at once. When the delay has passed the
+ * breaker is half-open and allows a single attempt: if it connects the breaker closes, otherwise it opens again.
+ *
+ * Times are {@link System#nanoTime()} values, passed in by the caller.
+ */
+final class CircuitBreaker {
+
+	enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	static final long DEFAULT_INITIAL_DELAY = TimeUnit.SECONDS.toNanos(1);
+	static final long DEFAULT_MAX_DELAY = TimeUnit.MINUTES.toNanos(2);
+
+	private final Random random;
+
+	private long initialDelay = DEFAULT_INITIAL_DELAY;
+	private long maxDelay = DEFAULT_MAX_DELAY;
+	private State state = State.CLOSED;
+	private long retryAt;
+	private volatile int failures;
+
+	CircuitBreaker() {
+		this(new Random());
+	}
+
+	CircuitBreaker(Random random) {
+		this.random = random;
+	}
+
+	/**
+	 * Sets how long to wait after the first failure, and the most to ever wait.
+	 */
+	synchronized void setDelays(long initial, long max, TimeUnit unit) {
+		if (initial <= 0 || max < initial) {
+			throw new IllegalArgumentException("Delays must be positive, and the maximum at least the initial delay");
+		}
+		this.initialDelay = unit.toNanos(initial);
+		this.maxDelay = unit.toNanos(max);
+	}
+
+	/**
+	 * Asks to attempt a connection. Once the breaker has opened, only one attempt is allowed each time the delay
+	 * passes, and the caller must report its outcome to {@link #onConnected()} or {@link #onFailure(long)}.
+	 *
+	 * @return whether to attempt it.
+	 */
+	synchronized boolean tryAcquire(long now) {
+		switch (state) {
+			case CLOSED:
+				return true;
+			case OPEN:
+				if (now - retryAt >= 0) {
+					state = State.HALF_OPEN;
+					return true;
+				}
+				return false;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * @return how long, in nanoseconds, until another attempt will be allowed; zero if one already would be.
+	 */
+	synchronized long remaining(long now) {
+		return state == State.OPEN ? Math.max(0, retryAt - now) : 0;
+	}
+
+	/**
+	 * Records a successful connection. Failures are still counted until something is sent successfully.
+	 */
+	synchronized void onConnected() {
+		state = State.CLOSED;
+	}
+
+	/**
+	 * Records successfully sending data, resetting the backoff.
+	 */
+	void onSuccess() {
+		if (failures != 0) {
+			synchronized (this) {
+				failures = 0;
+				state = State.CLOSED;
+			}
+		}
+	}
+
+	/**
+	 * Records a failure to connect or send, opening the breaker.
+	 */
+	synchronized void onFailure(long now) {
+		if (failures < Integer.MAX_VALUE) {
+			failures++;
+		}
+		state = State.OPEN;
+		retryAt = now + delay(failures);
+	}
+
+	/**
+	 * @return the number of consecutive failures.
+	 */
+	int getFailures() {
+		return failures;
+	}
+
+	synchronized State getState() {
+		return state;
+	}
+
+	// Must hold this
+	private long delay(int failures) {
+		long delay = initialDelay;
+		for (int i = 1; i < failures && delay < maxDelay; i++) {
+			delay *= 2;
+		}
+		delay = Math.min(delay, maxDelay);
+		final long half = delay / 2;
+		return half + (long) (random.nextDouble() * (delay - half));
+	}
+}
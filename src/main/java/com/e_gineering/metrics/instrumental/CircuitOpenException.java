@@ -0,0 +1,41 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thrown instead of attempting a connection while backing off after previous failures.
+ */
+public class CircuitOpenException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long retryDelayNanos;
+
+	public CircuitOpenException(long retryDelay, TimeUnit unit) {
+		super("Not reconnecting to Instrumental for another " + unit.toMillis(retryDelay) + "ms");
+		this.retryDelayNanos = unit.toNanos(retryDelay);
+	}
+
+	/**
+	 * @return how long until another connection attempt will be made.
+	 */
+	public long getRetryDelay(TimeUnit unit) {
+		return unit.convert(retryDelayNanos, TimeUnit.NANOSECONDS);
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import java.util.Arrays;
+
+/**
+ * The counts each metric had when it was last reported, in primitive arrays indexed by {@link MetricNames.Entry} slot,
+ * so counts can be reported as the increase since then.
+ *
+ * Counts read during a report are staged in a {@link Pending}, and only replace the previous counts once the report
+ * has been sent; if it fails, the next report covers both intervals. Several threads may stage counts for different
+ * metrics at once, each into its own {@link Pending}, but committing must not overlap with staging.
+ */
+final class CountTable {
+
+	private long[] counts = new long[64];
+	private int[] serials = new int[64];
+
+	/**
+	 * Stages the given count for the metric, to be committed once it has been reported.
+	 *
+	 * @return how much the count has changed since the last committed report, or the whole count if the metric has
+	 * not been reported before.
+	 */
+	long delta(Pending pending, MetricNames.Entry entry, long count) {
+		final int slot = entry.getSlot();
+		final int serial = entry.getSerial();
+		final long[] counts = this.counts;
+		final int[] serials = this.serials;
+		final long previous = slot < serials.length && serials[slot] == serial ? counts[slot] : 0;
+
+		pending.add(slot, serial, count);
+		return count - previous;
+	}
+
+	/**
+	 * Makes the counts staged in the given {@link Pending} the ones the next deltas are measured from, and clears it.
+	 */
+	void commit(Pending pending) {
+		for (int i = 0; i < pending.size; i++) {
+			final int slot = pending.slots[i];
+			if (slot >= serials.length) {
+				final int length = Math.max(slot + 1, serials.length * 2);
+				counts = Arrays.copyOf(counts, length);
+				serials = Arrays.copyOf(serials, length);
+			}
+			// A newer metric may have taken the slot while this report was running.
+			if (pending.serials[i] - serials[slot] >= 0) {
+				counts[slot] = pending.counts[i];
+				serials[slot] = pending.serials[i];
+			}
+		}
+		pending.clear();
+	}
+
+	/**
+	 * Counts staged during a report. Instances are not thread-safe.
+	 */
+	static final class Pending {
+		private int[] slots = new int[64];
+		private int[] serials = new int[64];
+		private long[] counts = new long[64];
+		private int size = 0;
+
+		private void add(int slot, int serial, long count) {
+			if (size == slots.length) {
+				final int length = size * 2;
+				slots = Arrays.copyOf(slots, length);
+				serials = Arrays.copyOf(serials, length);
+				counts = Arrays.copyOf(counts, length);
+			}
+			slots[size] = slot;
+			serials[size] = serial;
+			counts[size] = count;
+			size++;
+		}
+
+		/**
+		 * Forgets the staged counts, as they were never reported.
+		 */
+		void clear() {
+			size = 0;
+		}
+	}
+}
@@ -0,0 +1,592 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.SocketFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends to whichever of several collectors, such as a local relay and the Instrumental collector behind it, is
+ * healthy and quickest to reach, failing over to the next when one goes wrong.
+ *
+ * Each collector has its own {@link Instrumental} connection. Every collector is probed in the background by timing
+ * a plain TCP connection to it; a collector which can't be reached, or whose connection fails, is unhealthy until a
+ * probe reaches it again. Connecting tries healthy
+ * collectors in order of latency, then the rest, with collectors whose latency isn't known yet taken in the order
+ * given. Once connected, a collector is kept until it fails, or until a flush finds a healthy one at least twice as
+ * quick, and at least a millisecond quicker.
+ *
+ * Lines written since the last successful flush are kept, up to the replay buffer size, and replayed to the next
+ * collector if the current one fails before they are flushed; so a collector which fails mid-report costs no lines,
+ * though a few may be sent twice. A connection lost while lines written to it are unflushed counts as a failure
+ * too.
+ *
+ * Notices are queued, and sent through the current collector's connection at each flush and on close, so only the
+ * current collector is ever connected to.
+ *
+ * Instances are thread-safe, but writes and flushes are serialized.
+ */
+public class FailoverInstrumental implements BulkInstrumentalSender, SenderStats {
+
+	/**
+	 * Default interval between probes of the collectors not in use, in milliseconds.
+	 */
+	public static final long DEFAULT_PROBE_INTERVAL = 30000;
+
+	/**
+	 * Default size of the buffer holding lines which haven't been flushed yet.
+	 */
+	public static final int DEFAULT_REPLAY_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * How many times quicker another healthy collector must be to switch to it at a flush.
+	 */
+	private static final int SWITCH_RATIO = 2;
+
+	/**
+	 * How much quicker, in nanoseconds, another healthy collector must be to switch to it, so timing noise on a fast
+	 * network doesn't make it flap between collectors.
+	 */
+	private static final long MIN_SWITCH_GAIN = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private static final long UNKNOWN_LATENCY = Long.MAX_VALUE;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FailoverInstrumental.class);
+
+	private static final Comparator<Candidate> PREFERENCE = new Comparator<Candidate>() {
+		@Override
+		public int compare(Candidate a, Candidate b) {
+			if (a.healthy != b.healthy) {
+				return a.healthy ? -1 : 1;
+			}
+			if (a.latency != b.latency) {
+				return a.latency < b.latency ? -1 : 1;
+			}
+			return a.collector.index - b.collector.index;
+		}
+	};
+
+	private final List<Collector> collectors;
+	private final SocketFactory socketFactory;
+	private final LineEncoder encoder = new LineEncoder(); // Guarded by this
+	private final ReplayBuffer replay = new ReplayBuffer(); // Guarded by this
+	private final NoticeQueue notices = new NoticeQueue();
+
+	private volatile Collector active = null;
+	private volatile int connectTimeoutMillis = Instrumental.DEFAULT_TIMEOUT;
+	private volatile long probeIntervalMillis = DEFAULT_PROBE_INTERVAL;
+	private volatile int replayBufferSize = DEFAULT_REPLAY_BUFFER_SIZE;
+	private volatile ScheduledExecutorService prober = null;
+	private boolean replayOverflowed = false; // Guarded by this
+
+	/**
+	 * @param apiKey Your project API key.
+	 * @param collectors The collectors to send to. Unresolved addresses are looked up as {@link Instrumental} does.
+	 */
+	public FailoverInstrumental(String apiKey, List<InetSocketAddress> collectors) {
+		this(apiKey, collectors, SocketFactory.getDefault());
+	}
+
+	/**
+	 * @param apiKey Your project API key.
+	 * @param collectors The collectors to send to. Unresolved addresses are looked up as {@link Instrumental} does.
+	 * @param socketFactory A SocketFactory to use when creating the underlying sockets.
+	 */
+	public FailoverInstrumental(String apiKey, List<InetSocketAddress> collectors, SocketFactory socketFactory) {
+		if (collectors.isEmpty()) {
+			throw new IllegalArgumentException("At least one collector is required");
+		}
+		this.socketFactory = socketFactory;
+		this.collectors = new ArrayList<Collector>(collectors.size());
+		for (InetSocketAddress address : collectors) {
+			final Instrumental instrumental = address.isUnresolved()
+			                                  ? new Instrumental(apiKey, address.getHostName(), address.getPort(), socketFactory)
+			                                  : new Instrumental(apiKey, address, socketFactory);
+			this.collectors.add(new Collector(this.collectors.size(), address, instrumental));
+		}
+	}
+
+	/**
+	 * Sets the time allowed for connecting to each collector, including probes. Defaults to 5 seconds.
+	 */
+	public void setConnectTimeout(long timeout, TimeUnit unit) {
+		final long millis = unit.toMillis(timeout);
+		if (millis <= 0 || millis > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Timeouts must be positive, and at most Integer.MAX_VALUE milliseconds");
+		}
+		for (Collector collector : collectors) {
+			collector.instrumental.setConnectTimeout(timeout, unit);
+		}
+		this.connectTimeoutMillis = (int) millis;
+	}
+
+	/**
+	 * Sets how often the collectors are probed, starting when first connecting. Takes effect at the next
+	 * connection after a close. Defaults to 30 seconds.
+	 */
+	public void setProbeInterval(long interval, TimeUnit unit) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("interval must be positive");
+		}
+		this.probeIntervalMillis = Math.max(1, unit.toMillis(interval));
+	}
+
+	/**
+	 * Sets how many bytes of lines written since the last flush are kept to replay to another collector. Lines beyond
+	 * this are only sent to the collector they were written to.
+	 */
+	public void setReplayBufferSize(int bytes) {
+		if (bytes <= 0) {
+			throw new IllegalArgumentException("bytes must be positive");
+		}
+		this.replayBufferSize = bytes;
+	}
+
+	/**
+	 * Sets how many notices may be sent per second, in bursts of up to a second's worth. Notices beyond the limit wait
+	 * for a later flush. Defaults to 10.
+	 */
+	public void setNoticeRateLimit(int perSecond) {
+		notices.setRateLimit(perSecond);
+	}
+
+	/**
+	 * Sets how long after a notice others with the same text are dropped as repeats of it. Defaults to 10 seconds;
+	 * 0 sends every notice.
+	 */
+	public void setNoticeCoalescingWindow(long window, TimeUnit unit) {
+		notices.setCoalescingWindow(unit.toNanos(window));
+	}
+
+	/**
+	 * @return The number of notices dropped as repeats of one with the same text.
+	 */
+	public long getCoalescedNotices() {
+		return notices.getCoalesced();
+	}
+
+	/**
+	 * @return The address of the collector currently in use, or {@code null} if none is.
+	 */
+	public InetSocketAddress getActiveCollector() {
+		final Collector active = this.active;
+		return active == null ? null : active.address;
+	}
+
+	@Override
+	public synchronized void connect() throws IllegalStateException, IOException {
+		if (isConnected()) {
+			throw new IllegalStateException("Already connected");
+		}
+		connectPreferred(null);
+	}
+
+	@Override
+	public synchronized void send(MetricType type, String name, String value, long timestamp) throws IOException {
+		encoder.reset().encode(type, name, value, timestamp);
+		write(encoder.array(), 0, encoder.size());
+	}
+
+	@Override
+	public synchronized void write(byte[] lines, int offset, int length) throws IOException {
+		keep(lines, offset, length);
+		final Collector collector = current();
+		try {
+			collector.instrumental.write(lines, offset, length);
+		} catch (IOException e) {
+			failOver(collector, e);
+		}
+	}
+
+	@Override
+	public void notice(String name) {
+		notice(name, 0, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void notice(String name, long duration, TimeUnit durationUnit) {
+		notice(name, System.currentTimeMillis(), TimeUnit.MILLISECONDS, duration, durationUnit);
+	}
+
+	/**
+	 * Queues a notice to be sent at the next flush. Never blocks on the network.
+	 */
+	@Override
+	public void notice(String name, long start, TimeUnit startUnit, long duration, TimeUnit durationUnit) {
+		notices.offer(name, TimeUnit.SECONDS.convert(start, startUnit), TimeUnit.SECONDS.convert(duration, durationUnit), System.nanoTime());
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		notices.drainTo(encoder.reset(), System.nanoTime());
+		if (encoder.size() > 0) {
+			write(encoder.array(), 0, encoder.size());
+		}
+
+		Collector collector = current();
+		while (true) {
+			try {
+				collector.instrumental.flush();
+				break;
+			} catch (IOException e) {
+				failOver(collector, e);
+				collector = active;
+			}
+		}
+		replay.reset();
+		replayOverflowed = false;
+		switchIfQuicker(collector);
+	}
+
+	@Override
+	public boolean isConnected() {
+		final Collector active = this.active;
+		return active != null && active.instrumental.isConnected();
+	}
+
+	/**
+	 * @return The fewest consecutive connection failures of any collector.
+	 */
+	@Override
+	public int getFailures() {
+		int failures = Integer.MAX_VALUE;
+		for (Collector collector : collectors) {
+			failures = Math.min(failures, collector.instrumental.getFailures());
+		}
+		return failures;
+	}
+
+	@Override
+	public long getConnectAttempts() {
+		long total = 0;
+		for (Collector collector : collectors) {
+			total += collector.instrumental.getConnectAttempts();
+		}
+		return total;
+	}
+
+	@Override
+	public long getConnectFailures() {
+		long total = 0;
+		for (Collector collector : collectors) {
+			total += collector.instrumental.getConnectFailures();
+		}
+		return total;
+	}
+
+	@Override
+	public long getBytesWritten() {
+		long total = 0;
+		for (Collector collector : collectors) {
+			total += collector.instrumental.getBytesWritten();
+		}
+		return total;
+	}
+
+	/**
+	 * @return The number of lines dropped by every collector's connection, and of notices dropped because too many were
+	 * waiting to be sent.
+	 */
+	@Override
+	public long getDroppedLines() {
+		long total = notices.getDropped();
+		for (Collector collector : collectors) {
+			total += collector.instrumental.getDroppedLines();
+		}
+		return total;
+	}
+
+	@Override
+	public long getQueuedBytes() {
+		long total = 0;
+		for (Collector collector : collectors) {
+			total += collector.instrumental.getQueuedBytes();
+		}
+		return total;
+	}
+
+	/**
+	 * Sends the queued notices if connected, and closes every collector's connection.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		final Collector current = active;
+		final ScheduledExecutorService prober = this.prober;
+		this.prober = null;
+		if (prober != null) {
+			prober.shutdownNow();
+		}
+
+		IOException failure = null;
+		if (current != null && current.instrumental.isConnected()) {
+			notices.drainAllTo(encoder.reset());
+			try {
+				if (encoder.size() > 0) {
+					current.instrumental.write(encoder.array(), 0, encoder.size());
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		active = null;
+		replay.reset();
+		replayOverflowed = false;
+		for (Collector collector : collectors) {
+			try {
+				collector.instrumental.close();
+			} catch (IOException e) {
+				if (failure == null && collector == current) {
+					failure = e;
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	// Must hold this
+	private Collector current() throws IOException {
+		final Collector collector = active;
+		if (collector != null && collector.instrumental.isConnected()) {
+			return collector;
+		}
+		if (collector != null && (replay.size() > 0 || replayOverflowed)) {
+			// Lines written to it might never have left, so it has failed as surely as if a write had thrown.
+			failOver(collector, new IOException("Lost the connection to Instrumental collector " + collector.address));
+		} else {
+			connectPreferred(null);
+		}
+		return active;
+	}
+
+	/**
+	 * Connects to the most preferred collector which will accept a connection, other than the given one.
+	 */
+	// Must hold this
+	private void connectPreferred(Collector failed) throws IOException {
+		startProbing();
+		// The prober updates collectors as they're sorted, so sort what they were, or the order could contradict itself.
+		final List<Candidate> preferred = new ArrayList<Candidate>(collectors.size());
+		for (Collector collector : collectors) {
+			preferred.add(new Candidate(collector));
+		}
+		Collections.sort(preferred, PREFERENCE);
+
+		IOException lastFailure = null;
+		for (Candidate preference : preferred) {
+			final Collector candidate = preference.collector;
+			if (candidate == failed) {
+				continue;
+			}
+			try {
+				if (!candidate.instrumental.isConnected()) {
+					candidate.instrumental.connect();
+				}
+				candidate.healthy = true;
+				active = candidate;
+				return;
+			} catch (IOException e) {
+				candidate.healthy = false;
+				lastFailure = e;
+			}
+		}
+		active = null;
+		throw lastFailure != null ? lastFailure : new IOException("No other collector to fail over to");
+	}
+
+	/**
+	 * Moves to the next collector, and replays what hasn't been flushed to it.
+	 */
+	// Must hold this
+	private void failOver(Collector failed, IOException cause) throws IOException {
+		failed.healthy = false;
+		closeQuietly(failed);
+		if (replayOverflowed) {
+			LOGGER.warn("Lines written since the last flush to {} may be lost, more than the replay buffer holds", failed.address);
+		}
+
+		Collector excluded = failed;
+		for (int attempt = 0; attempt < collectors.size(); attempt++) {
+			try {
+				connectPreferred(excluded);
+			} catch (IOException e) {
+				LOGGER.warn("Unable to fail over from Instrumental collector {}", failed.address, cause);
+				throw e;
+			}
+			final Collector next = active;
+			LOGGER.info("Failed over from Instrumental collector {} to {}", failed.address, next.address, cause);
+			try {
+				if (replay.size() > 0) {
+					next.instrumental.write(replay.array(), 0, replay.size());
+				}
+				return;
+			} catch (IOException e) {
+				next.healthy = false;
+				closeQuietly(next);
+				excluded = next;
+			}
+		}
+		active = null;
+		throw cause;
+	}
+
+	// Must hold this
+	private void keep(byte[] lines, int offset, int length) {
+		if (replay.size() + length > replayBufferSize) {
+			replay.reset();
+			replayOverflowed = true;
+		} else if (!replayOverflowed) {
+			replay.write(lines, offset, length);
+		}
+	}
+
+	/**
+	 * Moves to a healthy collector at least {@link #SWITCH_RATIO} times, and {@link #MIN_SWITCH_GAIN}, quicker than the
+	 * given one, if there is one.
+	 * Nothing is waiting to be replayed, so the next write just connects to it.
+	 */
+	// Must hold this
+	private void switchIfQuicker(Collector current) {
+		final long latency = current.latency;
+		if (latency == UNKNOWN_LATENCY) {
+			return;
+		}
+		for (Collector collector : collectors) {
+			if (collector != current && collector.healthy && collector.latency != UNKNOWN_LATENCY
+					    && collector.latency * SWITCH_RATIO <= latency
+					    && latency - collector.latency >= MIN_SWITCH_GAIN) {
+				LOGGER.info("Switching to Instrumental collector {}, which is quicker to reach than {}", collector.address, current.address);
+				closeQuietly(current);
+				active = null;
+				return;
+			}
+		}
+	}
+
+	private void startProbing() {
+		if (prober != null) {
+			return;
+		}
+		final ScheduledExecutorService prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				final Thread thread = new Thread(runnable, "instrumental-failover-probe");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		final long interval = probeIntervalMillis;
+		prober.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				probe();
+			}
+		}, 0, interval, TimeUnit.MILLISECONDS);
+		this.prober = prober;
+	}
+
+	private void probe() {
+		for (Collector collector : collectors) {
+			final long start = System.nanoTime();
+			try {
+				final InetSocketAddress address = collector.address.isUnresolved()
+				                                  ? new InetSocketAddress(collector.address.getHostName(), collector.address.getPort())
+				                                  : collector.address;
+				final Socket socket = socketFactory.createSocket();
+				try {
+					socket.connect(address, connectTimeoutMillis);
+				} finally {
+					socket.close();
+				}
+				collector.onSuccess(System.nanoTime() - start);
+			} catch (IOException e) {
+				if (collector.healthy) {
+					LOGGER.debug("Instrumental collector {} is unreachable", collector.address, e);
+				}
+				collector.healthy = false;
+			} catch (RuntimeException e) {
+				// Throwing would cancel every later probe.
+				LOGGER.warn("Unable to probe Instrumental collector {}", collector.address, e);
+			}
+		}
+	}
+
+	private static void closeQuietly(Collector collector) {
+		try {
+			collector.instrumental.close();
+		} catch (IOException e) {
+			// It has already failed.
+		}
+	}
+
+	private static final class Collector {
+		private final int index;
+		private final InetSocketAddress address;
+		private final Instrumental instrumental;
+		private volatile boolean healthy = true;
+		private volatile long latency = UNKNOWN_LATENCY;
+
+		private Collector(int index, InetSocketAddress address, Instrumental instrumental) {
+			this.index = index;
+			this.address = address;
+			this.instrumental = instrumental;
+		}
+
+		private void onSuccess(long latency) {
+			this.latency = latency;
+			this.healthy = true;
+		}
+	}
+
+	/**
+	 * A collector's health and latency as of one moment.
+	 */
+	private static final class Candidate {
+		private final Collector collector;
+		private final boolean healthy;
+		private final long latency;
+
+		private Candidate(Collector collector) {
+			this.collector = collector;
+			this.healthy = collector.healthy;
+			this.latency = collector.latency;
+		}
+	}
+
+	/**
+	 * Exposes its buffer, so it can be replayed without copying.
+	 */
+	private static final class ReplayBuffer extends ByteArrayOutputStream {
+		private byte[] array() {
+			return buf;
+		}
+	}
+}
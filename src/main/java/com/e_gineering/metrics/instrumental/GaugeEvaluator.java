@@ -0,0 +1,202 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import com.codahale.metrics.Gauge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Reads gauge values for the reporter, so that slow gauges can't hold up a report.
+ *
+ * With a timeout, each gauge is read on a pool of evaluation threads, and the reporter waits at most the timeout
+ * for it. A gauge which takes longer is reported with its last known value, and isn't read again until the late read
+ * finishes, so a gauge which hangs costs a report nothing after the first timeout. Once a gauge has missed more
+ * reports in a row than allowed, its last value is considered stale and it isn't reported until it answers again.
+ *
+ * Gauges whose names match a caching rule are only read once their last value is older than the rule's TTL.
+ *
+ * The state of each gauge is kept on its {@link MetricNames.Entry}, which only one report uses at a time.
+ */
+final class GaugeEvaluator {
+
+	static final int DEFAULT_MAX_MISSES = 3;
+
+	/**
+	 * The most gauges which can be read at once. A gauge which hangs holds on to a thread until it returns; once every
+	 * thread is busy, gauges are reported with their last value straight away.
+	 */
+	private static final int MAX_THREADS = 32;
+
+	/**
+	 * How long an idle thread is kept, in seconds.
+	 */
+	private static final long KEEP_ALIVE = 60;
+
+	private final long timeoutNanos;
+	private final int maxMisses;
+	private final List<Pattern> cachePatterns;
+	private final long[] cacheTtls;
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * @param timeoutNanos how long to wait for each gauge, or 0 to read gauges on the reporting thread
+	 * @param maxMisses how many reports in a row a gauge may be reported with its last value
+	 * @param cachePatterns regular expressions matching the names of gauges to cache
+	 * @param cacheTtls how long to cache gauges matching each pattern, in nanoseconds
+	 */
+	GaugeEvaluator(long timeoutNanos, int maxMisses, List<Pattern> cachePatterns, List<Long> cacheTtls) {
+		this.timeoutNanos = timeoutNanos;
+		this.maxMisses = maxMisses;
+		this.cachePatterns = new ArrayList<Pattern>(cachePatterns);
+		this.cacheTtls = new long[cacheTtls.size()];
+		for (int i = 0; i < this.cacheTtls.length; i++) {
+			this.cacheTtls[i] = cacheTtls.get(i);
+		}
+		if (timeoutNanos > 0) {
+			this.executor = new ThreadPoolExecutor(0, MAX_THREADS, KEEP_ALIVE, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new EvaluationThreadFactory());
+		} else {
+			this.executor = null;
+		}
+	}
+
+	/**
+	 * @return the value to report for the gauge, or {@code null} if there is none which isn't stale.
+	 */
+	Object valueOf(MetricNames.Entry name, final Gauge gauge) {
+		State state = name.gaugeState;
+		if (state == null) {
+			state = new State(cacheTtl(name.getName()));
+			name.gaugeState = state;
+		}
+
+		final long now = System.nanoTime();
+		if (state.ttl > 0 && state.readAt != 0 && now - state.readAt < state.ttl) {
+			return state.value;
+		}
+
+		if (executor == null) {
+			return state.read(gauge.getValue(), now);
+		}
+
+		Future<?> pending = state.pending;
+		if (pending != null && !pending.isDone()) {
+			// Still busy with a read which has already cost an earlier report its wait.
+			return state.miss(maxMisses);
+		}
+		if (pending == null) {
+			try {
+				pending = executor.submit(new Callable<Object>() {
+					@Override
+					public Object call() {
+						return gauge.getValue();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// Every thread is busy with gauges which hang.
+				return state.miss(maxMisses);
+			}
+			state.pending = pending;
+		}
+
+		try {
+			final Object value = pending.get(timeoutNanos, TimeUnit.NANOSECONDS);
+			state.pending = null;
+			return state.read(value, System.nanoTime());
+		} catch (TimeoutException e) {
+			return state.miss(maxMisses);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return state.miss(maxMisses);
+		} catch (ExecutionException e) {
+			state.pending = null;
+			final Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	void stop() {
+		if (executor != null) {
+			// Interrupts gauges which are still being read
+			executor.shutdownNow();
+		}
+	}
+
+	private long cacheTtl(String name) {
+		for (int i = 0; i < cacheTtls.length; i++) {
+			if (cachePatterns.get(i).matcher(name).matches()) {
+				return cacheTtls[i];
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * The last value read from a gauge, and any read still under way.
+	 */
+	static final class State {
+		private final long ttl;
+		private volatile Future<?> pending = null;
+		private volatile Object value = null;
+		private volatile long readAt = 0;
+		private volatile int misses = 0;
+
+		private State(long ttl) {
+			this.ttl = ttl;
+		}
+
+		private Object read(Object value, long now) {
+			this.value = value;
+			this.readAt = now;
+			this.misses = 0;
+			return value;
+		}
+
+		private Object miss(int maxMisses) {
+			final int misses = this.misses + 1;
+			this.misses = misses;
+			return misses > maxMisses ? null : value;
+		}
+	}
+
+	private static final class EvaluationThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			final Thread thread = new Thread(runnable, "instrumental-reporter-gauge-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
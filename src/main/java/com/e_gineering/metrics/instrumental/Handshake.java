@@ -0,0 +1,172 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+import java.util.Properties;
+
+/**
+ * The commands and responses of the Instrumental connection handshake, shared by the {@link InstrumentalSender}
+ * implementations.
+ */
+final class Handshake {
+
+	private static final Charset ASCII = Charset.forName("ASCII");
+
+	private static volatile String version = null;
+	private static volatile String processInfo = null;
+
+	private Handshake() {
+	}
+
+	/**
+	 * @param localHostname The hostname this side of the connection is reported under.
+	 * @return The hello command, without its line terminator.
+	 */
+	static String hello(String localHostname) {
+		return "hello version java/metrics_instrumental/" + getVersion() + " hostname " + localHostname + getProcessInfo();
+	}
+
+	/**
+	 * @param apiKey The project API key.
+	 * @return The authenticate command, without its line terminator.
+	 */
+	static String authenticate(String apiKey) {
+		return "authenticate " + apiKey;
+	}
+
+	/**
+	 * @param localHostname The hostname this side of the connection is reported under.
+	 * @param apiKey The project API key.
+	 * @return The hello and authenticate commands, each terminated, to be written together. The collector answers
+	 * each in turn, so there is no need to wait for the first answer before sending the second command.
+	 */
+	static byte[] commands(String localHostname, String apiKey) {
+		return (hello(localHostname) + "\n" + authenticate(apiKey) + "\n").getBytes(ASCII);
+	}
+
+	/**
+	 * @return Whether the given response line acknowledges a handshake command.
+	 */
+	static boolean isOk(String response) {
+		return "ok".equals(response);
+	}
+
+	private static String getProcessInfo() {
+		if (processInfo == null) {
+			processInfo = " pid " + getProcessId("?") + " runtime " + getRuntimeInfo() + " platform " + getPlatformInfo();
+		}
+		return processInfo;
+	}
+
+	private static String getProcessId(final String fallback) {
+		// Note: may fail in some JVM implementations
+		// therefore fallback has to be provided
+
+		// something like '<pid>@<hostname>', at least in SUN / Oracle JVMs
+		final String jvmName = ManagementFactory.getRuntimeMXBean().getName();
+		final int index = jvmName.indexOf('@');
+
+		if (index < 1) {
+			// part before '@' empty (index = 0) / '@' not found (index = -1)
+			return fallback;
+		}
+
+		try {
+			return Long.toString(Long.parseLong(jvmName.substring(0, index)));
+		} catch (NumberFormatException e) {
+			// ignore
+		}
+		return fallback;
+	}
+
+	private static String getPlatformInfo() {
+		return System.getProperty("os.arch", "unknown").replaceAll(" ", "_") + "-" + System.getProperty("os.name", "unknown").replaceAll(" ", "_") + System.getProperty("os.version", "").replaceAll(" ", "_");
+	}
+
+	private static String getRuntimeInfo() {
+		return System.getProperty("java.vendor", "java").replaceAll(" ", "_") + "/" + System.getProperty("java.version", "?").replaceAll(" ", "_");
+	}
+
+	private static String getVersion() {
+		if (version == null) {
+			Properties props = new Properties();
+			InputStream stream = null;
+			try {
+				stream = Handshake.class.getClassLoader().getResourceAsStream("instrumental.properties");
+				props.load(stream);
+			} catch (IOException ioe) {
+
+			} finally {
+				if (stream != null) {
+					try {
+						stream.close();
+					} catch (IOException ioe) {
+						// Nill
+					} finally {
+						stream = null;
+					}
+				}
+			}
+
+			version = props.getProperty("metrics-instrumental.version", "unknown.version");
+		}
+		return version;
+	}
+
+	/**
+	 * The handshake commands of one sender, encoded on its first connection and reused for every reconnection, so
+	 * reconnecting doesn't repeat the reverse DNS lookup of the local address.
+	 */
+	static final class Commands {
+		private final String apiKey;
+		private volatile String localHostname = null;
+		private volatile byte[] encoded = null;
+
+		Commands(String apiKey) {
+			this.apiKey = apiKey;
+		}
+
+		/**
+		 * Reports the given hostname, rather than the name of the local address of the first connection.
+		 */
+		void setLocalHostname(String localHostname) {
+			if (localHostname == null || localHostname.length() == 0) {
+				throw new IllegalArgumentException("localHostname must not be empty");
+			}
+			this.localHostname = LineEncoder.sanitizeValue(localHostname);
+			this.encoded = null;
+		}
+
+		/**
+		 * @param localAddress The local address of the connection, only used if no hostname has been set.
+		 * @return The encoded hello and authenticate commands; see {@link Handshake#commands(String, String)}.
+		 */
+		byte[] get(InetAddress localAddress) {
+			byte[] commands = encoded;
+			if (commands == null) {
+				final String hostname = localHostname;
+				commands = commands(hostname != null ? hostname : localAddress.getHostName(), apiKey);
+				encoded = commands;
+			}
+			return commands;
+		}
+	}
+}
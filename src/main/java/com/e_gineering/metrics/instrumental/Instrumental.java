@@ -15,46 +15,114 @@
  */
 package com.e_gineering.metrics.instrumental;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import javax.net.SocketFactory;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.lang.management.ManagementFactory;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.ProtocolException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import java.nio.charset.Charset;
-import java.util.Properties;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Creates a reporting connection to Instrumental.
  *
+ * Instances are thread-safe: the reporter and application threads sending metrics may share one connection. Only one
+ * thread at a time writes to the socket. A thread sending a line which finds another one writing doesn't wait for it;
+ * it queues a copy of its line and returns, and whichever thread is writing sends the queued lines before it lets go.
+ * Bulk writes wait their turn instead, so a report is never dropped for want of queue space. Lines from
+ * one thread are sent in the order they were given, and whole lines are never interleaved.
+ *
  * Largely based upon the graphite reporting module from Dropwizard Metrics.
  */
-public class Instrumental implements InstrumentalSender {
+public class Instrumental implements BulkInstrumentalSender, SenderStats {
 
-	private static final Pattern WHITESPACE = Pattern.compile("[\\s]+");
+	/**
+	 * Default size of the send buffer, large enough that a typical report goes out in a handful of writes.
+	 */
+	public static final int DEFAULT_SEND_BUFFER_SIZE = 64 * 1024;
 
-	private static final Pattern PARENS = Pattern.compile("[\\(\\)]+");
-	private static final Pattern COMMA_SPACE = Pattern.compile(", ");
-	private static final Pattern ACCEPTED_NAMES = Pattern.compile("[^A-Za-z0-9_\\-\\.]");
+	/**
+	 * Default time allowed for establishing a connection, and separately for the handshake, in milliseconds.
+	 */
+	public static final int DEFAULT_TIMEOUT = 5000;
 
-	private static final Charset ASCII = Charset.forName("ASCII");
-	private static byte[] LF = "\n".getBytes(ASCII);
+	/**
+	 * Default interval between sends of aggregated increments and gauges, in milliseconds. Instrumental sums
+	 * increments and averages gauges within each second anyway, so aggregating over a second loses nothing.
+	 */
+	public static final long DEFAULT_AGGREGATION_INTERVAL = 1000;
+
+	/**
+	 * The most bytes of lines to hold for the writing thread, and separately of aggregates and notices to hold for
+	 * retrying after a background send fails; lines beyond this are dropped.
+	 */
+	static final int MAX_QUEUED_BYTES = 1024 * 1024;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(Instrumental.class);
 
-	private String version;
 	private String hostname;
 	private int port;
 	private String apiKey;
-	private InetSocketAddress address;
+	private final InetSocketAddress address;
 	private SocketFactory socketFactory;
 
-	public Socket socket = null;
-	private int failures;
+	public volatile Socket socket = null;
+	private OutputStream out = null; // Guarded by writer
+	private volatile int sendBufferSize = DEFAULT_SEND_BUFFER_SIZE;
+	private volatile int connectTimeoutMillis = DEFAULT_TIMEOUT;
+	private volatile int handshakeTimeoutMillis = DEFAULT_TIMEOUT;
+
+	private final CircuitBreaker breaker = new CircuitBreaker();
+	private final Handshake.Commands handshake;
+	private final AddressResolver resolver;
+
+	/**
+	 * Held by the one thread writing to the socket. Sending only ever tries to take it, so never blocks behind another
+	 * sender; connecting, flushing and closing wait for it.
+	 */
+	private final ReentrantLock writer = new ReentrantLock();
+	private final ConcurrentLinkedQueue<byte[]> queue = new ConcurrentLinkedQueue<byte[]>();
+	private final AtomicLong queuedBytes = new AtomicLong();
+	private final AtomicLong droppedLines = new AtomicLong();
+	private final AtomicLong connectAttempts = new AtomicLong();
+	private final AtomicLong connectFailures = new AtomicLong();
+	private volatile long bytesWritten = 0; // Only written holding writer
+	private final Aggregator aggregator = new Aggregator();
+	private final NoticeQueue notices = new NoticeQueue();
+	private volatile long aggregationIntervalMillis = DEFAULT_AGGREGATION_INTERVAL;
+	private volatile boolean sending = false; // Written holding this
+	private volatile boolean closed = false; // Written holding this
+	private volatile boolean resumeSending = false; // Written holding this
+	private ScheduledFuture<?> sendTask = null; // Guarded by this
+	private ScheduledExecutorService scheduler = null; // Guarded by this
+	private boolean ownScheduler = false; // Guarded by this
+	private final LineEncoder unsent = new LineEncoder(); // Guarded by writer
+	private long aggregationStart; // Only touched by the scheduler thread
+
+	private final ThreadLocal<LineEncoder> encoders = new ThreadLocal<LineEncoder>() {
+		@Override
+		protected LineEncoder initialValue() {
+			return new LineEncoder();
+		}
+	};
 
 	/**
 	 * Creates a connection to Instrumentalapp.com, using the default collector URI, Port, and SocketFactory.
@@ -80,12 +148,13 @@ public class Instrumental implements InstrumentalSender {
 	}
 
 	public Instrumental(String apiKey, String hostname, int port, SocketFactory socketFactory) {
-		this.version = null;
 		this.hostname = hostname;
 		this.port = port;
 		this.apiKey = apiKey;
 		this.address = null;
 		this.socketFactory = socketFactory;
+		this.handshake = new Handshake.Commands(apiKey);
+		this.resolver = new AddressResolver(hostname, port);
 	}
 
 	public Instrumental(String apiKey, InetSocketAddress address) {
@@ -93,59 +162,225 @@ public class Instrumental implements InstrumentalSender {
 	}
 
 	public Instrumental(String apiKey, InetSocketAddress address, SocketFactory socketFactory) {
-		this.version = null;
 		this.hostname = null;
 		this.port = -1;
 		this.apiKey = apiKey;
 		this.address = address;
 		this.socketFactory = socketFactory;
+		this.handshake = new Handshake.Commands(apiKey);
+		this.resolver = null;
+	}
+
+	/**
+	 * Sets the size of the buffer metrics are collected in before being written to the socket. The buffer is written
+	 * when it fills, and on {@link #flush()}. Takes effect on the next connection.
+	 *
+	 * @param sendBufferSize The buffer size, in bytes.
+	 */
+	public void setSendBufferSize(int sendBufferSize) {
+		if (sendBufferSize <= 0) {
+			throw new IllegalArgumentException("sendBufferSize must be positive");
+		}
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	/**
+	 * Sets how many notices may be sent per second, in bursts of up to a second's worth. Notices beyond the limit wait
+	 * their turn. Defaults to 10.
+	 */
+	public void setNoticeRateLimit(int perSecond) {
+		notices.setRateLimit(perSecond);
+	}
+
+	/**
+	 * Sets how long after a notice others with the same text are dropped as repeats of it. Defaults to 10 seconds;
+	 * 0 sends every notice.
+	 */
+	public void setNoticeCoalescingWindow(long window, TimeUnit unit) {
+		notices.setCoalescingWindow(unit.toNanos(window));
+	}
+
+	/**
+	 * Sets how often values given to {@link #increment(String, long)} and {@link #gauge(String, double)}, and queued
+	 * notices, are sent. Takes effect if set before any of them is first given. Defaults to 1 second.
+	 */
+	public void setAggregationInterval(long interval, TimeUnit unit) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("interval must be positive");
+		}
+		this.aggregationIntervalMillis = Math.max(1, unit.toMillis(interval));
+	}
+
+	/**
+	 * Sets the executor aggregates and notices are sent from, so many connections can share a few threads rather than
+	 * each starting its own. It is left running on {@link #close()}; whoever supplies it shuts it down. Takes effect if
+	 * set before any aggregate or notice is first given.
+	 */
+	public synchronized void setScheduler(ScheduledExecutorService scheduler) {
+		if (scheduler == null) {
+			throw new IllegalArgumentException("scheduler must not be null");
+		}
+		if (sendTask == null) {
+			this.scheduler = scheduler;
+		}
+	}
+
+	/**
+	 * Sets the hostname this client is reported under. By default it is the name of the local address of the first
+	 * connection, which takes a reverse DNS lookup.
+	 *
+	 * @param localHostname The hostname to report.
+	 */
+	public void setLocalHostname(String localHostname) {
+		handshake.setLocalHostname(localHostname);
+	}
+
+	/**
+	 * Sets how long the addresses the collector hostname resolved to are used before being looked up again. The
+	 * lookup happens in the background, and a connection to an address the hostname no longer resolves to is closed
+	 * on the next {@link #flush()}, so the next send reconnects to the new one. Defaults to 1 minute. Has no effect
+	 * when constructed with an address.
+	 */
+	public void setAddressTtl(long ttl, TimeUnit unit) {
+		if (resolver != null) {
+			resolver.setTtl(ttl, unit);
+		}
+	}
+
+	/**
+	 * Sets how long to wait for a connection to the collector to be established. Defaults to 5 seconds.
+	 */
+	public void setConnectTimeout(long timeout, TimeUnit unit) {
+		this.connectTimeoutMillis = checkTimeout(unit.toMillis(timeout));
+	}
+
+	/**
+	 * Sets how long to wait for the collector to accept the hello and authenticate commands once connected. Defaults
+	 * to 5 seconds.
+	 */
+	public void setHandshakeTimeout(long timeout, TimeUnit unit) {
+		this.handshakeTimeoutMillis = checkTimeout(unit.toMillis(timeout));
+	}
+
+	/**
+	 * Sets how long to wait before reconnecting after a failure. The wait doubles with each consecutive failure, up
+	 * to the maximum, and is randomized between half and all of that. While waiting, {@link #connect()} throws a
+	 * {@link CircuitOpenException} without touching the network. Defaults to 1 second, up to 2 minutes.
+	 *
+	 * @param initialDelay The wait after the first failure.
+	 * @param maxDelay The longest wait.
+	 * @param unit The unit of both delays.
+	 */
+	public void setReconnectBackoff(long initialDelay, long maxDelay, TimeUnit unit) {
+		breaker.setDelays(initialDelay, maxDelay, unit);
 	}
 
 	@Override
 	public void connect() throws IllegalStateException, IOException {
-		if (isConnected()) {
-			throw new IllegalStateException("Already connected");
+		reopen();
+		writer.lock();
+		try {
+			if (isConnected()) {
+				throw new IllegalStateException("Already connected");
+			}
+			reconnect();
+		} finally {
+			writer.unlock();
 		}
+	}
 
-		if (socket != null) {
-			socket.close();
+	// Must hold writer
+	private void reconnect() throws IOException {
+		install(dial());
+	}
+
+	/**
+	 * Opens and authenticates a new connection, as the circuit breaker allows, without touching the current one, so
+	 * the writer lock needn't be held.
+	 */
+	private Connection dial() throws IOException {
+		final long now = System.nanoTime();
+		if (!breaker.tryAcquire(now)) {
+			throw new CircuitOpenException(breaker.remaining(now), TimeUnit.NANOSECONDS);
 		}
 
-		if (hostname != null) {
-			address = new InetSocketAddress(hostname, port);
+		connectAttempts.incrementAndGet();
+		Socket socket = null;
+		boolean connected = false;
+		try {
+			socket = socketFactory.createSocket();
+			final Connection connection = new Connection(socket, open(socket));
+			connected = true;
+			return connection;
+		} finally {
+			if (connected) {
+				breaker.onConnected();
+			} else {
+				connectFailures.incrementAndGet();
+				breaker.onFailure(System.nanoTime());
+				closeQuietly(socket);
+			}
 		}
+	}
+
+	/**
+	 * Replaces the current connection with the given one.
+	 */
+	// Must hold writer
+	private void install(Connection connection) {
+		closeQuietly(socket);
+		out = connection.out;
+		socket = connection.socket;
+	}
+
+	/**
+	 * Connects the socket to the collector and authenticates.
+	 *
+	 * @return The buffered stream to write lines to.
+	 */
+	private OutputStream open(Socket socket) throws IOException {
+		final InetSocketAddress address = resolver != null ? resolver.next(System.nanoTime()) : this.address;
 
-		socket = socketFactory.createSocket();
 		socket.setTcpNoDelay(true);
 		socket.setKeepAlive(true);
 		socket.setTrafficClass(0x04 | 0x10); // Reliability, low-delay
 		socket.setPerformancePreferences(0, 2, 1); // latency more important than bandwidth and connection time.
-		socket.setSoTimeout(5000);
+		final int handshakeTimeout = handshakeTimeoutMillis;
+		socket.setSoTimeout(handshakeTimeout);
 		if (address.isUnresolved()) {
 			throw new UnknownHostException(address.getHostName());
 		}
-		socket.connect(address);
+		socket.connect(address, connectTimeoutMillis);
+		final OutputStream out = new BufferedOutputStream(socket.getOutputStream(), sendBufferSize);
 
 		BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ASCII"));
 
-		String hello = "hello version java/metrics_instrumental/" + getVersion() + " hostname " + socket.getLocalAddress().getHostName() + " pid " + getProcessId("?") + " runtime " + getRuntimeInfo() + " platform " + getPlatformInfo();
-		socket.getOutputStream().write(hello.getBytes(ASCII));
-		socket.getOutputStream().write(LF);
-		socket.getOutputStream().flush();
+		// Send both commands at once, rather than waiting a round trip for the first answer.
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(handshakeTimeout);
+		out.write(handshake.get(socket.getLocalAddress()));
+		out.flush();
 
-		if (!"ok".equals(reader.readLine())) {
-			close();
+		if (!Handshake.isOk(reader.readLine())) {
 			throw new ProtocolException("hello failed");
 		}
 
-		socket.getOutputStream().write(("authenticate " + apiKey).getBytes(ASCII));
-		socket.getOutputStream().write(LF);
-		socket.getOutputStream().flush();
+		// The timeout covers the whole handshake, not each answer.
+		final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+		if (remaining < handshakeTimeout) {
+			if (remaining <= 0) {
+				throw new SocketTimeoutException("handshake timed out");
+			}
+			socket.setSoTimeout((int) remaining);
+		}
 
-		if (!"ok".equals(reader.readLine())) {
-			close();
+		if (!Handshake.isOk(reader.readLine())) {
 			throw new ProtocolException("authenticate failed");
 		}
+		return out;
 	}
 
 	@Override
@@ -155,27 +390,27 @@ public class Instrumental implements InstrumentalSender {
 
 	@Override
 	public void send(MetricType type, String name, String value, long timestamp) throws IOException {
-		if (!isConnected()) {
-			connect();
-		}
+		final LineEncoder encoder = encoders.get().reset().encode(type, name, value, timestamp);
+		offer(encoder.array(), 0, encoder.size());
+	}
+
+	/**
+	 * Writes the given lines, waiting for any other thread writing to finish first. Unlike {@link #send}, this never
+	 * drops lines: they are written, or an exception is thrown.
+	 */
+	@Override
+	public void write(byte[] lines, int offset, int length) throws IOException {
+		reopen();
 
+		writer.lock();
 		try {
-			StringBuilder buf = new StringBuilder(type.getProtocolKey());
-			buf.append(' ');
-			buf.append(sanitizeName(name));
-			buf.append(' ');
-			buf.append(sanitize(value));
-			buf.append(' ');
-			buf.append(Long.toString(timestamp));
-			buf.append('\n');
-			socket.getOutputStream().write(buf.toString().getBytes(ASCII));
-			this.failures = 0;
-		} catch (IOException ioe) {
-			failures++;
-			throw ioe;
+			writeLocked(lines, offset, length);
+		} finally {
+			writer.unlock();
 		}
-	}
 
+		combine();
+	}
 
 	/**
 	 * Sends a named Notice at the current system time, with no duration to Instrumental
@@ -200,6 +435,10 @@ public class Instrumental implements InstrumentalSender {
 	/**
 	 * Sends a named Notice at the given start time for the given duration.
 	 *
+	 * Notices are queued and sent in the background along with aggregated metrics, so this never blocks on the
+	 * network. Notices with the same text as one given within the coalescing window are dropped, and they are sent no
+	 * faster than the rate limit. Notices still queued are sent when the connection is closed.
+	 *
 	 * @param name The text of the notice
 	 * @param start When the notice started (Measure in wall-clock time like unix timestamp since 1970)
 	 * @param startUnit start TimeUnit (ie, MILLISECONDS, or SECONDS, etc.)
@@ -207,114 +446,513 @@ public class Instrumental implements InstrumentalSender {
 	 * @param durationUnit Period TimeUnit.
 	 */
 	public void notice(String name, long start, TimeUnit startUnit, long duration, TimeUnit durationUnit) {
-		try {
-			if (!isConnected()) {
-				connect();
-			}
+		notices.offer(name, TimeUnit.SECONDS.convert(start, startUnit), TimeUnit.SECONDS.convert(duration, durationUnit), System.nanoTime());
+		startSending();
+	}
 
-			try {
-				StringBuilder buf = new StringBuilder("notice ");
-				buf.append(Long.toString(TimeUnit.SECONDS.convert(start, startUnit)));
-				buf.append(' ');
-				buf.append(Long.toString(TimeUnit.SECONDS.convert(duration, durationUnit)));
-				buf.append(' ');
-				buf.append(sanitizeName(name));
-				buf.append('\n');
-				socket.getOutputStream().write(buf.toString().getBytes(ASCII));
-				this.failures = 0;
-			} catch (IOException ioe) {
-				failures++;
-				throw ioe;
-			}
-		} catch (IOException ioe) {
-			try {
-				close();
-			} catch (IOException e) {
-				// Eat it.
-			}
-		}
+	/**
+	 * Adds one to the named count. See {@link #increment(String, long)}.
+	 *
+	 * @param name The metric name.
+	 */
+	public void increment(String name) {
+		increment(name, 1);
+	}
+
+	/**
+	 * Adds to the named count. Rather than being sent right away, increments are summed per name and sent as one line
+	 * per interval, by a background thread started on first use. Never blocks or touches the socket, so is cheap
+	 * enough to call for every event on a hot path.
+	 *
+	 * @param name The metric name.
+	 * @param delta The amount to add.
+	 */
+	public void increment(String name, long delta) {
+		aggregator.increment(name, delta);
+		startSending();
+	}
+
+	/**
+	 * Records a value of the named gauge. Rather than being sent right away, the values are averaged per name and the
+	 * mean sent once per interval, like {@link #increment(String, long)}.
+	 *
+	 * @param name The metric name.
+	 * @param value The value.
+	 */
+	public void gauge(String name, double value) {
+		aggregator.gauge(name, value);
+		startSending();
 	}
 
 	@Override
 	public int getFailures() {
-		return failures;
+		return breaker.getFailures();
+	}
+
+	/**
+	 * @return The number of lines dropped because too many were waiting for the writing thread, or because too many
+	 * notices were waiting to be sent.
+	 */
+	@Override
+	public long getDroppedLines() {
+		return droppedLines.get() + notices.getDropped();
+	}
+
+	/**
+	 * @return The number of notices dropped as repeats of one with the same text.
+	 */
+	public long getCoalescedNotices() {
+		return notices.getCoalesced();
+	}
+
+	@Override
+	public long getConnectAttempts() {
+		return connectAttempts.get();
+	}
+
+	@Override
+	public long getConnectFailures() {
+		return connectFailures.get();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	@Override
+	public long getQueuedBytes() {
+		return queuedBytes.get();
 	}
 
 	@Override
 	public void flush() throws IOException {
-		if (isConnected()) {
-			socket.getOutputStream().flush();
+		writer.lock();
+		try {
+			if (isConnected()) {
+				drain();
+				flushOut();
+
+				if (resolver != null && !resolver.isCurrent(socket.getInetAddress(), System.nanoTime())) {
+					// The collector has moved, so reconnect to where it is now on the next send.
+					disconnect();
+				}
+			}
+		} finally {
+			writer.unlock();
 		}
 	}
 
+	/**
+	 * Sends what is still aggregated or queued, closes the connection, and stops the background thread sending
+	 * aggregates and notices. Values given afterwards are held until the next {@link #connect()} or send, which starts
+	 * it again.
+	 */
 	@Override
 	public void close() throws IOException {
-		if (isConnected()) {
+		final ScheduledExecutorService stopped = stopSending();
+		if (stopped != null) {
+			// Let a send in progress finish, so no thread outlives the connection.
+			try {
+				stopped.awaitTermination(connectTimeoutMillis + handshakeTimeoutMillis, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		writer.lock();
+		try {
+			if (isConnected()) {
+				try {
+					drain();
+					aggregator.drainTo(unsent, TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()));
+					notices.drainAllTo(unsent);
+					if (unsent.size() > 0) {
+						writeOut(unsent.array(), 0, unsent.size());
+					}
+					out.flush();
+					unsent.reset();
+				} finally {
+					disconnect();
+				}
+			}
+		} finally {
+			writer.unlock();
+		}
+	}
+
+	/**
+	 * Closes the socket without sending anything more, leaving the next send to reconnect.
+	 */
+	// Must hold writer
+	private void disconnect() throws IOException {
+		try {
 			socket.shutdownOutput();
+		} finally {
 			socket.close();
 		}
 	}
 
-	private static String getProcessId(final String fallback) {
-		// Note: may fail in some JVM implementations
-		// therefore fallback has to be provided
+	/**
+	 * Writes the given lines if no other thread is writing, otherwise queues a copy of them for that thread, then
+	 * makes sure nothing is left queued without a writer.
+	 */
+	private void offer(byte[] lines, int offset, int length) throws IOException {
+		reopen();
 
-		// something like '<pid>@<hostname>', at least in SUN / Oracle JVMs
-		final String jvmName = ManagementFactory.getRuntimeMXBean().getName();
-		final int index = jvmName.indexOf('@');
+		if (writer.tryLock()) {
+			try {
+				writeLocked(lines, offset, length);
+			} finally {
+				writer.unlock();
+			}
+		} else if (queuedBytes.addAndGet(length) <= MAX_QUEUED_BYTES) {
+			queue.offer(Arrays.copyOfRange(lines, offset, offset + length));
+		} else {
+			queuedBytes.addAndGet(-length);
+			droppedLines.addAndGet(countLines(lines, offset, length));
+			return;
+		}
+
+		combine();
+	}
 
-		if (index < 1) {
-			// part before '@' empty (index = 0) / '@' not found (index = -1)
-			return fallback;
+	// Must hold writer
+	private void writeLocked(byte[] lines, int offset, int length) throws IOException {
+		if (!isConnected()) {
+			reconnect();
 		}
+		// Anything queued was given before these lines.
+		drain();
+		writeOut(lines, offset, length);
+	}
 
-		try {
-			return Long.toString(Long.parseLong(jvmName.substring(0, index)));
-		} catch (NumberFormatException e) {
-			// ignore
+	/**
+	 * Sends lines queued while the writing thread was letting go, which would otherwise wait for the next send.
+	 */
+	private void combine() throws IOException {
+		while (!queue.isEmpty() && writer.tryLock()) {
+			try {
+				if (!isConnected()) {
+					reconnect();
+				}
+				drain();
+			} finally {
+				writer.unlock();
+			}
 		}
-		return fallback;
 	}
 
-	private static String getPlatformInfo() {
-		return System.getProperty("os.arch", "unknown").replaceAll(" ", "_") + "-" + System.getProperty("os.name", "unknown").replaceAll(" ", "_") + System.getProperty("os.version", "").replaceAll(" ", "_");
+	// Must hold writer
+	private void drain() throws IOException {
+		byte[] lines;
+		while ((lines = queue.peek()) != null) {
+			writeOut(lines, 0, lines.length);
+			queue.poll();
+			queuedBytes.addAndGet(-lines.length);
+		}
 	}
 
-	private static String getRuntimeInfo() {
-		return System.getProperty("java.vendor", "java").replaceAll(" ", "_") + "/" + System.getProperty("java.version", "?").replaceAll(" ", "_");
+	// Must hold writer
+	private void writeOut(byte[] lines, int offset, int length) throws IOException {
+		try {
+			out.write(lines, offset, length);
+			bytesWritten += length;
+		} catch (IOException ioe) {
+			breaker.onFailure(System.nanoTime());
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Flushes the send buffer; only then has anything reached the network, so only then does the breaker close.
+	 */
+	// Must hold writer
+	private void flushOut() throws IOException {
+		try {
+			out.flush();
+			breaker.onSuccess();
+		} catch (IOException ioe) {
+			breaker.onFailure(System.nanoTime());
+			throw ioe;
+		}
 	}
 
-	private String getVersion() {
-		if (version == null) {
-			Properties props = new Properties();
-			InputStream stream = null;
+	private void startSending() {
+		if (sending || resumeSending) {
+			return;
+		}
+		synchronized (this) {
+			if (sending) {
+				return;
+			}
+			if (closed) {
+				// Left for whoever uses the connection again.
+				resumeSending = true;
+				return;
+			}
+			final long interval = aggregationIntervalMillis;
+			final long now = System.currentTimeMillis();
+			aggregationStart = now;
 			try {
-				stream = this.getClass().getClassLoader().getResourceAsStream("instrumental.properties");
-				props.load(stream);
-			} catch (IOException ioe) {
+				// Line intervals up with the clock, so each one is sent with the second it covers.
+				sendTask = scheduler().scheduleAtFixedRate(new Runnable() {
+					@Override
+					public void run() {
+						sendQueued();
+					}
+				}, interval - now % interval, interval, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// Whoever supplied the scheduler has shut it down, so hold everything as if closed.
+				LOGGER.warn("Unable to send aggregated metrics and notices to Instrumental, the scheduler is shut down", e);
+				closed = true;
+				resumeSending = true;
+				return;
+			}
+			sending = true;
+		}
+	}
+
+	/**
+	 * Stops sending in the background and lets its thread go, unless the scheduler was supplied, so a closed
+	 * connection isn't reopened behind its user's back.
+	 *
+	 * @return The thread's executor, shut down, or {@code null} if there was none or it was supplied.
+	 */
+	private synchronized ScheduledExecutorService stopSending() {
+		ScheduledExecutorService stopped = null;
+		closed = true;
+		resumeSending = sending || resumeSending;
+		if (sendTask != null) {
+			sendTask.cancel(false);
+			sendTask = null;
+		}
+		if (ownScheduler) {
+			stopped = scheduler;
+			stopped.shutdown();
+			scheduler = null;
+			ownScheduler = false;
+		}
+		sending = false;
+		return stopped;
+	}
 
+	/**
+	 * Undoes {@link #close()}: starts sending in the background again if anything was left to send.
+	 */
+	private void reopen() {
+		if (!closed) {
+			return;
+		}
+		synchronized (this) {
+			closed = false;
+			if (!resumeSending) {
+				return;
+			}
+			resumeSending = false;
+		}
+		startSending();
+	}
+
+	/**
+	 * @return The supplied scheduler, or else a thread which runs background tasks, started on first use.
+	 */
+	// Must hold this
+	private ScheduledExecutorService scheduler() {
+		if (scheduler == null) {
+			ownScheduler = true;
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					final Thread thread = new Thread(runnable, "instrumental-scheduler");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Sends the aggregates for the interval just ended, and as many queued notices as the rate limit allows, after any
+	 * left from intervals whose send failed. Those are only known to have failed, not to have gone unsent, so the
+	 * collector may see some of them twice.
+	 */
+	private void sendQueued() {
+		final long now = System.currentTimeMillis();
+		final long timestamp = TimeUnit.MILLISECONDS.toSeconds(aggregationStart);
+		aggregationStart = now;
+
+		try {
+			sendQueued(timestamp);
+		} catch (RuntimeException e) {
+			// Throwing would cancel every later send.
+			LOGGER.warn("Unable to send aggregated metrics and notices to Instrumental", e);
+		}
+	}
+
+	private void sendQueued(long timestamp) {
+		final int held;
+		final boolean connected;
+		writer.lock();
+		try {
+			if (closed) {
+				// Whatever is left goes out with close().
+				return;
+			}
+			held = unsent.size();
+			aggregator.drainTo(unsent, timestamp);
+			notices.drainTo(unsent, System.nanoTime());
+			if (unsent.size() == 0) {
+				return;
+			}
+			connected = isConnected();
+			if (connected) {
+				sendUnsent(held);
+			}
+		} finally {
+			writer.unlock();
+		}
+		if (connected) {
+			combineQuietly();
+			return;
+		}
+
+		// Connecting takes as long as the collector does to answer, so writers aren't made to wait behind it.
+		final Connection connection;
+		try {
+			connection = dial();
+		} catch (IOException ioe) {
+			writer.lock();
+			try {
+				retryLater(held, ioe);
 			} finally {
-				if (stream != null) {
-					try {
-						stream.close();
-					} catch (IOException ioe) {
-						// Nill
-					} finally {
-						stream = null;
-					}
+				writer.unlock();
+			}
+			return;
+		}
+
+		writer.lock();
+		try {
+			if (closed || isConnected()) {
+				// Closed or connected meanwhile; either way what's held goes out without this connection.
+				closeQuietly(connection.socket);
+				if (!closed) {
+					sendUnsent(held);
 				}
+			} else {
+				install(connection);
+				sendUnsent(held);
+			}
+		} finally {
+			writer.unlock();
+			combineQuietly();
+		}
+	}
+
+	/**
+	 * Writes and flushes what is held for the background sender, or keeps holding it if that fails.
+	 */
+	// Must hold writer
+	private void sendUnsent(int held) {
+		try {
+			drain();
+			writeOut(unsent.array(), 0, unsent.size());
+			flushOut();
+			unsent.reset();
+		} catch (IOException ioe) {
+			retryLater(held, ioe);
+		}
+	}
+
+	/**
+	 * Sends lines other threads queued while the background sender was writing.
+	 */
+	private void combineQuietly() {
+		try {
+			combine();
+		} catch (IOException ioe) {
+			disconnectQuietly();
+		}
+	}
+
+	/**
+	 * Holds on to the lines of a failed background send for the next one, as far as they fit, and disconnects so that
+	 * one starts afresh.
+	 *
+	 * @param held The size of the lines held from earlier failures, which are kept over the latest ones.
+	 */
+	// Must hold writer
+	private void retryLater(int held, IOException cause) {
+		if (unsent.size() > MAX_QUEUED_BYTES) {
+			droppedLines.addAndGet(countLines(unsent.array(), held, unsent.size() - held));
+			unsent.truncate(held);
+		}
+		if (breaker.getFailures() <= 1) {
+			LOGGER.warn("Unable to send aggregated metrics and notices to Instrumental, retrying next interval", cause);
+		} else {
+			LOGGER.debug("Unable to send aggregated metrics and notices to Instrumental, retrying next interval", cause);
+		}
+		disconnectQuietly();
+	}
+
+	private static void closeQuietly(Socket socket) {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Eat it.
 			}
+		}
+	}
+
+	private void disconnectQuietly() {
+		writer.lock();
+		try {
+			if (isConnected()) {
+				disconnect();
+			}
+		} catch (IOException e) {
+			// Eat it.
+		} finally {
+			writer.unlock();
+		}
+	}
+
+	private static int checkTimeout(long millis) {
+		if (millis <= 0 || millis > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Timeouts must be positive, and at most Integer.MAX_VALUE milliseconds");
+		}
+		return (int) millis;
+	}
 
-			version = props.getProperty("metrics-instrumental.version", "unknown.version");
+	private static int countLines(byte[] lines, int offset, int length) {
+		int count = 0;
+		for (int i = offset; i < offset + length; i++) {
+			if (lines[i] == '\n') {
+				count++;
+			}
 		}
-		return version;
+		return count;
 	}
 
 	protected String sanitizeName(String s) {
-		return ACCEPTED_NAMES.matcher(PARENS.matcher(COMMA_SPACE.matcher(s).replaceAll("-")).replaceAll("__")).replaceAll(".");
+		return LineEncoder.sanitizeName(s);
 	}
 
 	protected String sanitize(String s) {
-		return WHITESPACE.matcher(s).replaceAll(".");
+		return LineEncoder.sanitizeValue(s);
+	}
+
+	/**
+	 * A connected and authenticated socket, and the buffered stream to it.
+	 */
+	private static final class Connection {
+		private final Socket socket;
+		private final OutputStream out;
+
+		private Connection(Socket socket, OutputStream out) {
+			this.socket = socket;
+			this.out = out;
+		}
 	}
 }
@@ -0,0 +1,322 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.SocketFactory;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many reporters, for any number of registries and project API keys, on a few shared threads, sending each API
+ * key's metrics over one shared connection.
+ *
+ * Reporters started by a hub never start threads of their own, nor do the shared connections, whose aggregates and
+ * notices are sent from the hub's threads too. Reporters sharing an API key take turns reporting,
+ * so their lines go out through the one connection and send buffer. A reporter whose report fails drops the shared
+ * connection, as it would its own, and whichever reporter is next reconnects it.
+ *
+ * <pre>
+ * InstrumentalHub hub = new InstrumentalHub();
+ * hub.start(InstrumentalReporter.forRegistry(registry), "your_api_key", 5, TimeUnit.SECONDS);
+ * hub.sender("your_api_key").notice("Starting up...");
+ * </pre>
+ *
+ * Instances are thread-safe.
+ */
+public class InstrumentalHub implements Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(InstrumentalHub.class);
+
+	private final String hostname;
+	private final int port;
+	private final SocketFactory socketFactory;
+	private final ScheduledExecutorService executor;
+	private final ConcurrentMap<String, SharedSender> senders = new ConcurrentHashMap<String, SharedSender>();
+	private final ConcurrentMap<InstrumentalReporter, Registration> registrations = new ConcurrentHashMap<InstrumentalReporter, Registration>();
+	private boolean closed = false; // Guarded by this
+
+	/**
+	 * Creates a hub sending to Instrumentalapp.com, using the default collector URI, port and SocketFactory, which
+	 * reports on one thread.
+	 */
+	public InstrumentalHub() {
+		this("collector.instrumentalapp.com", 8000, SocketFactory.getDefault(), 1);
+	}
+
+	/**
+	 * @param hostname The collector to send to.
+	 * @param port The collector's port.
+	 * @param socketFactory A SocketFactory to use when creating the underlying sockets.
+	 * @param threads How many reports may run at once. Reports for the same API key never run at once, so more
+	 * threads than API keys don't help.
+	 */
+	public InstrumentalHub(String hostname, int port, SocketFactory socketFactory, int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1");
+		}
+		this.hostname = hostname;
+		this.port = port;
+		this.socketFactory = socketFactory;
+		final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads, new HubThreadFactory());
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		this.executor = executor;
+	}
+
+	/**
+	 * @return The sender sharing the connection for the given API key, which may also be used for notices and
+	 * anything else sent to that project. Closing it does nothing; the hub closes it.
+	 * @throws IllegalStateException If there is no connection for the API key yet, and the hub has been closed.
+	 */
+	public InstrumentalSender sender(String apiKey) {
+		SharedSender sender = senders.get(apiKey);
+		if (sender == null) {
+			// Under the same lock as close(), so every connection made is one it closes.
+			synchronized (this) {
+				if (closed) {
+					throw new IllegalStateException("The hub is closed");
+				}
+				sender = senders.get(apiKey);
+				if (sender == null) {
+					final Instrumental instrumental = new Instrumental(apiKey, hostname, port, socketFactory);
+					instrumental.setScheduler(executor);
+					sender = new SharedSender(instrumental);
+					senders.put(apiKey, sender);
+				}
+			}
+		}
+		return sender;
+	}
+
+	/**
+	 * Builds a reporter sending over the shared connection for the given API key, and starts reporting every period.
+	 * The reporter must be stopped with {@link #stop(InstrumentalReporter)}, not started or stopped itself.
+	 */
+	public InstrumentalReporter start(InstrumentalReporter.Builder builder, String apiKey, long period, TimeUnit unit) {
+		final SharedSender sender = (SharedSender) sender(apiKey);
+		final InstrumentalReporter reporter = builder.build(sender);
+		final Registration registration = new Registration(reporter, sender);
+		registrations.put(reporter, registration);
+		try {
+			registration.future = executor.scheduleAtFixedRate(registration, period, period, unit);
+		} catch (RuntimeException e) {
+			registrations.remove(reporter);
+			reporter.stop();
+			throw e;
+		}
+		return reporter;
+	}
+
+	/**
+	 * Stops a reporter started by this hub, leaving the shared connection open for the others.
+	 */
+	public void stop(InstrumentalReporter reporter) {
+		final Registration registration = registrations.remove(reporter);
+		if (registration == null) {
+			throw new IllegalArgumentException("The reporter was not started by this hub");
+		}
+		registration.stop();
+	}
+
+	/**
+	 * Stops every reporter, closes every connection, and lets the hub's threads go.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			closed = true;
+			executor.shutdown();
+		}
+		for (InstrumentalReporter reporter : new ArrayList<InstrumentalReporter>(registrations.keySet())) {
+			final Registration registration = registrations.remove(reporter);
+			if (registration != null) {
+				registration.stop();
+			}
+		}
+
+		IOException failure = null;
+		for (SharedSender sender : senders.values()) {
+			try {
+				sender.disconnect();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * A reporter's scheduled reports.
+	 */
+	private static final class Registration implements Runnable {
+		private final InstrumentalReporter reporter;
+		private final SharedSender sender;
+		private volatile ScheduledFuture<?> future;
+
+		private Registration(InstrumentalReporter reporter, SharedSender sender) {
+			this.reporter = reporter;
+			this.sender = sender;
+		}
+
+		@Override
+		public void run() {
+			synchronized (sender) {
+				sender.reporting = true;
+				try {
+					reporter.report();
+				} catch (RuntimeException e) {
+					// Throwing would cancel every later report.
+					LOGGER.warn("Unable to report to Instrumental", e);
+				} finally {
+					sender.reporting = false;
+				}
+			}
+		}
+
+		private void stop() {
+			final ScheduledFuture<?> future = this.future;
+			if (future != null) {
+				future.cancel(false);
+			}
+			// Waits for a report in progress
+			synchronized (sender) {
+				reporter.stop();
+			}
+		}
+	}
+
+	/**
+	 * The connection for one API key. It is only closed when a report fails, so the next reconnects, or by the hub.
+	 */
+	private static final class SharedSender implements BulkInstrumentalSender, SenderStats {
+		private final Instrumental instrumental;
+		private boolean reporting = false; // Guarded by this
+
+		private SharedSender(Instrumental instrumental) {
+			this.instrumental = instrumental;
+		}
+
+		@Override
+		public void connect() throws IllegalStateException, IOException {
+			instrumental.connect();
+		}
+
+		@Override
+		public void send(MetricType type, String name, String value, long timestamp) throws IOException {
+			instrumental.send(type, name, value, timestamp);
+		}
+
+		@Override
+		public void write(byte[] lines, int offset, int length) throws IOException {
+			instrumental.write(lines, offset, length);
+		}
+
+		@Override
+		public void notice(String name) {
+			instrumental.notice(name);
+		}
+
+		@Override
+		public void notice(String name, long duration, TimeUnit durationUnit) {
+			instrumental.notice(name, duration, durationUnit);
+		}
+
+		@Override
+		public void notice(String name, long start, TimeUnit startUnit, long duration, TimeUnit durationUnit) {
+			instrumental.notice(name, start, startUnit, duration, durationUnit);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			instrumental.flush();
+		}
+
+		@Override
+		public boolean isConnected() {
+			return instrumental.isConnected();
+		}
+
+		@Override
+		public int getFailures() {
+			return instrumental.getFailures();
+		}
+
+		@Override
+		public long getConnectAttempts() {
+			return instrumental.getConnectAttempts();
+		}
+
+		@Override
+		public long getConnectFailures() {
+			return instrumental.getConnectFailures();
+		}
+
+		@Override
+		public long getBytesWritten() {
+			return instrumental.getBytesWritten();
+		}
+
+		@Override
+		public long getDroppedLines() {
+			return instrumental.getDroppedLines();
+		}
+
+		@Override
+		public long getQueuedBytes() {
+			return instrumental.getQueuedBytes();
+		}
+
+		/**
+		 * Drops the connection if a report on it failed; otherwise does nothing, as other reporters are using it.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (Thread.holdsLock(this) && reporting) {
+				instrumental.close();
+			}
+		}
+
+		private void disconnect() throws IOException {
+			synchronized (this) {
+				instrumental.close();
+			}
+		}
+	}
+
+	private static final class HubThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			final Thread thread = new Thread(runnable, "instrumental-hub-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -21,6 +21,7 @@ import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.Metered;
+import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.ScheduledReporter;
@@ -29,11 +30,27 @@ import com.codahale.metrics.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.File;
 import java.io.IOException;
-import java.util.Locale;
-import java.util.Map;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
 import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 /**
  * Handles reporting to the Instrumental backend on a regularly scheduled basis.
@@ -54,7 +71,8 @@ public class InstrumentalReporter extends ScheduledReporter {
 
 	/**
 	 * A builder for a {@link InstrumentalReporter} instances. Defaults to not using a prefix, using the default clock,
-	 * converting rates to events/second, converting durations to milliseconds, and not filtering metrics.
+	 * converting rates to events/second, converting durations to milliseconds, not filtering metrics, and reporting
+	 * values with at most two decimal places.
 	 */
 	public static class Builder {
 		private final MetricRegistry registry;
@@ -63,6 +81,23 @@ public class InstrumentalReporter extends ScheduledReporter {
 		private TimeUnit rateUnit;
 		private TimeUnit durationUnit;
 		private MetricFilter filter;
+		private int nameCacheSize;
+		private Precision precision;
+		private File spoolFile;
+		private long spoolSize;
+		private long spoolReplayLimit;
+		private boolean countIncrements;
+		private long maxSilence;
+		private Set<MetricAttribute> attributes;
+		private List<Pattern> attributePatterns;
+		private List<Set<MetricAttribute>> patternAttributes;
+		private int parallelism;
+		private long gaugeTimeout;
+		private int maxGaugeMisses;
+		private List<Pattern> gaugeCachePatterns;
+		private List<Long> gaugeCacheTtls;
+		private String selfMetricsName;
+		private String mbeanName;
 
 		private Builder(MetricRegistry registry) {
 			this.registry = registry;
@@ -71,6 +106,23 @@ public class InstrumentalReporter extends ScheduledReporter {
 			this.rateUnit = TimeUnit.SECONDS;
 			this.durationUnit = TimeUnit.MILLISECONDS;
 			this.filter = MetricFilter.ALL;
+			this.nameCacheSize = MetricNames.DEFAULT_MAX_SIZE;
+			this.precision = new Precision();
+			this.spoolFile = null;
+			this.spoolSize = 0;
+			this.spoolReplayLimit = DEFAULT_SPOOL_REPLAY_LIMIT;
+			this.countIncrements = false;
+			this.maxSilence = 0;
+			this.attributes = EnumSet.allOf(MetricAttribute.class);
+			this.attributePatterns = new ArrayList<Pattern>();
+			this.patternAttributes = new ArrayList<Set<MetricAttribute>>();
+			this.parallelism = 1;
+			this.gaugeTimeout = 0;
+			this.maxGaugeMisses = GaugeEvaluator.DEFAULT_MAX_MISSES;
+			this.gaugeCachePatterns = new ArrayList<Pattern>();
+			this.gaugeCacheTtls = new ArrayList<Long>();
+			this.selfMetricsName = null;
+			this.mbeanName = null;
 		}
 
 		/**
@@ -118,7 +170,8 @@ public class InstrumentalReporter extends ScheduledReporter {
 		}
 
 		/**
-		 * Only report metrics which match the given filter.
+		 * Only report metrics which match the given filter. Scheduled reports apply the filter once, when each metric
+		 * is added to the registry, so it should only depend on the metric's name and type.
 		 *
 		 * @param filter a {@link MetricFilter}
 		 * @return {@code this}
@@ -128,20 +181,342 @@ public class InstrumentalReporter extends ScheduledReporter {
 			return this;
 		}
 
+		/**
+		 * Limit the number of metrics whose encoded names are cached between reports. Names of metrics beyond the limit
+		 * are encoded again on every report, so this should be larger than the number of metrics in the registry.
+		 *
+		 * @param nameCacheSize the maximum number of metrics to cache names for
+		 * @return {@code this}
+		 */
+		public Builder withNameCacheSize(int nameCacheSize) {
+			this.nameCacheSize = nameCacheSize;
+			return this;
+		}
+
+		/**
+		 * Report gauge values rounded to the given number of decimal places.
+		 *
+		 * @param places the number of decimal places, from 0 to 9
+		 * @return {@code this}
+		 */
+		public Builder withGaugePrecision(int places) {
+			this.precision.gauges = checkPrecision(places);
+			return this;
+		}
+
+		/**
+		 * Report timer durations rounded to the given number of decimal places.
+		 *
+		 * @param places the number of decimal places, from 0 to 9
+		 * @return {@code this}
+		 */
+		public Builder withDurationPrecision(int places) {
+			this.precision.durations = checkPrecision(places);
+			return this;
+		}
+
+		/**
+		 * Report meter and timer rates rounded to the given number of decimal places.
+		 *
+		 * @param places the number of decimal places, from 0 to 9
+		 * @return {@code this}
+		 */
+		public Builder withRatePrecision(int places) {
+			this.precision.rates = checkPrecision(places);
+			return this;
+		}
+
+		/**
+		 * Report histogram means, standard deviations and percentiles rounded to the given number of decimal places.
+		 *
+		 * @param places the number of decimal places, from 0 to 9
+		 * @return {@code this}
+		 */
+		public Builder withHistogramPrecision(int places) {
+			this.precision.histograms = checkPrecision(places);
+			return this;
+		}
+
+		/**
+		 * Only report the given attributes of histograms, meters and timers, unless a pattern given to
+		 * {@link #withAttributes(String, Set)} matches them. Counters always report their count.
+		 *
+		 * @param attributes the attributes to report
+		 * @return {@code this}
+		 */
+		public Builder withAttributes(Set<MetricAttribute> attributes) {
+			this.attributes = EnumSet.copyOf(checkAttributes(attributes));
+			return this;
+		}
+
+		/**
+		 * Only report the given attributes of histograms, meters and timers whose names match the given regular
+		 * expression, such as {@code http\..*}. Patterns are tried in the order they were added, and the first to match
+		 * the whole name decides. Each metric is only matched once, the first time it is reported.
+		 *
+		 * @param namePattern a regular expression matching registry names, before any prefix is added
+		 * @param attributes the attributes to report for matching metrics
+		 * @return {@code this}
+		 */
+		public Builder withAttributes(String namePattern, Set<MetricAttribute> attributes) {
+			this.attributePatterns.add(Pattern.compile(namePattern));
+			this.patternAttributes.add(EnumSet.copyOf(checkAttributes(attributes)));
+			return this;
+		}
+
+		/**
+		 * Evaluate metrics, including taking histogram and timer snapshots, on the given number of worker threads
+		 * rather than only on the reporting thread. Metrics are still sent in the same order. Worth it for registries
+		 * with many histograms and timers, or slow gauges.
+		 *
+		 * @param threads the number of worker threads; 1, the default, evaluates metrics on the reporting thread
+		 * @return {@code this}
+		 */
+		public Builder withParallelism(int threads) {
+			if (threads < 1) {
+				throw new IllegalArgumentException("threads must be at least 1");
+			}
+			this.parallelism = threads;
+			return this;
+		}
+
+		/**
+		 * Read each gauge on a separate thread, waiting at most the given time for it, so slow gauges can't hold up
+		 * the rest of a report. A gauge which takes longer is reported with its last value, and isn't read again until
+		 * the late read returns. By default gauges are read on the reporting thread, however long they take.
+		 *
+		 * @param timeout how long to wait for each gauge
+		 * @param unit the unit of {@code timeout}
+		 * @return {@code this}
+		 */
+		public Builder withGaugeTimeout(long timeout, TimeUnit unit) {
+			if (timeout <= 0) {
+				throw new IllegalArgumentException("timeout must be positive");
+			}
+			this.gaugeTimeout = unit.toNanos(timeout);
+			return this;
+		}
+
+		/**
+		 * Limit how many reports in a row a gauge which has timed out is reported with its last value. After that the
+		 * value is stale, and the gauge isn't reported until it answers in time again. Defaults to 3.
+		 *
+		 * @param misses the number of reports, or 0 to never report a previous value
+		 * @return {@code this}
+		 */
+		public Builder withMaxGaugeMisses(int misses) {
+			if (misses < 0) {
+				throw new IllegalArgumentException("misses must not be negative");
+			}
+			this.maxGaugeMisses = misses;
+			return this;
+		}
+
+		/**
+		 * Only read gauges whose names match the given regular expression once their last value is older than the
+		 * given time, and report the last value in between. Meant for gauges which are expensive to read. Patterns are
+		 * tried in the order they were added, and the first to match the whole name decides.
+		 *
+		 * @param namePattern a regular expression matching registry names, before any prefix is added
+		 * @param ttl how long to report a value before reading the gauge again
+		 * @param unit the unit of {@code ttl}
+		 * @return {@code this}
+		 */
+		public Builder cacheGauges(String namePattern, long ttl, TimeUnit unit) {
+			if (ttl <= 0) {
+				throw new IllegalArgumentException("ttl must be positive");
+			}
+			this.gaugeCachePatterns.add(Pattern.compile(namePattern));
+			this.gaugeCacheTtls.add(unit.toNanos(ttl));
+			return this;
+		}
+
+		/**
+		 * Register gauges of the reporter's own figures in the reported registry, under the given name, so they are
+		 * reported along with everything else: reports made and failed, how long the last report and flush took, lines
+		 * and bytes reported, bytes left in the spool, and the sender's connection attempts and failures, bytes written,
+		 * lines dropped and bytes queued. The gauges read the last completed report, and are removed when the reporter
+		 * is stopped.
+		 *
+		 * @param name the name to register the gauges under, such as {@code instrumental.reporter}
+		 * @return {@code this}
+		 */
+		public Builder reportSelfMetrics(String name) {
+			this.selfMetricsName = name;
+			return this;
+		}
+
+		/**
+		 * Register an {@link InstrumentalReporterMXBean} exposing the reporter's own figures with the platform MBean
+		 * server, as {@code com.e_gineering.metrics.instrumental:type=InstrumentalReporter,name=<name>}. It is
+		 * unregistered when the reporter is stopped.
+		 *
+		 * @param name the name distinguishing this reporter from any others
+		 * @return {@code this}
+		 */
+		public Builder registerMBean(String name) {
+			this.mbeanName = name;
+			return this;
+		}
+
+		/**
+		 * Report the counts of counters, histograms, meters and timers as increments: how much each count has grown
+		 * since the last report, rather than its total. This lets Instrumental sum counts across many instances, and
+		 * counts which have not changed are not sent at all. The first report of a metric increments it by its whole
+		 * count.
+		 *
+		 * @return {@code this}
+		 */
+		public Builder reportCountsAsIncrements() {
+			this.countIncrements = true;
+			return this;
+		}
+
+		/**
+		 * Skip sending values which are the same as when they were last sent, as reported with the configured
+		 * precision. Unchanged values are still sent once they have gone unsent for the given time, so their series
+		 * don't look stale. Increments are always sent.
+		 *
+		 * @param maxSilence the longest an unchanged value may go unsent, at least one second
+		 * @param unit the unit of {@code maxSilence}
+		 * @return {@code this}
+		 */
+		public Builder suppressUnchangedValues(long maxSilence, TimeUnit unit) {
+			final long seconds = unit.toSeconds(maxSilence);
+			if (seconds <= 0) {
+				throw new IllegalArgumentException("maxSilence must be at least one second");
+			}
+			this.maxSilence = seconds;
+			return this;
+		}
+
+		/**
+		 * Spool metrics to the given file while Instrumental is unreachable, and replay them with their original
+		 * timestamps once it can be reached again. The file is memory-mapped, and lines which would grow it past the
+		 * given size are dropped. Lines left in the file when the application stops are replayed by the next reporter
+		 * using it. A report which fails partway through, even as it is flushed, is spooled whole, so lines which
+		 * reached Instrumental before the failure may be sent twice.
+		 *
+		 * @param file the file to spool to, created if it does not exist
+		 * @param maxBytes the largest the spool may grow to, in bytes
+		 * @return {@code this}
+		 */
+		public Builder spoolTo(File file, long maxBytes) {
+			if (maxBytes <= 0 || maxBytes > Spool.MAX_CAPACITY) {
+				throw new IllegalArgumentException("maxBytes must be between 1 and " + Spool.MAX_CAPACITY);
+			}
+			this.spoolFile = file;
+			this.spoolSize = maxBytes;
+			return this;
+		}
+
+		/**
+		 * Limit how much of the spool is replayed on each report, so catching up after an outage doesn't flood the
+		 * collector. Defaults to 1MB per report.
+		 *
+		 * @param bytesPerReport the most bytes of spooled metrics to send with each report
+		 * @return {@code this}
+		 */
+		public Builder withSpoolReplayLimit(long bytesPerReport) {
+			if (bytesPerReport <= 0) {
+				throw new IllegalArgumentException("bytesPerReport must be positive");
+			}
+			this.spoolReplayLimit = bytesPerReport;
+			return this;
+		}
+
 		/**
 		 * Builds a {@link InstrumentalReporter} with the given properties, sending metrics
-		 * using the given {@link InstrumentalSender}
+		 * using the given {@link InstrumentalSender}. Senders which are not {@link BulkInstrumentalSender}s are sent
+		 * one line at a time.
 		 */
 		public InstrumentalReporter build(InstrumentalSender instrumental) {
-			return new InstrumentalReporter(registry, instrumental, clock, prefix, rateUnit, durationUnit, filter);
+			final Spool spool = spoolFile == null ? null : new Spool(spoolFile, spoolSize, WRITE_THRESHOLD);
+			return new InstrumentalReporter(registry, instrumental, clock, prefix, rateUnit, durationUnit, filter, nameCacheSize, precision, spool, spoolReplayLimit, countIncrements, maxSilence,
+			                                new AttributeRules(attributes, attributePatterns, patternAttributes), parallelism, gaugeEvaluator(), selfMetricsName, mbeanName);
+		}
+
+		private GaugeEvaluator gaugeEvaluator() {
+			if (gaugeTimeout == 0 && gaugeCachePatterns.isEmpty()) {
+				return null;
+			}
+			return new GaugeEvaluator(gaugeTimeout, maxGaugeMisses, gaugeCachePatterns, gaugeCacheTtls);
+		}
+
+		private static Set<MetricAttribute> checkAttributes(Set<MetricAttribute> attributes) {
+			if (attributes.isEmpty()) {
+				throw new IllegalArgumentException("At least one attribute must be reported; filter out metrics which shouldn't be reported instead");
+			}
+			return attributes;
 		}
+
+		private static int checkPrecision(int places) {
+			if (places < 0 || places > LineEncoder.MAX_PRECISION) {
+				throw new IllegalArgumentException("Precision must be between 0 and " + LineEncoder.MAX_PRECISION);
+			}
+			return places;
+		}
+	}
+
+	/**
+	 * The number of decimal places reported for each kind of value.
+	 */
+	private static final class Precision {
+		private int gauges = 2;
+		private int durations = 2;
+		private int rates = 2;
+		private int histograms = 2;
 	}
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(InstrumentalReporter.class);
 
-	private final InstrumentalSender instrumental;
+	/**
+	 * Encoded lines are handed to the sender once they reach this many bytes.
+	 */
+	private static final int WRITE_THRESHOLD = 16 * 1024;
+
+	private static final long DEFAULT_SPOOL_REPLAY_LIMIT = 1024 * 1024;
+
+	/**
+	 * A parallel report is split into this many tasks per worker, so one slow task doesn't leave the others idle.
+	 */
+	private static final int TASKS_PER_WORKER = 4;
+
+	private final MetricRegistry registry;
+	private final BulkInstrumentalSender instrumental;
 	private final Clock clock;
-	private final String prefix;
+	private final MetricNames names;
+	private final MetricIndex index;
+	private final Batch batch;
+	private final int gaugePrecision;
+	private final int durationPrecision;
+	private final int ratePrecision;
+	private final int histogramPrecision;
+	private final Spool spool;
+	private final long spoolReplayLimit;
+	private final LineEncoder unflushed;
+	private final CountTable counts;
+	private final SentValues sentValues;
+	private final AttributeRules attributeRules;
+	private final ExecutorService workers;
+	private final GaugeEvaluator gaugeEvaluator;
+	private final ReporterStats stats;
+	private final List<String> selfMetricNames;
+	private final ObjectName mbeanName;
+
+	// Used by reports of the given maps, and by parallel reports; replaced if a report is abandoned while tasks may
+	// still be using them.
+	private Metrics metrics;
+	private Batch[] batches;
+
+	/**
+	 * Whether the rest of the current report goes to the spool, because Instrumental could not be reached.
+	 */
+	private boolean spooling;
+
+	// The lines, and their bytes, sent or spooled so far by the current report.
+	private long reportedLines;
+	private long reportedBytes;
 
 	private InstrumentalReporter(MetricRegistry registry,
 	                             InstrumentalSender instrumental,
@@ -149,51 +524,155 @@ public class InstrumentalReporter extends ScheduledReporter {
 	                             String prefix,
 	                             TimeUnit rateUnit,
 	                             TimeUnit durationUnit,
-	                             MetricFilter filter) {
+	                             MetricFilter filter,
+	                             int nameCacheSize,
+	                             Precision precision,
+	                             Spool spool,
+	                             long spoolReplayLimit,
+	                             boolean countIncrements,
+	                             long maxSilence,
+	                             AttributeRules attributeRules,
+	                             int parallelism,
+	                             GaugeEvaluator gaugeEvaluator,
+	                             String selfMetricsName,
+	                             String mbeanName) {
 		super(registry, "instrumental-reporter", filter, rateUnit, durationUnit);
-		this.instrumental = instrumental;
+		this.registry = registry;
+		this.instrumental = instrumental instanceof BulkInstrumentalSender ? (BulkInstrumentalSender) instrumental : new PerLineSender(instrumental);
 		this.clock = clock;
-		this.prefix = prefix;
+		this.names = new MetricNames(prefix, nameCacheSize);
+		this.index = new MetricIndex(names, filter);
+		this.batch = new Batch(true);
+		this.gaugePrecision = precision.gauges;
+		this.durationPrecision = precision.durations;
+		this.ratePrecision = precision.rates;
+		this.histogramPrecision = precision.histograms;
+		this.spool = spool;
+		this.spoolReplayLimit = spoolReplayLimit;
+		this.unflushed = spool == null ? null : new LineEncoder(WRITE_THRESHOLD);
+		this.counts = countIncrements ? new CountTable() : null;
+		this.sentValues = maxSilence > 0 ? new SentValues(maxSilence) : null;
+		this.attributeRules = attributeRules;
+		this.metrics = new Metrics();
+		if (parallelism > 1) {
+			this.workers = Executors.newFixedThreadPool(parallelism, new WorkerThreadFactory());
+			this.batches = newBatches(parallelism * TASKS_PER_WORKER);
+		} else {
+			this.workers = null;
+		}
+		this.gaugeEvaluator = gaugeEvaluator;
+		this.stats = new ReporterStats(instrumental);
+		this.selfMetricNames = new ArrayList<String>();
+		if (selfMetricsName != null) {
+			for (ReporterStats.Stat stat : ReporterStats.Stat.values()) {
+				final String name = MetricRegistry.name(selfMetricsName, stat.getName());
+				registry.register(name, stat.gauge(stats));
+				selfMetricNames.add(name);
+			}
+		}
+		this.mbeanName = mbeanName == null ? null : registerMBean(stats, mbeanName);
+		registry.addListener(index);
+	}
+
+	/**
+	 * @return the reporter's own figures, as also exposed by {@link Builder#registerMBean(String)}
+	 */
+	public InstrumentalReporterMXBean getStats() {
+		return stats;
+	}
+
+	/**
+	 * Reports the metrics kept by the reporter's index of the registry, rather than copying them out of the registry
+	 * on every report.
+	 */
+	@Override
+	public void report() {
+		synchronized (this) {
+			report(index.metrics());
+		}
 	}
 
 	@Override
 	public void report(SortedMap<String, Gauge> gauges, SortedMap<String, Counter> counters, SortedMap<String, Histogram> histograms, SortedMap<String, Meter> meters, SortedMap<String, Timer> timers) {
+		final Metrics metrics = this.metrics;
+		metrics.addAll(names, gauges, Metrics.GAUGE);
+		metrics.addAll(names, counters, Metrics.COUNTER);
+		metrics.addAll(names, histograms, Metrics.HISTOGRAM);
+		metrics.addAll(names, meters, Metrics.METER);
+		metrics.addAll(names, timers, Metrics.TIMER);
+		try {
+			report(metrics);
+		} finally {
+			// Unless an abandoned report left it to tasks which may still be running
+			if (metrics == this.metrics) {
+				metrics.clear();
+			}
+		}
+	}
+
+	private void report(Metrics metrics) {
 		final long timestamp = clock.getTime() / 1000;
+		final long start = System.nanoTime();
+		reportedLines = 0;
+		reportedBytes = 0;
+		boolean succeeded = false;
 
 		// oh it'd be lovely to use Java 7 here
 		try {
-			if (!instrumental.isConnected()) {
-				instrumental.connect();
+			spooling = false;
+			if (unflushed != null) {
+				unflushed.reset();
 			}
 
-			for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
-				reportGauge(entry.getKey(), entry.getValue(), timestamp);
+			if (!instrumental.isConnected()) {
+				connect();
 			}
 
-			for (Map.Entry<String, Counter> entry : counters.entrySet()) {
-				reportCounter(entry.getKey(), entry.getValue(), timestamp);
+			final int used;
+			if (workers == null) {
+				reportSerially(metrics, timestamp);
+				used = 0;
+			} else {
+				used = reportInParallel(metrics, timestamp);
 			}
 
-			for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
-				reportHistogram(entry.getKey(), entry.getValue(), timestamp);
+			if (!spooling) {
+				final long flushStart = System.nanoTime();
+				try {
+					instrumental.flush();
+					stats.onFlush(System.nanoTime() - flushStart);
+				} catch (IOException e) {
+					if (spool == null) {
+						throw e;
+					}
+					spoolUnflushed(e);
+				}
 			}
 
-			for (Map.Entry<String, Meter> entry : meters.entrySet()) {
-				reportMetered(entry.getKey(), entry.getValue(), timestamp);
+			// This report has been sent, or spooled to be sent later, so the next one is measured from here.
+			batch.commit(timestamp);
+			for (int i = 0; i < used; i++) {
+				batches[i].commit(timestamp);
 			}
 
-			for (Map.Entry<String, Timer> entry : timers.entrySet()) {
-				reportTimer(entry.getKey(), entry.getValue(), timestamp);
+			if (!spooling) {
+				replaySpool();
 			}
-
-			instrumental.flush();
+			succeeded = true;
 		} catch (IOException e) {
-			LOGGER.warn("Unable to report to Instrumental", instrumental, e);
+			if (e instanceof CircuitOpenException) {
+				// Already logged when the connection failed.
+				LOGGER.debug("Unable to report to Instrumental", instrumental, e);
+			} else {
+				LOGGER.warn("Unable to report to Instrumental", instrumental, e);
+			}
 			try {
 				instrumental.close();
 			} catch (IOException e1) {
 				LOGGER.warn("Error closing Instrumental", instrumental, e1);
 			}
+		} finally {
+			recordReport(System.nanoTime() - start, succeeded);
 		}
 	}
 
@@ -202,113 +681,494 @@ public class InstrumentalReporter extends ScheduledReporter {
 		try {
 			super.stop();
 		} finally {
+			registry.removeListener(index);
+			for (String name : selfMetricNames) {
+				registry.remove(name);
+			}
+			if (mbeanName != null) {
+				unregisterMBean(mbeanName);
+			}
+
+			if (workers != null) {
+				workers.shutdown();
+			}
+			if (gaugeEvaluator != null) {
+				gaugeEvaluator.stop();
+			}
+
 			try {
 				instrumental.close();
 			} catch (IOException e) {
 				LOGGER.debug("Error disconnecting from Instrumental", instrumental, e);
 			}
+
+			if (spool != null) {
+				try {
+					spool.close();
+				} catch (IOException e) {
+					LOGGER.debug("Error closing spool", e);
+				}
+			}
 		}
 	}
 
-	private void reportTimer(String name, Timer timer, long timestamp) throws IOException {
-		final Snapshot snapshot = timer.getSnapshot();
-
-		instrumental.send(MetricType.GAUGE, prefix(name, "max"), format(convertDuration(snapshot.getMax())), timestamp);
-		instrumental.send(MetricType.GAUGE, prefix(name, "mean"), format(convertDuration(snapshot.getMean())), timestamp);
-		instrumental.send(MetricType.GAUGE, prefix(name, "min"), format(convertDuration(snapshot.getMin())), timestamp);
-		instrumental.send(MetricType.GAUGE, prefix(name, "stddev"),
-				             format(convertDuration(snapshot.getStdDev())),
-				             timestamp);
-		instrumental.send(MetricType.GAUGE, prefix(name, "p50"),
-				             format(convertDuration(snapshot.getMedian())),
-				             timestamp);
-		instrumental.send(MetricType.GAUGE, prefix(name, "p75"),
-				             format(convertDuration(snapshot.get75thPercentile())),
-				             timestamp);
-		instrumental.send(MetricType.GAUGE, prefix(name, "p95"),
-				             format(convertDuration(snapshot.get95thPercentile())),
-				             timestamp);
-		instrumental.send(MetricType.GAUGE, prefix(name, "p98"),
-				             format(convertDuration(snapshot.get98thPercentile())),
-				             timestamp);
-		instrumental.send(MetricType.GAUGE, prefix(name, "p99"),
-				             format(convertDuration(snapshot.get99thPercentile())),
-				             timestamp);
-		instrumental.send(MetricType.GAUGE, prefix(name, "p999"),
-				             format(convertDuration(snapshot.get999thPercentile())),
-				             timestamp);
-
-		reportMetered(name, timer, timestamp);
+	private void reportSerially(Metrics metrics, long timestamp) throws IOException {
+		batch.reset();
+		batch.report(metrics, 0, metrics.size, timestamp);
+		writeLines(batch);
 	}
 
-	private void reportMetered(String name, Metered meter, long timestamp) throws IOException {
-		instrumental.send(MetricType.GAUGE, prefix(name, "count"), format(meter.getCount()), timestamp);
-		instrumental.send(MetricType.GAUGE, prefix(name, "m1_rate"),
-				             format(convertRate(meter.getOneMinuteRate())),
-				             timestamp);
-		instrumental.send(MetricType.GAUGE, prefix(name, "m5_rate"),
-				             format(convertRate(meter.getFiveMinuteRate())),
-				             timestamp);
-		instrumental.send(MetricType.GAUGE, prefix(name, "m15_rate"),
-				             format(convertRate(meter.getFifteenMinuteRate())),
-				             timestamp);
-		instrumental.send(MetricType.GAUGE, prefix(name, "mean_rate"),
-				             format(convertRate(meter.getMeanRate())),
-				             timestamp);
+	/**
+	 * Splits the report into ranges of metrics which are encoded by the workers, and writes each range's lines in
+	 * order as soon as it, and every range before it, is done.
+	 *
+	 * @return the number of batches used
+	 */
+	private int reportInParallel(final Metrics metrics, final long timestamp) throws IOException {
+		// Names were resolved up front, so each worker only touches the entries in its own range.
+		final int tasks = Math.min(batches.length, metrics.size);
+		final List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks);
+		boolean completed = false;
+		try {
+			for (int task = 0; task < tasks; task++) {
+				final Batch batch = batches[task];
+				final int from = (int) ((long) metrics.size * task / tasks);
+				final int to = (int) ((long) metrics.size * (task + 1) / tasks);
+				batch.reset();
+				futures.add(workers.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						batch.report(metrics, from, to, timestamp);
+						return null;
+					}
+				}));
+			}
+
+			for (int task = 0; task < tasks; task++) {
+				await(futures.get(task));
+				writeLines(batches[task]);
+			}
+			completed = true;
+		} finally {
+			if (!completed) {
+				// Tasks may still be running, so the next report mustn't share anything with them.
+				for (Future<Void> future : futures) {
+					future.cancel(true);
+				}
+				this.metrics = new Metrics();
+				this.batches = newBatches(batches.length);
+			}
+		}
+		return tasks;
 	}
 
-	private void reportHistogram(String name, Histogram histogram, long timestamp) throws IOException {
-		final Snapshot snapshot = histogram.getSnapshot();
-		instrumental.send(MetricType.GAUGE, prefix(name, "count"), format(histogram.getCount()), timestamp);
-		instrumental.send(MetricType.GAUGE, prefix(name, "max"), format(snapshot.getMax()), timestamp);
-		instrumental.send(MetricType.GAUGE, prefix(name, "mean"), format(snapshot.getMean()), timestamp);
-		instrumental.send(MetricType.GAUGE, prefix(name, "min"), format(snapshot.getMin()), timestamp);
-		instrumental.send(MetricType.GAUGE, prefix(name, "stddev"), format(snapshot.getStdDev()), timestamp);
-		instrumental.send(MetricType.GAUGE, prefix(name, "p50"), format(snapshot.getMedian()), timestamp);
-		instrumental.send(MetricType.GAUGE, prefix(name, "p75"), format(snapshot.get75thPercentile()), timestamp);
-		instrumental.send(MetricType.GAUGE, prefix(name, "p95"), format(snapshot.get95thPercentile()), timestamp);
-		instrumental.send(MetricType.GAUGE, prefix(name, "p98"), format(snapshot.get98thPercentile()), timestamp);
-		instrumental.send(MetricType.GAUGE, prefix(name, "p99"), format(snapshot.get99thPercentile()), timestamp);
-		instrumental.send(MetricType.GAUGE, prefix(name, "p999"), format(snapshot.get999thPercentile()), timestamp);
+	private static void await(Future<Void> future) throws IOException {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while evaluating metrics");
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
 	}
 
-	private void reportCounter(String name, Counter counter, long timestamp) throws IOException {
-		instrumental.send(MetricType.GAUGE, prefix(name, "count"), format(counter.getCount()), timestamp);
+	private Batch[] newBatches(int count) {
+		final Batch[] batches = new Batch[count];
+		for (int i = 0; i < count; i++) {
+			batches[i] = new Batch(false);
+		}
+		return batches;
 	}
 
-	private void reportGauge(String name, Gauge gauge, long timestamp) throws IOException {
-		final String value = format(gauge.getValue());
-		if (value != null) {
-			instrumental.send(MetricType.GAUGE, prefix(name), value, timestamp);
+	/**
+	 * Works out which attributes to report for the metric, the first time it is reported.
+	 */
+	private int attributesOf(MetricNames.Entry name) {
+		int attributes = name.reportedAttributes;
+		if (attributes == AttributeRules.UNRESOLVED) {
+			attributes = attributeRules.resolve(name.getName());
+			name.reportedAttributes = attributes;
 		}
+		return attributes;
 	}
 
-	private String prefix(String... components) {
-		return MetricRegistry.name(prefix, components);
+	/**
+	 * Encodes the lines for some of the metrics in a report, along with the counts and values those lines will commit
+	 * once sent. A serial report uses a single batch which streams its lines to the sender as they fill; a parallel
+	 * report fills one batch per task and writes them in order once each is complete.
+	 */
+	private final class Batch {
+		private final LineEncoder lines = new LineEncoder(WRITE_THRESHOLD + LineEncoder.DEFAULT_CAPACITY);
+		private final CountTable.Pending pendingCounts = new CountTable.Pending();
+		private final SentValues.Pending pendingValues = new SentValues.Pending();
+		private final boolean streaming;
+		private int lineCount = 0;
+
+		/**
+		 * @param streaming whether to write lines to the sender as they fill, rather than keeping them all
+		 */
+		private Batch(boolean streaming) {
+			this.streaming = streaming;
+		}
+
+		/**
+		 * Forgets anything left from a report which didn't complete.
+		 */
+		private void reset() {
+			lines.reset();
+			lineCount = 0;
+			pendingCounts.clear();
+			pendingValues.clear();
+		}
+
+		/**
+		 * Commits the counts and values this batch sent.
+		 */
+		private void commit(long timestamp) {
+			if (counts != null) {
+				counts.commit(pendingCounts);
+			}
+			if (sentValues != null) {
+				sentValues.commit(pendingValues, timestamp);
+			}
+		}
+
+		/**
+		 * Encodes the given range of the report's metrics.
+		 */
+		private void report(Metrics metrics, int from, int to, long timestamp) throws IOException {
+			for (int i = from; i < to; i++) {
+				final MetricNames.Entry name = metrics.names[i];
+				final Metric metric = metrics.metrics[i];
+				switch (metrics.kinds[i]) {
+					case Metrics.GAUGE:
+						reportGauge(name, (Gauge) metric, timestamp);
+						break;
+					case Metrics.COUNTER:
+						reportCounter(name, (Counter) metric, timestamp);
+						break;
+					case Metrics.HISTOGRAM:
+						reportHistogram(name, (Histogram) metric, timestamp);
+						break;
+					case Metrics.METER:
+						reportMeter(name, (Meter) metric, timestamp);
+						break;
+					default:
+						reportTimer(name, (Timer) metric, timestamp);
+						break;
+				}
+			}
+		}
+
+		private void reportTimer(MetricNames.Entry name, Timer timer, long timestamp) throws IOException {
+			final int attributes = attributesOf(name);
+			if ((attributes & AttributeRules.SNAPSHOT) != 0) {
+				final Snapshot snapshot = timer.getSnapshot();
+
+				send(attributes, name, MetricAttribute.MAX, convertDuration(snapshot.getMax()), durationPrecision, timestamp);
+				send(attributes, name, MetricAttribute.MEAN, convertDuration(snapshot.getMean()), durationPrecision, timestamp);
+				send(attributes, name, MetricAttribute.MIN, convertDuration(snapshot.getMin()), durationPrecision, timestamp);
+				send(attributes, name, MetricAttribute.STDDEV, convertDuration(snapshot.getStdDev()), durationPrecision, timestamp);
+				send(attributes, name, MetricAttribute.P50, convertDuration(snapshot.getMedian()), durationPrecision, timestamp);
+				send(attributes, name, MetricAttribute.P75, convertDuration(snapshot.get75thPercentile()), durationPrecision, timestamp);
+				send(attributes, name, MetricAttribute.P95, convertDuration(snapshot.get95thPercentile()), durationPrecision, timestamp);
+				send(attributes, name, MetricAttribute.P98, convertDuration(snapshot.get98thPercentile()), durationPrecision, timestamp);
+				send(attributes, name, MetricAttribute.P99, convertDuration(snapshot.get99thPercentile()), durationPrecision, timestamp);
+				send(attributes, name, MetricAttribute.P999, convertDuration(snapshot.get999thPercentile()), durationPrecision, timestamp);
+			}
+
+			reportMetered(attributes, name, timer, timestamp);
+		}
+
+		private void reportMeter(MetricNames.Entry name, Meter meter, long timestamp) throws IOException {
+			reportMetered(attributesOf(name), name, meter, timestamp);
+		}
+
+		private void reportMetered(int attributes, MetricNames.Entry name, Metered meter, long timestamp) throws IOException {
+			if (AttributeRules.includes(attributes, MetricAttribute.COUNT)) {
+				sendCount(name, meter.getCount(), timestamp);
+			}
+			send(attributes, name, MetricAttribute.M1_RATE, convertRate(meter.getOneMinuteRate()), ratePrecision, timestamp);
+			send(attributes, name, MetricAttribute.M5_RATE, convertRate(meter.getFiveMinuteRate()), ratePrecision, timestamp);
+			send(attributes, name, MetricAttribute.M15_RATE, convertRate(meter.getFifteenMinuteRate()), ratePrecision, timestamp);
+			send(attributes, name, MetricAttribute.MEAN_RATE, convertRate(meter.getMeanRate()), ratePrecision, timestamp);
+		}
+
+		private void reportHistogram(MetricNames.Entry name, Histogram histogram, long timestamp) throws IOException {
+			final int attributes = attributesOf(name);
+			if (AttributeRules.includes(attributes, MetricAttribute.COUNT)) {
+				sendCount(name, histogram.getCount(), timestamp);
+			}
+			if ((attributes & AttributeRules.SNAPSHOT) != 0) {
+				final Snapshot snapshot = histogram.getSnapshot();
+				send(attributes, name, MetricAttribute.MAX, snapshot.getMax(), timestamp);
+				send(attributes, name, MetricAttribute.MEAN, snapshot.getMean(), histogramPrecision, timestamp);
+				send(attributes, name, MetricAttribute.MIN, snapshot.getMin(), timestamp);
+				send(attributes, name, MetricAttribute.STDDEV, snapshot.getStdDev(), histogramPrecision, timestamp);
+				send(attributes, name, MetricAttribute.P50, snapshot.getMedian(), histogramPrecision, timestamp);
+				send(attributes, name, MetricAttribute.P75, snapshot.get75thPercentile(), histogramPrecision, timestamp);
+				send(attributes, name, MetricAttribute.P95, snapshot.get95thPercentile(), histogramPrecision, timestamp);
+				send(attributes, name, MetricAttribute.P98, snapshot.get98thPercentile(), histogramPrecision, timestamp);
+				send(attributes, name, MetricAttribute.P99, snapshot.get99thPercentile(), histogramPrecision, timestamp);
+				send(attributes, name, MetricAttribute.P999, snapshot.get999thPercentile(), histogramPrecision, timestamp);
+			}
+		}
+
+		private void reportCounter(MetricNames.Entry name, Counter counter, long timestamp) throws IOException {
+			sendCount(name, counter.getCount(), timestamp);
+		}
+
+		private void reportGauge(MetricNames.Entry name, Gauge gauge, long timestamp) throws IOException {
+			final int start = lines.size();
+			if (gaugeEvaluator == null && gauge instanceof LongGauge) {
+				final int valueStart = startLine(MetricType.GAUGE, name.encoded()).size();
+				lines.append(((LongGauge) gauge).getLongValue());
+				endValue(name, SentValues.VALUE, start, valueStart, timestamp);
+			} else if (gaugeEvaluator == null && gauge instanceof DoubleGauge) {
+				final int valueStart = startLine(MetricType.GAUGE, name.encoded()).size();
+				lines.append(((DoubleGauge) gauge).getDoubleValue(), gaugePrecision);
+				endValue(name, SentValues.VALUE, start, valueStart, timestamp);
+			} else {
+				final Object value = gaugeEvaluator == null ? gauge.getValue() : gaugeEvaluator.valueOf(name, gauge);
+				if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+					final int valueStart = startLine(MetricType.GAUGE, name.encoded()).size();
+					lines.append(((Number) value).longValue());
+					endValue(name, SentValues.VALUE, start, valueStart, timestamp);
+				} else if (value instanceof Double || value instanceof Float) {
+					final int valueStart = startLine(MetricType.GAUGE, name.encoded()).size();
+					lines.append(((Number) value).doubleValue(), gaugePrecision);
+					endValue(name, SentValues.VALUE, start, valueStart, timestamp);
+				}
+			}
+		}
+
+		/**
+		 * Sends a metric's count, either as a gauge or as an increment since the last report.
+		 */
+		private void sendCount(MetricNames.Entry name, long count, long timestamp) throws IOException {
+			// Metrics beyond the name cache have nowhere to remember their previous count, so are sent as totals.
+			if (counts != null && name.getSlot() != MetricNames.Entry.NO_SLOT) {
+				final long delta = counts.delta(pendingCounts, name, count);
+				if (delta != 0) {
+					startLine(MetricType.INCREMENT, name.encoded(MetricAttribute.COUNT)).append(delta);
+					endLine(timestamp);
+				}
+			} else {
+				send(name, MetricAttribute.COUNT, count, timestamp);
+			}
+		}
+
+		private void send(int attributes, MetricNames.Entry name, MetricAttribute attribute, long value, long timestamp) throws IOException {
+			if (AttributeRules.includes(attributes, attribute)) {
+				send(name, attribute, value, timestamp);
+			}
+		}
+
+		private void send(int attributes, MetricNames.Entry name, MetricAttribute attribute, double value, int precision, long timestamp) throws IOException {
+			if (AttributeRules.includes(attributes, attribute)) {
+				send(name, attribute, value, precision, timestamp);
+			}
+		}
+
+		private void send(MetricNames.Entry name, MetricAttribute attribute, long value, long timestamp) throws IOException {
+			final int start = lines.size();
+			final int valueStart = startLine(MetricType.GAUGE, name.encoded(attribute)).size();
+			lines.append(value);
+			endValue(name, attribute.ordinal(), start, valueStart, timestamp);
+		}
+
+		private void send(MetricNames.Entry name, MetricAttribute attribute, double value, int precision, long timestamp) throws IOException {
+			final int start = lines.size();
+			final int valueStart = startLine(MetricType.GAUGE, name.encoded(attribute)).size();
+			lines.append(value, precision);
+			endValue(name, attribute.ordinal(), start, valueStart, timestamp);
+		}
+
+		/**
+		 * Ends a gauge line, or takes it back if the value hasn't changed since it was last sent.
+		 *
+		 * @param start where the line starts
+		 * @param valueStart where its value starts
+		 */
+		private void endValue(MetricNames.Entry name, int index, int start, int valueStart, long timestamp) throws IOException {
+			if (sentValues != null && !sentValues.shouldSend(pendingValues, name, index, lines.hash(valueStart), timestamp)) {
+				lines.truncate(start);
+			} else {
+				endLine(timestamp);
+			}
+		}
+
+		/**
+		 * Starts a line for the named metric, leaving the caller to append its value.
+		 */
+		private LineEncoder startLine(MetricType type, byte[] name) {
+			return lines.appendAscii(type.getProtocolKey())
+			            .space()
+			            .append(name)
+			            .space();
+		}
+
+		private void endLine(long timestamp) throws IOException {
+			lines.space()
+			     .append(timestamp)
+			     .newLine();
+			lineCount++;
+			if (streaming && lines.size() >= WRITE_THRESHOLD) {
+				writeLines(this);
+			}
+		}
+	}
+
+	private void connect() throws IOException {
+		try {
+			instrumental.connect();
+		} catch (IllegalStateException e) {
+			// Another thread sharing the sender connected it first.
+		} catch (IOException e) {
+			if (spool == null) {
+				throw e;
+			}
+			startSpooling(e);
+		}
+	}
+
+	private void writeLines(Batch batch) throws IOException {
+		final LineEncoder lines = batch.lines;
+		if (lines.size() > 0) {
+			if (!spooling) {
+				try {
+					instrumental.write(lines.array(), 0, lines.size());
+					if (unflushed != null) {
+						unflushed.append(lines.array(), 0, lines.size());
+					}
+				} catch (IOException e) {
+					if (spool == null) {
+						throw e;
+					}
+					spoolUnflushed(e);
+				}
+			}
+			if (spooling) {
+				spoolLines(lines);
+			}
+			reportedLines += batch.lineCount;
+			reportedBytes += lines.size();
+			lines.reset();
+			batch.lineCount = 0;
+		}
+	}
+
+	private void recordReport(long nanos, boolean succeeded) {
+		if (spool != null) {
+			try {
+				stats.setSpooledBytes(spool.size());
+			} catch (IOException e) {
+				LOGGER.debug("Unable to read spool", e);
+			}
+		}
+		stats.onReport(nanos, reportedLines, reportedBytes, succeeded);
+	}
+
+	private static ObjectName registerMBean(InstrumentalReporterMXBean stats, String name) {
+		try {
+			final ObjectName objectName = new ObjectName("com.e_gineering.metrics.instrumental:type=InstrumentalReporter,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(stats, InstrumentalReporterMXBean.class, true), objectName);
+			return objectName;
+		} catch (JMException e) {
+			LOGGER.warn("Unable to register MBean for reporter {}", name, e);
+			return null;
+		}
+	}
+
+	private static void unregisterMBean(ObjectName name) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			LOGGER.debug("Unable to unregister MBean {}", name, e);
+		}
+	}
+
+	/**
+	 * Sends the rest of this report to the spool instead of Instrumental.
+	 */
+	private void startSpooling(IOException cause) {
+		if (cause instanceof CircuitOpenException) {
+			LOGGER.debug("Unable to report to Instrumental, spooling metrics until it is available", cause);
+		} else {
+			LOGGER.warn("Unable to report to Instrumental, spooling metrics until it is available", cause);
+		}
+		spooling = true;
+		try {
+			instrumental.close();
+		} catch (IOException e) {
+			LOGGER.warn("Error closing Instrumental", instrumental, e);
+		}
+	}
+
+	/**
+	 * Sends the rest of this report to the spool, along with what it has already written, since that may not have
+	 * reached Instrumental before the failure. Some of it may then be sent twice.
+	 */
+	private void spoolUnflushed(IOException cause) {
+		startSpooling(cause);
+		if (unflushed.size() > 0) {
+			spoolLines(unflushed);
+			unflushed.reset();
+		}
 	}
 
-	private String format(long n) {
-		return Long.toString(n);
+	private void spoolLines(LineEncoder lines) {
+		try {
+			if (spool.append(lines.array(), 0, lines.size()) < lines.size()) {
+				LOGGER.debug("Spool is full, dropping metrics");
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Unable to spool metrics", e);
+		}
 	}
 
-	private String format(double v) {
-		return String.format(Locale.US, "%2.2f", v);
+	/**
+	 * Sends some of what was spooled during an outage. Lines stay spooled until the sender has flushed them, so if
+	 * this fails they are replayed after the next successful connection.
+	 */
+	private void replaySpool() throws IOException {
+		if (spool == null) {
+			return;
+		}
+
+		final boolean empty;
+		try {
+			empty = spool.isEmpty();
+		} catch (IOException e) {
+			LOGGER.warn("Unable to read spool", e);
+			return;
+		}
+
+		if (!empty) {
+			final long replayed = spool.replay(instrumental, spoolReplayLimit);
+			instrumental.flush();
+			spool.advance(replayed);
+			LOGGER.debug("Replayed {} spooled bytes, {} remaining", replayed, spool.size());
+		}
 	}
 
-	private String format(Object o) {
-		if (o instanceof Float) {
-			return format(((Float) o).floatValue());
-		} else if (o instanceof Double) {
-			return format(((Double) o).floatValue());
-		} else if (o instanceof Byte) {
-			return format(((Byte) o).floatValue());
-		} else if (o instanceof Short) {
-			return format(((Short) o).floatValue());
-		} else if (o instanceof Integer) {
-			return format(((Integer) o).floatValue());
-		} else if (o instanceof Long) {
-			return format(((Long) o).floatValue());
-		}
-		return null;
+	private static final class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			final Thread thread = new Thread(runnable, "instrumental-reporter-worker-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
 	}
 }
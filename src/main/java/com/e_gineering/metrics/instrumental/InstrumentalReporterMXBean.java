@@ -0,0 +1,83 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+/**
+ * What an {@link InstrumentalReporter} and its sender have done since the reporter was built, for keeping an eye on
+ * the cost of reporting itself. Sender figures are zero for senders which don't keep them.
+ */
+public interface InstrumentalReporterMXBean {
+
+	/**
+	 * @return The number of reports made, whether or not they succeeded.
+	 */
+	long getReports();
+
+	/**
+	 * @return The number of reports which failed to send or spool their metrics.
+	 */
+	long getFailedReports();
+
+	/**
+	 * @return How long the last report took, in milliseconds.
+	 */
+	double getLastReportMillis();
+
+	/**
+	 * @return How long flushing the sender took in the last report which flushed, in milliseconds.
+	 */
+	double getLastFlushMillis();
+
+	/**
+	 * @return The number of lines reported, whether sent or spooled.
+	 */
+	long getLinesReported();
+
+	/**
+	 * @return The number of bytes of lines handed to the sender.
+	 */
+	long getBytesReported();
+
+	/**
+	 * @return The number of bytes of lines waiting in the spool, as of the last report.
+	 */
+	long getSpooledBytes();
+
+	/**
+	 * @return The number of connections the sender attempted.
+	 */
+	long getConnectAttempts();
+
+	/**
+	 * @return The number of connections the sender failed to make.
+	 */
+	long getConnectFailures();
+
+	/**
+	 * @return The number of bytes the sender wrote to the collector.
+	 */
+	long getBytesWritten();
+
+	/**
+	 * @return The number of lines the sender dropped.
+	 */
+	long getDroppedLines();
+
+	/**
+	 * @return The number of bytes waiting in the sender to be written.
+	 */
+	long getQueuedBytes();
+}
@@ -0,0 +1,383 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+
+/**
+ * Encodes Instrumental protocol lines directly into a reusable ASCII byte buffer.
+ *
+ * An encoder belongs to a single connection (or reporter) and is reset and reused for every line, so once the buffer
+ * has grown to fit the longest line, encoding a metric allocates nothing. Names and values are sanitized in a single
+ * pass while they are copied, producing the same output as the regular expressions previously used by
+ * {@link Instrumental}.
+ *
+ * Instances are not thread-safe.
+ */
+final class LineEncoder {
+
+	static final int DEFAULT_CAPACITY = 512;
+
+	/**
+	 * The largest number of decimal places {@link #append(double, int)} supports.
+	 */
+	static final int MAX_PRECISION = 9;
+
+	private static final long[] POWERS_OF_TEN = {
+			1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+	};
+
+	/**
+	 * Below this, a scaled value still fits in a long with every digit significant.
+	 */
+	private static final double MAX_EXACT_SCALED = 9.0e15;
+
+	/**
+	 * How many units in the last place of a scaled value are treated as a possible tie, where the binary product can
+	 * land either side of the half the decimal value sits exactly on.
+	 */
+	private static final int TIE_ULPS = 4;
+
+	private static final Charset ASCII = Charset.forName("ASCII");
+
+	private byte[] buf;
+	private int size;
+
+	LineEncoder() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	LineEncoder(int initialCapacity) {
+		this.buf = new byte[Math.max(initialCapacity, 64)];
+		this.size = 0;
+	}
+
+	/**
+	 * Discards everything encoded so far, keeping the buffer for reuse.
+	 *
+	 * @return {@code this}
+	 */
+	LineEncoder reset() {
+		size = 0;
+		return this;
+	}
+
+	/**
+	 * @return the number of encoded bytes in {@link #array()}.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Discards everything encoded after the first {@code size} bytes.
+	 *
+	 * @return {@code this}
+	 */
+	LineEncoder truncate(int size) {
+		if (size < 0 || size > this.size) {
+			throw new IllegalArgumentException("Cannot truncate " + this.size + " bytes to " + size);
+		}
+		this.size = size;
+		return this;
+	}
+
+	/**
+	 * @return a 64-bit FNV-1a hash of the bytes encoded from the given offset on.
+	 */
+	long hash(int from) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = from; i < size; i++) {
+			hash ^= buf[i] & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * @return the backing buffer. Only the first {@link #size()} bytes are valid, and the array is only valid until the
+	 * next call which modifies this encoder.
+	 */
+	byte[] array() {
+		return buf;
+	}
+
+	void writeTo(OutputStream out) throws IOException {
+		out.write(buf, 0, size);
+	}
+
+	/**
+	 * Encodes a complete {@code <type> <name> <value> <timestamp>\n} line, appending it to any previously encoded lines.
+	 *
+	 * @return {@code this}
+	 */
+	LineEncoder encode(MetricType type, String name, String value, long timestamp) {
+		appendAscii(type.getProtocolKey());
+		space();
+		appendName(name);
+		space();
+		appendValue(value);
+		space();
+		append(timestamp);
+		newLine();
+		return this;
+	}
+
+	LineEncoder space() {
+		ensureCapacity(1);
+		buf[size++] = ' ';
+		return this;
+	}
+
+	LineEncoder newLine() {
+		ensureCapacity(1);
+		buf[size++] = '\n';
+		return this;
+	}
+
+	/**
+	 * Appends a string known to be protocol-safe ASCII, such as a command or metric type, without sanitizing it.
+	 *
+	 * @return {@code this}
+	 */
+	LineEncoder appendAscii(String s) {
+		final int length = s.length();
+		ensureCapacity(length);
+		for (int i = 0; i < length; i++) {
+			buf[size++] = (byte) s.charAt(i);
+		}
+		return this;
+	}
+
+	LineEncoder append(byte[] bytes) {
+		return append(bytes, 0, bytes.length);
+	}
+
+	LineEncoder append(byte[] bytes, int offset, int length) {
+		ensureCapacity(length);
+		System.arraycopy(bytes, offset, buf, size, length);
+		size += length;
+		return this;
+	}
+
+	/**
+	 * Appends a metric name, sanitized in a single pass: {@code ", "} becomes {@code -}, each run of parentheses
+	 * becomes {@code __}, and any other character outside {@code [A-Za-z0-9_\-.]} becomes {@code .}.
+	 *
+	 * @return {@code this}
+	 */
+	LineEncoder appendName(CharSequence name) {
+		final int length = name.length();
+		// Worst case is a name made of single parentheses separated by other characters, each of which doubles.
+		ensureCapacity(length * 2);
+		for (int i = 0; i < length; i++) {
+			final char c = name.charAt(i);
+			if (c == ',' && i + 1 < length && name.charAt(i + 1) == ' ') {
+				buf[size++] = '-';
+				i++;
+			} else if (isParen(c)) {
+				while (i + 1 < length && isParen(name.charAt(i + 1))) {
+					i++;
+				}
+				buf[size++] = '_';
+				buf[size++] = '_';
+			} else if (isAcceptedNameChar(c)) {
+				buf[size++] = (byte) c;
+			} else {
+				buf[size++] = '.';
+				i += surrogateTail(name, i);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Appends a metric value, replacing each run of whitespace with {@code .}. Characters which cannot be represented
+	 * in ASCII are replaced with {@code ?}.
+	 *
+	 * @return {@code this}
+	 */
+	LineEncoder appendValue(CharSequence value) {
+		final int length = value.length();
+		ensureCapacity(length);
+		for (int i = 0; i < length; i++) {
+			final char c = value.charAt(i);
+			if (isWhitespace(c)) {
+				while (i + 1 < length && isWhitespace(value.charAt(i + 1))) {
+					i++;
+				}
+				buf[size++] = '.';
+			} else if (c < 0x80) {
+				buf[size++] = (byte) c;
+			} else {
+				buf[size++] = '?';
+				i += surrogateTail(value, i);
+			}
+		}
+		return this;
+	}
+
+	LineEncoder append(long n) {
+		if (n == Long.MIN_VALUE) {
+			return appendAscii("-9223372036854775808");
+		}
+		ensureCapacity(20);
+		if (n < 0) {
+			buf[size++] = '-';
+			n = -n;
+		}
+		final int end = size + digits(n);
+		int pos = end;
+		do {
+			buf[--pos] = (byte) ('0' + (int) (n % 10));
+			n /= 10;
+		} while (n != 0);
+		size = end;
+		return this;
+	}
+
+	/**
+	 * Appends a number rounded half-up to the given number of decimal places, omitting trailing zeros in the fraction
+	 * (and the decimal point too, for integral values). Values too large to have a fraction are written as integers.
+	 *
+	 * Like {@code String.format("%.2f")}, it rounds the shortest decimal which represents the double, so 1.005 is
+	 * written as 1.01 even though the nearest double is slightly below it.
+	 *
+	 * @param value the number to append
+	 * @param precision the number of decimal places to round to, between 0 and {@link #MAX_PRECISION}
+	 * @return {@code this}
+	 */
+	LineEncoder append(double value, int precision) {
+		if (Double.isNaN(value)) {
+			return appendAscii("NaN");
+		} else if (Double.isInfinite(value)) {
+			return appendAscii(value > 0 ? "Infinity" : "-Infinity");
+		}
+
+		final long scale = POWERS_OF_TEN[precision];
+		final double magnitude = Math.abs(value);
+		if (magnitude * scale >= MAX_EXACT_SCALED) {
+			if (magnitude < Long.MAX_VALUE) {
+				return append(Math.round(value));
+			}
+			// Rare enough not to be worth avoiding the allocation.
+			return appendAscii(new BigDecimal(value).toBigInteger().toString());
+		}
+
+		final long scaled = roundScaled(magnitude, precision, scale);
+		if (value < 0 && scaled != 0) {
+			ensureCapacity(1);
+			buf[size++] = '-';
+		}
+		append(scaled / scale);
+
+		long fraction = scaled % scale;
+		if (fraction != 0) {
+			int digits = precision;
+			while (fraction % 10 == 0) {
+				fraction /= 10;
+				digits--;
+			}
+			ensureCapacity(digits + 1);
+			buf[size++] = '.';
+			for (int pos = size + digits - 1; pos >= size; pos--) {
+				buf[pos] = (byte) ('0' + (int) (fraction % 10));
+				fraction /= 10;
+			}
+			size += digits;
+		}
+		return this;
+	}
+
+	/**
+	 * Rounds the given non-negative value, multiplied by the scale, to the nearest integer, half-up.
+	 */
+	private static long roundScaled(double magnitude, int precision, long scale) {
+		final double product = magnitude * scale;
+		final double floor = Math.floor(product);
+		if (Math.abs(product - floor - 0.5) > TIE_ULPS * Math.ulp(product)) {
+			return (long) (product + 0.5);
+		}
+		// Too close to a half to tell from the binary product; rarely enough not to be worth avoiding the allocation.
+		return new BigDecimal(Double.toString(magnitude)).setScale(precision, BigDecimal.ROUND_HALF_UP).unscaledValue().longValue();
+	}
+
+	@Override
+	public String toString() {
+		return new String(buf, 0, size, ASCII);
+	}
+
+	/**
+	 * Returns the given metric name as {@link #appendName(CharSequence)} would encode it.
+	 */
+	static String sanitizeName(String name) {
+		return new LineEncoder(name.length() * 2).appendName(name).toString();
+	}
+
+	/**
+	 * Returns the given metric value as {@link #appendValue(CharSequence)} would encode it.
+	 */
+	static String sanitizeValue(String value) {
+		return new LineEncoder(value.length()).appendValue(value).toString();
+	}
+
+	private void ensureCapacity(int additional) {
+		final int required = size + additional;
+		if (required > buf.length) {
+			final byte[] grown = new byte[Math.max(required, buf.length * 2)];
+			System.arraycopy(buf, 0, grown, 0, size);
+			buf = grown;
+		}
+	}
+
+	private static int digits(long n) {
+		long limit = 10;
+		for (int digits = 1; digits < 19; digits++) {
+			if (n < limit) {
+				return digits;
+			}
+			limit *= 10;
+		}
+		return 19;
+	}
+
+	private static boolean isParen(char c) {
+		return c == '(' || c == ')';
+	}
+
+	private static boolean isAcceptedNameChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+				       || c == '_' || c == '-' || c == '.';
+	}
+
+	private static boolean isWhitespace(char c) {
+		// Matches the regex class \s
+		return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+	}
+
+	/**
+	 * A surrogate pair is a single character, so it should only produce a single replacement.
+	 *
+	 * @return 1 if the character at {@code i} starts a surrogate pair, otherwise 0.
+	 */
+	private static int surrogateTail(CharSequence s, int i) {
+		return Character.isHighSurrogate(s.charAt(i)) && i + 1 < s.length()
+				       && Character.isLowSurrogate(s.charAt(i + 1)) ? 1 : 0;
+	}
+}
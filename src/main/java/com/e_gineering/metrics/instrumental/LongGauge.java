@@ -0,0 +1,35 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import com.codahale.metrics.Gauge;
+
+/**
+ * A gauge of a {@code long}, which {@link InstrumentalReporter} reads without boxing it. Other reporters see it as an
+ * ordinary {@code Gauge<Long>}.
+ */
+public abstract class LongGauge implements Gauge<Long> {
+
+	/**
+	 * @return the gauge's current value
+	 */
+	public abstract long getLongValue();
+
+	@Override
+	public Long getValue() {
+		return getLongValue();
+	}
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Timer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The metrics a reporter reports, kept up to date as they are added to and removed from the registry, so each report
+ * doesn't copy and filter the whole registry into new sorted maps.
+ *
+ * The filter is applied once, when a metric is added, and its names are resolved then too. The flattened list each
+ * report iterates is only rebuilt when metrics have been added or removed since the last report; otherwise every
+ * report shares the same one, which must not be modified. Also evicts the cached names of removed metrics, whether or
+ * not they were reported.
+ */
+final class MetricIndex implements MetricRegistryListener {
+
+	private final MetricNames names;
+	private final MetricFilter filter;
+
+	// Guarded by this
+	private final List<SortedMap<String, Indexed>> kinds = new ArrayList<SortedMap<String, Indexed>>(Metrics.KINDS);
+	private Metrics metrics = null;
+
+	MetricIndex(MetricNames names, MetricFilter filter) {
+		this.names = names;
+		this.filter = filter;
+		for (int kind = 0; kind < Metrics.KINDS; kind++) {
+			kinds.add(new TreeMap<String, Indexed>());
+		}
+	}
+
+	/**
+	 * @return the metrics to report, sorted by name within each kind.
+	 */
+	synchronized Metrics metrics() {
+		if (metrics == null) {
+			int size = 0;
+			for (SortedMap<String, Indexed> kind : kinds) {
+				size += kind.size();
+			}
+			final Metrics built = new Metrics(size);
+			for (int kind = 0; kind < Metrics.KINDS; kind++) {
+				for (Indexed indexed : kinds.get(kind).values()) {
+					built.add(indexed.name, indexed.metric, kind);
+				}
+			}
+			metrics = built;
+		}
+		return metrics;
+	}
+
+	@Override
+	public void onGaugeAdded(String name, Gauge<?> gauge) {
+		add(Metrics.GAUGE, name, gauge);
+	}
+
+	@Override
+	public void onGaugeRemoved(String name) {
+		remove(Metrics.GAUGE, name);
+	}
+
+	@Override
+	public void onCounterAdded(String name, Counter counter) {
+		add(Metrics.COUNTER, name, counter);
+	}
+
+	@Override
+	public void onCounterRemoved(String name) {
+		remove(Metrics.COUNTER, name);
+	}
+
+	@Override
+	public void onHistogramAdded(String name, Histogram histogram) {
+		add(Metrics.HISTOGRAM, name, histogram);
+	}
+
+	@Override
+	public void onHistogramRemoved(String name) {
+		remove(Metrics.HISTOGRAM, name);
+	}
+
+	@Override
+	public void onMeterAdded(String name, Meter meter) {
+		add(Metrics.METER, name, meter);
+	}
+
+	@Override
+	public void onMeterRemoved(String name) {
+		remove(Metrics.METER, name);
+	}
+
+	@Override
+	public void onTimerAdded(String name, Timer timer) {
+		add(Metrics.TIMER, name, timer);
+	}
+
+	@Override
+	public void onTimerRemoved(String name) {
+		remove(Metrics.TIMER, name);
+	}
+
+	private void add(int kind, String name, Metric metric) {
+		if (filter.matches(name, metric)) {
+			final Indexed indexed = new Indexed(names.get(name), metric);
+			synchronized (this) {
+				kinds.get(kind).put(name, indexed);
+				metrics = null;
+			}
+		}
+	}
+
+	private void remove(int kind, String name) {
+		synchronized (this) {
+			if (kinds.get(kind).remove(name) != null) {
+				metrics = null;
+			}
+		}
+		names.remove(name);
+	}
+
+	private static final class Indexed {
+		private final MetricNames.Entry name;
+		private final Metric metric;
+
+		private Indexed(MetricNames.Entry name, Metric metric) {
+			this.name = name;
+			this.metric = metric;
+		}
+	}
+}
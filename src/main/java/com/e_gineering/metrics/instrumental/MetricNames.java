@@ -0,0 +1,194 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import com.codahale.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A bounded cache of the final, sanitized, prefixed and ASCII-encoded names reported for each metric, keyed by the
+ * metric's registry name.
+ *
+ * Entries are removed when the metric is removed from the registry. Once the cache is full, names for new metrics are
+ * still encoded correctly but are not retained, so they are rebuilt on every report.
+ *
+ * Each cached entry is also given a small integer slot, so state kept between reports can live in primitive arrays
+ * indexed by slot. Slots are reused once their metric is removed, so each entry also has a serial number, unique to
+ * it, which tells whether state in a slot belongs to it or to a metric which previously held the slot.
+ */
+final class MetricNames {
+
+	static final int DEFAULT_MAX_SIZE = 100000;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MetricNames.class);
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final String prefix;
+	private final int maxSize;
+	private volatile boolean warned = false;
+
+	// Guarded by this
+	private int[] freeSlots = new int[16];
+	private int freeCount = 0;
+	private int nextSlot = 0;
+	private int nextSerial = 1;
+
+	MetricNames(String prefix, int maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("maxSize must not be negative");
+		}
+		this.prefix = prefix;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return the encoded names for the metric registered under the given name.
+	 */
+	Entry get(String name) {
+		Entry entry = entries.get(name);
+		if (entry == null) {
+			if (entries.size() < maxSize) {
+				entry = newEntry(name);
+				final Entry existing = entries.putIfAbsent(name, entry);
+				if (existing != null) {
+					release(entry);
+					entry = existing;
+				}
+			} else if (!warned) {
+				warned = true;
+				LOGGER.warn("Metric name cache is full ({} entries), names of additional metrics will not be cached", maxSize);
+			}
+			if (entry == null) {
+				entry = new Entry(prefix, name, Entry.NO_SLOT, 0);
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Evicts the names cached for the given metric, if any.
+	 */
+	void remove(String name) {
+		final Entry entry = entries.remove(name);
+		if (entry != null) {
+			release(entry);
+		}
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	private synchronized Entry newEntry(String name) {
+		final int slot = freeCount > 0 ? freeSlots[--freeCount] : nextSlot++;
+		final int serial = nextSerial++;
+		if (nextSerial <= 0) {
+			nextSerial = 1;
+		}
+		return new Entry(prefix, name, slot, serial);
+	}
+
+	private synchronized void release(Entry entry) {
+		if (freeCount == freeSlots.length) {
+			freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+		}
+		freeSlots[freeCount++] = entry.slot;
+	}
+
+	/**
+	 * The encoded names of a single metric. Attribute names are encoded the first time they are asked for.
+	 */
+	static final class Entry {
+		/**
+		 * The slot of entries which are not cached, which have nowhere to keep state between reports.
+		 */
+		static final int NO_SLOT = -1;
+
+		private final String prefix;
+		private final String name;
+		private final int slot;
+		private final int serial;
+		private final byte[] encoded;
+		private final byte[][] attributes = new byte[MetricAttribute.values().length][];
+
+		// The attributes reported for this metric, worked out by the reporter the first time it is reported.
+		int reportedAttributes = AttributeRules.UNRESOLVED;
+
+		// The values last sent for this metric, kept by SentValues.
+		long[] sentHashes;
+		long[] sentTimes;
+
+		// The gauge's last value and any read under way, kept by GaugeEvaluator.
+		GaugeEvaluator.State gaugeState;
+
+		private Entry(String prefix, String name, int slot, int serial) {
+			this.prefix = prefix;
+			this.name = name;
+			this.slot = slot;
+			this.serial = serial;
+			this.encoded = encode(MetricRegistry.name(prefix, name));
+		}
+
+		String getName() {
+			return name;
+		}
+
+		/**
+		 * @return a small, non-negative integer no other cached entry has, or {@link #NO_SLOT}.
+		 */
+		int getSlot() {
+			return slot;
+		}
+
+		/**
+		 * @return a positive number unique to this entry, or 0 if it has no slot.
+		 */
+		int getSerial() {
+			return serial;
+		}
+
+		/**
+		 * @return the encoded name the metric itself is reported under, such as a gauge's.
+		 */
+		byte[] encoded() {
+			return encoded;
+		}
+
+		/**
+		 * @return the encoded name the given attribute of the metric is reported under.
+		 */
+		byte[] encoded(MetricAttribute attribute) {
+			byte[] bytes = attributes[attribute.ordinal()];
+			if (bytes == null) {
+				bytes = encode(MetricRegistry.name(prefix, name, attribute.getCode()));
+				attributes[attribute.ordinal()] = bytes;
+			}
+			return bytes;
+		}
+
+		private static byte[] encode(String name) {
+			final LineEncoder encoder = new LineEncoder(name.length() * 2).appendName(name);
+			final byte[] bytes = new byte[encoder.size()];
+			System.arraycopy(encoder.array(), 0, bytes, 0, bytes.length);
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import com.codahale.metrics.Metric;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * The metrics in a report, flattened into a single list in the order they are reported, so it can be split into
+ * ranges. Instances are not thread-safe, but may be read by many threads once filled.
+ */
+final class Metrics {
+	static final int GAUGE = 0;
+	static final int COUNTER = 1;
+	static final int HISTOGRAM = 2;
+	static final int METER = 3;
+	static final int TIMER = 4;
+
+	/**
+	 * The number of kinds of metric, which are reported in the order of their constants.
+	 */
+	static final int KINDS = 5;
+
+	MetricNames.Entry[] names;
+	Metric[] metrics;
+	int[] kinds;
+	int size = 0;
+
+	Metrics() {
+		this(256);
+	}
+
+	Metrics(int capacity) {
+		final int length = Math.max(capacity, 1);
+		this.names = new MetricNames.Entry[length];
+		this.metrics = new Metric[length];
+		this.kinds = new int[length];
+	}
+
+	void add(MetricNames.Entry name, Metric metric, int kind) {
+		if (size == names.length) {
+			final int length = size * 2;
+			names = Arrays.copyOf(names, length);
+			metrics = Arrays.copyOf(metrics, length);
+			kinds = Arrays.copyOf(kinds, length);
+		}
+		names[size] = name;
+		metrics[size] = metric;
+		kinds[size] = kind;
+		size++;
+	}
+
+	void addAll(MetricNames names, SortedMap<String, ? extends Metric> metrics, int kind) {
+		for (Map.Entry<String, ? extends Metric> entry : metrics.entrySet()) {
+			add(names.get(entry.getKey()), entry.getValue(), kind);
+		}
+	}
+
+	/**
+	 * Empties the list, without holding on to the metrics.
+	 */
+	void clear() {
+		Arrays.fill(names, 0, size, null);
+		Arrays.fill(metrics, 0, size, null);
+		size = 0;
+	}
+}
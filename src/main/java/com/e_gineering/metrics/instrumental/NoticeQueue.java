@@ -0,0 +1,164 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Notices waiting to be sent in the background, so the threads giving them never wait on the network.
+ *
+ * A notice with the same text as one given within the coalescing window is dropped as a repeat of it, and notices are
+ * sent no faster than the rate limit allows, with bursts of up to a second's worth. Beyond the capacity, new notices
+ * are dropped. Times are {@link System#nanoTime()} values, passed in by the caller. Instances are thread-safe.
+ */
+final class NoticeQueue {
+
+	static final int CAPACITY = 1000;
+	static final int DEFAULT_RATE_LIMIT = 10;
+	static final long DEFAULT_COALESCING_WINDOW = TimeUnit.SECONDS.toNanos(10);
+
+	private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	// Guarded by this
+	private final ArrayDeque<Notice> queue = new ArrayDeque<Notice>();
+	private final LinkedHashMap<String, Long> recent = new LinkedHashMap<String, Long>();
+	private int rateLimit = DEFAULT_RATE_LIMIT;
+	private long coalescingWindow = DEFAULT_COALESCING_WINDOW;
+	private double allowance = DEFAULT_RATE_LIMIT;
+	private long refilledAt = 0;
+	private boolean refilled = false;
+	private long coalesced = 0;
+	private long dropped = 0;
+
+	synchronized void setRateLimit(int perSecond) {
+		if (perSecond <= 0) {
+			throw new IllegalArgumentException("perSecond must be positive");
+		}
+		this.rateLimit = perSecond;
+		this.allowance = Math.min(allowance, perSecond);
+	}
+
+	synchronized void setCoalescingWindow(long window) {
+		if (window < 0) {
+			throw new IllegalArgumentException("window must not be negative");
+		}
+		this.coalescingWindow = window;
+	}
+
+	/**
+	 * @return whether the notice was queued, rather than coalesced with an earlier one or dropped.
+	 */
+	synchronized boolean offer(String text, long startSeconds, long durationSeconds, long now) {
+		final Long since = recent.get(text);
+		if (since != null) {
+			if (now - since < coalescingWindow) {
+				coalesced++;
+				return false;
+			}
+			// Re-added below, so the map stays in the order notices were first given.
+			recent.remove(text);
+		}
+		if (queue.size() >= CAPACITY) {
+			dropped++;
+			return false;
+		}
+		queue.add(new Notice(text, startSeconds, durationSeconds));
+		if (coalescingWindow > 0) {
+			if (recent.size() >= CAPACITY) {
+				final Iterator<Long> eldest = recent.values().iterator();
+				eldest.next();
+				eldest.remove();
+			}
+			recent.put(text, now);
+		}
+		return true;
+	}
+
+	/**
+	 * Encodes as many notices as the rate limit allows.
+	 */
+	synchronized void drainTo(LineEncoder lines, long now) {
+		if (refilled) {
+			allowance = Math.min(rateLimit, allowance + (now - refilledAt) * rateLimit / NANOS_PER_SECOND);
+		}
+		refilledAt = now;
+		refilled = true;
+
+		while (allowance >= 1 && !queue.isEmpty()) {
+			queue.poll().encode(lines);
+			allowance--;
+		}
+
+		// Forget notices too old to coalesce with, which are the first in the map.
+		final Iterator<Map.Entry<String, Long>> entries = recent.entrySet().iterator();
+		while (entries.hasNext() && now - entries.next().getValue() >= coalescingWindow) {
+			entries.remove();
+		}
+	}
+
+	/**
+	 * Encodes every queued notice, however many there are.
+	 */
+	synchronized void drainAllTo(LineEncoder lines) {
+		while (!queue.isEmpty()) {
+			queue.poll().encode(lines);
+		}
+	}
+
+	synchronized int size() {
+		return queue.size();
+	}
+
+	/**
+	 * @return the number of notices dropped as repeats of earlier ones.
+	 */
+	synchronized long getCoalesced() {
+		return coalesced;
+	}
+
+	/**
+	 * @return the number of notices dropped because the queue was full.
+	 */
+	synchronized long getDropped() {
+		return dropped;
+	}
+
+	private static final class Notice {
+		private final String text;
+		private final long startSeconds;
+		private final long durationSeconds;
+
+		private Notice(String text, long startSeconds, long durationSeconds) {
+			this.text = text;
+			this.startSeconds = startSeconds;
+			this.durationSeconds = durationSeconds;
+		}
+
+		private void encode(LineEncoder lines) {
+			lines.appendAscii("notice ")
+			     .append(startSeconds)
+			     .space()
+			     .append(durationSeconds)
+			     .space()
+			     .appendName(text)
+			     .newLine();
+		}
+	}
+}
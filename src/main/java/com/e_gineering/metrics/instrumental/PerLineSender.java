@@ -0,0 +1,121 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets the reporter write encoded lines to a sender which only takes them one at a time, by decoding each line and
+ * passing it to {@link InstrumentalSender#send}.
+ */
+final class PerLineSender implements BulkInstrumentalSender {
+	private static final Charset ASCII = Charset.forName("ASCII");
+	private static final MetricType[] TYPES = MetricType.values();
+
+	private final InstrumentalSender sender;
+
+	PerLineSender(InstrumentalSender sender) {
+		this.sender = sender;
+	}
+
+	@Override
+	public void write(byte[] lines, int offset, int length) throws IOException {
+		final int end = offset + length;
+		int start = offset;
+		while (start < end) {
+			int newLine = start;
+			while (newLine < end && lines[newLine] != '\n') {
+				newLine++;
+			}
+			if (newLine > start) {
+				sendLine(new String(lines, start, newLine - start, ASCII));
+			}
+			start = newLine + 1;
+		}
+	}
+
+	/**
+	 * Sends a line of the form {@code <type> <name> <value> <timestamp>}, the only lines the reporter encodes.
+	 */
+	private void sendLine(String line) throws IOException {
+		final int nameStart = line.indexOf(' ') + 1;
+		final int valueStart = line.indexOf(' ', nameStart) + 1;
+		final int timestampStart = line.lastIndexOf(' ') + 1;
+		if (nameStart == 0 || valueStart == 0 || timestampStart <= valueStart) {
+			throw new IllegalArgumentException("Not a metric line: " + line);
+		}
+		sender.send(type(line.substring(0, nameStart - 1)),
+		            line.substring(nameStart, valueStart - 1),
+		            line.substring(valueStart, timestampStart - 1),
+		            Long.parseLong(line.substring(timestampStart)));
+	}
+
+	private static MetricType type(String protocolKey) {
+		for (MetricType type : TYPES) {
+			if (type.getProtocolKey().equals(protocolKey)) {
+				return type;
+			}
+		}
+		throw new IllegalArgumentException("Unknown metric type: " + protocolKey);
+	}
+
+	@Override
+	public void connect() throws IllegalStateException, IOException {
+		sender.connect();
+	}
+
+	@Override
+	public void send(MetricType type, String name, String value, long timestamp) throws IOException {
+		sender.send(type, name, value, timestamp);
+	}
+
+	@Override
+	public void notice(String name) {
+		sender.notice(name);
+	}
+
+	@Override
+	public void notice(String name, long duration, TimeUnit durationUnit) {
+		sender.notice(name, duration, durationUnit);
+	}
+
+	@Override
+	public void notice(String name, long start, TimeUnit startUnit, long duration, TimeUnit durationUnit) {
+		sender.notice(name, start, startUnit, duration, durationUnit);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		sender.flush();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return sender.isConnected();
+	}
+
+	@Override
+	public int getFailures() {
+		return sender.getFailures();
+	}
+
+	@Override
+	public void close() throws IOException {
+		sender.close();
+	}
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import com.codahale.metrics.Gauge;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the figures an {@link InstrumentalReporter} exposes about itself. The reporter's own figures are updated at
+ * the end of each report, so reporting them as metrics never measures the report doing it; the sender's figures are
+ * read from it as they are.
+ */
+final class ReporterStats implements InstrumentalReporterMXBean {
+
+	private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/**
+	 * The figures reported as gauges, and the names they are registered under.
+	 */
+	enum Stat {
+		REPORTS("reports") {
+			@Override
+			Number read(InstrumentalReporterMXBean stats) {
+				return stats.getReports();
+			}
+		},
+		FAILED_REPORTS("reports.failed") {
+			@Override
+			Number read(InstrumentalReporterMXBean stats) {
+				return stats.getFailedReports();
+			}
+		},
+		REPORT_MILLIS("report.duration") {
+			@Override
+			Number read(InstrumentalReporterMXBean stats) {
+				return stats.getLastReportMillis();
+			}
+		},
+		FLUSH_MILLIS("flush.duration") {
+			@Override
+			Number read(InstrumentalReporterMXBean stats) {
+				return stats.getLastFlushMillis();
+			}
+		},
+		LINES_REPORTED("lines") {
+			@Override
+			Number read(InstrumentalReporterMXBean stats) {
+				return stats.getLinesReported();
+			}
+		},
+		BYTES_REPORTED("bytes") {
+			@Override
+			Number read(InstrumentalReporterMXBean stats) {
+				return stats.getBytesReported();
+			}
+		},
+		SPOOLED_BYTES("spool.bytes") {
+			@Override
+			Number read(InstrumentalReporterMXBean stats) {
+				return stats.getSpooledBytes();
+			}
+		},
+		CONNECT_ATTEMPTS("connects") {
+			@Override
+			Number read(InstrumentalReporterMXBean stats) {
+				return stats.getConnectAttempts();
+			}
+		},
+		CONNECT_FAILURES("connects.failed") {
+			@Override
+			Number read(InstrumentalReporterMXBean stats) {
+				return stats.getConnectFailures();
+			}
+		},
+		BYTES_WRITTEN("sender.bytes") {
+			@Override
+			Number read(InstrumentalReporterMXBean stats) {
+				return stats.getBytesWritten();
+			}
+		},
+		DROPPED_LINES("sender.dropped") {
+			@Override
+			Number read(InstrumentalReporterMXBean stats) {
+				return stats.getDroppedLines();
+			}
+		},
+		QUEUED_BYTES("sender.queued") {
+			@Override
+			Number read(InstrumentalReporterMXBean stats) {
+				return stats.getQueuedBytes();
+			}
+		};
+
+		private final String name;
+
+		Stat(String name) {
+			this.name = name;
+		}
+
+		String getName() {
+			return name;
+		}
+
+		abstract Number read(InstrumentalReporterMXBean stats);
+
+		Gauge<Number> gauge(final InstrumentalReporterMXBean stats) {
+			return new Gauge<Number>() {
+				@Override
+				public Number getValue() {
+					return read(stats);
+				}
+			};
+		}
+	}
+
+	private final SenderStats sender;
+	private final AtomicLong reports = new AtomicLong();
+	private final AtomicLong failedReports = new AtomicLong();
+	private final AtomicLong linesReported = new AtomicLong();
+	private final AtomicLong bytesReported = new AtomicLong();
+	private volatile long lastReportNanos = 0;
+	private volatile long lastFlushNanos = 0;
+	private volatile long spooledBytes = 0;
+
+	/**
+	 * @param sender the reporter's sender, whose figures are included if it keeps them
+	 */
+	ReporterStats(InstrumentalSender sender) {
+		this.sender = sender instanceof SenderStats ? (SenderStats) sender : null;
+	}
+
+	/**
+	 * Records a finished report.
+	 *
+	 * @param nanos how long it took
+	 * @param lines the lines it sent or spooled
+	 * @param bytes the bytes of those lines
+	 * @param succeeded whether it sent or spooled everything
+	 */
+	void onReport(long nanos, long lines, long bytes, boolean succeeded) {
+		linesReported.addAndGet(lines);
+		bytesReported.addAndGet(bytes);
+		lastReportNanos = nanos;
+		if (!succeeded) {
+			failedReports.incrementAndGet();
+		}
+		reports.incrementAndGet();
+	}
+
+	void onFlush(long nanos) {
+		lastFlushNanos = nanos;
+	}
+
+	void setSpooledBytes(long bytes) {
+		spooledBytes = bytes;
+	}
+
+	@Override
+	public long getReports() {
+		return reports.get();
+	}
+
+	@Override
+	public long getFailedReports() {
+		return failedReports.get();
+	}
+
+	@Override
+	public double getLastReportMillis() {
+		return lastReportNanos / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getLastFlushMillis() {
+		return lastFlushNanos / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public long getLinesReported() {
+		return linesReported.get();
+	}
+
+	@Override
+	public long getBytesReported() {
+		return bytesReported.get();
+	}
+
+	@Override
+	public long getSpooledBytes() {
+		return spooledBytes;
+	}
+
+	@Override
+	public long getConnectAttempts() {
+		return sender == null ? 0 : sender.getConnectAttempts();
+	}
+
+	@Override
+	public long getConnectFailures() {
+		return sender == null ? 0 : sender.getConnectFailures();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return sender == null ? 0 : sender.getBytesWritten();
+	}
+
+	@Override
+	public long getDroppedLines() {
+		return sender == null ? 0 : sender.getDroppedLines();
+	}
+
+	@Override
+	public long getQueuedBytes() {
+		return sender == null ? 0 : sender.getQueuedBytes();
+	}
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+/**
+ * Counters kept by the senders in this package, read by {@link ReporterStats}. Every method must be safe to call from
+ * any thread.
+ */
+interface SenderStats {
+
+	/**
+	 * @return The number of connections attempted, not counting those the circuit breaker refused.
+	 */
+	long getConnectAttempts();
+
+	/**
+	 * @return The number of connection attempts which failed.
+	 */
+	long getConnectFailures();
+
+	/**
+	 * @return The number of bytes written to the collector, including any lost with a failed connection.
+	 */
+	long getBytesWritten();
+
+	/**
+	 * @return The number of lines dropped without being written.
+	 */
+	long getDroppedLines();
+
+	/**
+	 * @return The number of bytes waiting to be written.
+	 */
+	long getQueuedBytes();
+}
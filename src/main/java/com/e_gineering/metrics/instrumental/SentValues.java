@@ -0,0 +1,111 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import java.util.Arrays;
+
+/**
+ * Remembers a hash of the encoded value last sent for each of a metric's values, so values which haven't changed can be
+ * skipped. A value is still sent once it has gone unsent for the maximum silence, so its series never looks stale.
+ *
+ * The hashes are kept on each {@link MetricNames.Entry}. Values chosen to be sent are staged in a {@link Pending}, and
+ * only become the values later ones are compared with once the report has been sent; if it fails, they are sent again
+ * next time. Several threads may stage values for different metrics at once, each into its own {@link Pending}, but
+ * committing must not overlap with staging.
+ */
+final class SentValues {
+
+	/**
+	 * The index of the value of a metric which has only one, such as a gauge. Attributes are indexed by ordinal.
+	 */
+	static final int VALUE = MetricAttribute.values().length;
+
+	private final long maxSilence;
+
+	/**
+	 * @param maxSilence the longest, in seconds, an unchanged value may go without being sent
+	 */
+	SentValues(long maxSilence) {
+		this.maxSilence = maxSilence;
+	}
+
+	/**
+	 * Decides whether to send a value, staging it if so.
+	 *
+	 * @param entry the metric
+	 * @param index the metric attribute's ordinal, or {@link #VALUE}
+	 * @param hash a hash of the encoded value
+	 * @param timestamp the time of the report, in seconds
+	 * @return whether the value differs from the last one sent, or was last sent at least the maximum silence ago.
+	 */
+	boolean shouldSend(Pending pending, MetricNames.Entry entry, int index, long hash, long timestamp) {
+		final long[] hashes = entry.sentHashes;
+		if (hashes != null && entry.sentTimes[index] != 0 && hashes[index] == hash
+				    && timestamp - entry.sentTimes[index] < maxSilence) {
+			return false;
+		}
+
+		pending.add(entry, index, hash);
+		return true;
+	}
+
+	/**
+	 * Records the values staged in the given {@link Pending} as sent at the given time, and clears it.
+	 */
+	void commit(Pending pending, long timestamp) {
+		for (int i = 0; i < pending.size; i++) {
+			final MetricNames.Entry entry = pending.entries[i];
+			if (entry.sentHashes == null) {
+				entry.sentHashes = new long[VALUE + 1];
+				entry.sentTimes = new long[VALUE + 1];
+			}
+			entry.sentHashes[pending.indexes[i]] = pending.hashes[i];
+			entry.sentTimes[pending.indexes[i]] = timestamp;
+		}
+		pending.clear();
+	}
+
+	/**
+	 * Values staged during a report. Instances are not thread-safe.
+	 */
+	static final class Pending {
+		private MetricNames.Entry[] entries = new MetricNames.Entry[64];
+		private int[] indexes = new int[64];
+		private long[] hashes = new long[64];
+		private int size = 0;
+
+		private void add(MetricNames.Entry entry, int index, long hash) {
+			if (size == entries.length) {
+				final int length = size * 2;
+				entries = Arrays.copyOf(entries, length);
+				indexes = Arrays.copyOf(indexes, length);
+				hashes = Arrays.copyOf(hashes, length);
+			}
+			entries[size] = entry;
+			indexes[size] = index;
+			hashes[size] = hash;
+			size++;
+		}
+
+		/**
+		 * Forgets the staged values, as they were never sent.
+		 */
+		void clear() {
+			Arrays.fill(entries, 0, size, null);
+			size = 0;
+		}
+	}
+}
@@ -0,0 +1,252 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A size-capped, memory-mapped file holding encoded lines which could not be sent, so they can be replayed, with their
+ * original timestamps, once the collector is reachable again.
+ *
+ * The file starts with a small header recording how far it has been written and replayed, so lines spooled before a
+ * restart are replayed by the next process using the same file. Lines are appended until the file is full, after
+ * which new lines are dropped; once everything has been replayed the file is reused from the start.
+ *
+ * Instances are not thread-safe.
+ */
+final class Spool implements Closeable {
+
+	private static final int MAGIC = 0x49535031; // "ISP1"
+	private static final int HEADER_SIZE = 24;
+	private static final int HEAD_OFFSET = 8;
+	private static final int TAIL_OFFSET = 16;
+
+	/**
+	 * The largest capacity a single mapped segment supports.
+	 */
+	static final long MAX_CAPACITY = Integer.MAX_VALUE - HEADER_SIZE;
+
+	private final File file;
+	private final int capacity;
+	private byte[] chunk;
+
+	private RandomAccessFile raf;
+	private MappedByteBuffer buffer;
+	private int head;
+	private int tail;
+	private long droppedBytes;
+
+	/**
+	 * @param file the file to spool to, created if it does not exist
+	 * @param capacity the most bytes of lines to hold
+	 * @param chunkSize the most bytes handed to the sender in a single write while replaying, unless a single line is
+	 * longer
+	 */
+	Spool(File file, long capacity, int chunkSize) {
+		if (capacity <= 0 || capacity > MAX_CAPACITY) {
+			throw new IllegalArgumentException("Spool capacity must be between 1 and " + MAX_CAPACITY + " bytes");
+		}
+		this.file = file;
+		this.capacity = (int) capacity;
+		this.chunk = new byte[chunkSize];
+	}
+
+	/**
+	 * Appends as many of the given lines as fit, dropping the rest.
+	 *
+	 * @param lines a buffer holding complete, newline-terminated lines
+	 * @return the number of bytes spooled, which always ends on a line boundary
+	 */
+	int append(byte[] lines, int offset, int length) throws IOException {
+		open();
+
+		int accepted = Math.min(length, capacity - tail);
+		if (accepted < length) {
+			// Never spool part of a line.
+			while (accepted > 0 && lines[offset + accepted - 1] != '\n') {
+				accepted--;
+			}
+			droppedBytes += length - accepted;
+		}
+
+		if (accepted > 0) {
+			buffer.position(HEADER_SIZE + tail);
+			buffer.put(lines, offset, accepted);
+			setTail(tail + accepted);
+		}
+		return accepted;
+	}
+
+	/**
+	 * Writes spooled lines to the sender, oldest first, until the spool is empty or the limit has been reached. Lines
+	 * stay spooled, and are written again by the next replay, until {@link #advance(long)} removes them; call it once
+	 * the sender has flushed them.
+	 *
+	 * @param limit the most bytes to replay; at least one line is replayed even if it is longer
+	 * @return the number of bytes replayed
+	 */
+	long replay(BulkInstrumentalSender sender, long limit) throws IOException {
+		open();
+
+		int position = head;
+		while (position < tail && position - head < limit) {
+			final long remaining = limit - (position - head);
+			int length = wholeLines(position, (int) Math.min(chunk.length, remaining));
+			if (length == 0) {
+				// The next line is longer than the chunk or what is left of the limit.
+				length = firstLine(position);
+				if (position > head && length > remaining) {
+					break;
+				}
+				if (length > chunk.length) {
+					chunk = new byte[length];
+				}
+			}
+			buffer.position(HEADER_SIZE + position);
+			buffer.get(chunk, 0, length);
+			sender.write(chunk, 0, length);
+			position += length;
+		}
+		return position - head;
+	}
+
+	/**
+	 * Removes replayed lines from the spool.
+	 *
+	 * @param count the number of bytes replayed, as returned by {@link #replay(BulkInstrumentalSender, long)}
+	 */
+	void advance(long count) throws IOException {
+		open();
+		if (count < 0 || count > tail - head) {
+			throw new IllegalArgumentException("Cannot advance " + count + " of " + (tail - head) + " spooled bytes");
+		}
+
+		setHead(head + (int) count);
+		if (head == tail && tail > 0) {
+			// Everything has been replayed, so start over from the beginning of the file.
+			setTail(0);
+			setHead(0);
+		}
+	}
+
+	/**
+	 * @return whether there is nothing waiting to be replayed.
+	 */
+	boolean isEmpty() throws IOException {
+		open();
+		return head == tail;
+	}
+
+	/**
+	 * @return the number of bytes waiting to be replayed.
+	 */
+	long size() throws IOException {
+		open();
+		return tail - head;
+	}
+
+	/**
+	 * @return the number of bytes dropped because the spool was full.
+	 */
+	long getDroppedBytes() {
+		return droppedBytes;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (raf != null) {
+			try {
+				buffer.force();
+			} finally {
+				buffer = null;
+				raf.close();
+				raf = null;
+			}
+		}
+	}
+
+	/**
+	 * Maps the file on first use, recovering the read and write positions left by a previous process.
+	 */
+	private void open() throws IOException {
+		if (raf != null) {
+			return;
+		}
+
+		final File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Unable to create " + parent);
+		}
+
+		raf = new RandomAccessFile(file, "rw");
+		try {
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+		} catch (IOException e) {
+			raf.close();
+			raf = null;
+			throw e;
+		}
+
+		final long storedHead = buffer.getLong(HEAD_OFFSET);
+		final long storedTail = buffer.getLong(TAIL_OFFSET);
+		if (buffer.getInt(0) == MAGIC && 0 <= storedHead && storedHead <= storedTail && storedTail <= capacity) {
+			head = (int) storedHead;
+			tail = (int) storedTail;
+		} else {
+			// A new file, or one which was not written by us; either way there is nothing to replay.
+			buffer.putInt(0, MAGIC);
+			setTail(0);
+			setHead(0);
+		}
+	}
+
+	/**
+	 * @return the length of the longest run of whole lines from the given position which fits in {@code limit} bytes.
+	 */
+	private int wholeLines(int from, int limit) {
+		int length = Math.min(tail - from, limit);
+		while (length > 0 && buffer.get(HEADER_SIZE + from + length - 1) != '\n') {
+			length--;
+		}
+		return length;
+	}
+
+	/**
+	 * @return the length of the line at the given position.
+	 */
+	private int firstLine(int from) {
+		int length = 1;
+		while (from + length < tail && buffer.get(HEADER_SIZE + from + length - 1) != '\n') {
+			length++;
+		}
+		return length;
+	}
+
+	private void setHead(int head) {
+		this.head = head;
+		buffer.putLong(HEAD_OFFSET, head);
+	}
+
+	private void setTail(int tail) {
+		this.tail = tail;
+		buffer.putLong(TAIL_OFFSET, tail);
+	}
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Fail.failBecauseExceptionWasNotThrown;
+
+public class AddressResolverTest {
+    private final List<Runnable> background = new ArrayList<Runnable>();
+    private InetAddress[] addresses;
+    private int lookups;
+
+    private final AddressResolver resolver = new AddressResolver("collector", 8000, new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            background.add(task);
+        }
+    }) {
+        @Override
+        InetAddress[] lookup(String hostname) throws UnknownHostException {
+            lookups++;
+            if (addresses == null) {
+                throw new UnknownHostException(hostname);
+            }
+            return addresses;
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        resolver.setTtl(100, TimeUnit.NANOSECONDS);
+        addresses = new InetAddress[]{address(1), address(2)};
+    }
+
+    @Test
+    public void resolvesOnFirstUseThenCachesUntilTheTtl() throws Exception {
+        assertThat(resolver.next(0))
+                .isEqualTo(new InetSocketAddress(address(1), 8000));
+        resolver.next(50);
+        resolver.next(99);
+
+        assertThat(lookups)
+                .isEqualTo(1);
+        assertThat(background)
+                .isEmpty();
+    }
+
+    @Test
+    public void takesEachAddressInTurn() throws Exception {
+        assertThat(resolver.next(0).getAddress())
+                .isEqualTo(address(1));
+        assertThat(resolver.next(0).getAddress())
+                .isEqualTo(address(2));
+        assertThat(resolver.next(0).getAddress())
+                .isEqualTo(address(1));
+    }
+
+    @Test
+    public void refreshesStaleAddressesInTheBackground() throws Exception {
+        resolver.next(0);
+        addresses = new InetAddress[]{address(3)};
+
+        assertThat(resolver.isCurrent(address(1), 100))
+                .isTrue();
+        assertThat(background)
+                .hasSize(1);
+        assertThat(lookups)
+                .isEqualTo(1);
+
+        background.remove(0).run();
+
+        assertThat(resolver.isCurrent(address(1), 100))
+                .isFalse();
+        assertThat(resolver.next(100).getAddress())
+                .isEqualTo(address(3));
+    }
+
+    @Test
+    public void keepsOldAddressesIfRefreshingFails() throws Exception {
+        resolver.next(0);
+        addresses = null;
+
+        resolver.next(100);
+        resolver.next(100);
+        assertThat(background)
+                .hasSize(1);
+        background.remove(0).run();
+
+        assertThat(resolver.isCurrent(address(1), 150))
+                .isTrue();
+        assertThat(background)
+                .isEmpty();
+    }
+
+    @Test
+    public void failsIfNeverResolved() throws Exception {
+        addresses = null;
+
+        try {
+            resolver.next(0);
+            failBecauseExceptionWasNotThrown(UnknownHostException.class);
+        } catch (UnknownHostException e) {
+            assertThat(e.getMessage())
+                    .isEqualTo("collector");
+        }
+    }
+
+    private static InetAddress address(int last) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) last});
+    }
+
+    @Test
+    public void refreshesEveryResolverOnOneBackgroundThread() throws Exception {
+        final CountDownLatch refreshed = new CountDownLatch(5);
+        for (int i = 0; i < 5; i++) {
+            final AddressResolver resolver = new AddressResolver("collector", 8000) {
+                private boolean resolved = false;
+
+                @Override
+                InetAddress[] lookup(String hostname) throws UnknownHostException {
+                    if (resolved) {
+                        try {
+                            Thread.sleep(20);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        refreshed.countDown();
+                    }
+                    resolved = true;
+                    return new InetAddress[]{address(1)};
+                }
+            };
+            resolver.setTtl(100, TimeUnit.NANOSECONDS);
+            resolver.next(0);
+            resolver.next(200);
+        }
+
+        assertThat(resolverThreads()).isEqualTo(1);
+        assertThat(refreshed.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    private static int resolverThreads() {
+        final Thread[] threads = new Thread[Thread.activeCount() * 2 + 10];
+        final int count = Thread.enumerate(threads);
+        int resolverThreads = 0;
+        for (int i = 0; i < count; i++) {
+            if (threads[i].getName().equals("instrumental-resolver")) {
+                resolverThreads++;
+            }
+        }
+        return resolverThreads;
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AggregatorTest {
+    private final Aggregator aggregator = new Aggregator();
+    private final LineEncoder lines = new LineEncoder();
+
+    @Test
+    public void sumsIncrementsPerName() throws Exception {
+        aggregator.increment("a", 1);
+        aggregator.increment("a", 2);
+        aggregator.increment("b", -5);
+
+        aggregator.drainTo(lines, 100);
+
+        assertThat(lines.toString().split("\n"))
+                .containsOnly("increment a 3 100", "increment b -5 100");
+    }
+
+    @Test
+    public void averagesGaugesPerName() throws Exception {
+        aggregator.gauge("g", 1.5);
+        aggregator.gauge("g", 2.5);
+        aggregator.gauge("g", 5);
+
+        aggregator.drainTo(lines, 100);
+
+        assertThat(lines.toString())
+                .isEqualTo("gauge g 3 100\n");
+    }
+
+    @Test
+    public void onlySendsNamesUpdatedSinceTheLastDrain() throws Exception {
+        aggregator.increment("a", 1);
+        aggregator.gauge("g", 1);
+        aggregator.drainTo(lines, 100);
+
+        aggregator.increment("a", 4);
+        aggregator.drainTo(lines.reset(), 101);
+
+        assertThat(lines.toString())
+                .isEqualTo("increment a 4 101\n");
+    }
+
+    @Test
+    public void sanitizesNames() throws Exception {
+        aggregator.increment("a b", 1);
+
+        aggregator.drainTo(lines, 100);
+
+        assertThat(lines.toString())
+                .isEqualTo("increment a.b 1 100\n");
+    }
+
+    @Test
+    public void losesNothingUnderContention() throws Exception {
+        final int threads = 8;
+        final int updates = 100000;
+        final List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < updates; i++) {
+                        aggregator.increment("hot", 1);
+                        aggregator.gauge("level", 2);
+                    }
+                }
+            }));
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        aggregator.drainTo(lines, 100);
+
+        assertThat(lines.toString().split("\n"))
+                .containsOnly("increment hot " + threads * updates + " 100", "gauge level 2 100");
+    }
+
+    @Test
+    public void forgetsNamesIdleForAnInterval() throws Exception {
+        aggregator.increment("a", 1);
+        aggregator.gauge("g", 1);
+        aggregator.drainTo(lines, 100);
+        assertThat(aggregator.size()).isEqualTo(2);
+
+        aggregator.drainTo(lines.reset(), 101);
+        assertThat(aggregator.size()).isEqualTo(0);
+
+        aggregator.increment("a", 2);
+        aggregator.gauge("g", 3);
+        aggregator.drainTo(lines.reset(), 102);
+
+        assertThat(lines.toString().split("\n"))
+                .containsOnly("increment a 2 102", "gauge g 3 102");
+    }
+
+    @Test
+    public void losesNothingWhileForgettingNames() throws Exception {
+        final int threads = 4;
+        final int updates = 20000;
+        final List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < updates; i++) {
+                        aggregator.increment("sparse", 1);
+                        if (i % 16 == 0) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            }));
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+
+        long total = 0;
+        boolean working = true;
+        while (working) {
+            working = false;
+            for (Thread worker : workers) {
+                working |= worker.isAlive();
+            }
+            total += drainedSum();
+        }
+        total += drainedSum();
+
+        assertThat(total).isEqualTo(threads * updates);
+    }
+
+    private long drainedSum() {
+        aggregator.drainTo(lines.reset(), 100);
+        final String drained = lines.toString();
+        return drained.isEmpty() ? 0 : Long.parseLong(drained.split(" ")[2]);
+    }
+}
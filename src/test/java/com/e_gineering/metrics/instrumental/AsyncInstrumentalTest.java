@@ -0,0 +1,203 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Fail.failBecauseExceptionWasNotThrown;
+import static com.e_gineering.metrics.instrumental.MetricType.*;
+
+public class AsyncInstrumentalTest {
+    private static final Charset ASCII = Charset.forName("ASCII");
+
+    private final String apiKey = "Th3Ap1K3y";
+
+    private FakeCollector collector;
+    private AsyncInstrumental instrumental;
+
+    @Before
+    public void setUp() throws Exception {
+        collector = new FakeCollector();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (instrumental != null) {
+            instrumental.close();
+        }
+        collector.close();
+    }
+
+    @Test
+    public void writesLinesToCollector() throws Exception {
+        instrumental = new AsyncInstrumental(apiKey, collector.getAddress());
+        instrumental.connect();
+        instrumental.send(GAUGE, "name woo", "value", 100);
+        final byte[] lines = "gauge a 1 100\ngauge b 2 100\n".getBytes(ASCII);
+        instrumental.write(lines, 0, lines.length);
+        instrumental.notice("notice", 1, TimeUnit.SECONDS, 2, TimeUnit.SECONDS);
+        instrumental.flush();
+
+        assertThat(collector.awaitLines(4, 5, TimeUnit.SECONDS))
+                .isTrue();
+        assertThat(collector.getLines())
+                .containsExactly("gauge name.woo value 100", "gauge a 1 100", "gauge b 2 100", "notice 1 2 notice");
+        assertThat(instrumental.getFailures())
+                .isZero();
+    }
+
+    @Test
+    public void isConnectedUntilClosed() throws Exception {
+        instrumental = new AsyncInstrumental(apiKey, collector.getAddress());
+        assertThat(instrumental.isConnected())
+                .isFalse();
+
+        instrumental.connect();
+        assertThat(instrumental.isConnected())
+                .isTrue();
+
+        instrumental.close();
+        assertThat(instrumental.isConnected())
+                .isFalse();
+    }
+
+    @Test
+    public void dropsLinesSentAfterClose() throws Exception {
+        instrumental = new AsyncInstrumental(apiKey, collector.getAddress());
+        instrumental.connect();
+        instrumental.close();
+        final int ioThreads = ioThreads();
+
+        instrumental.send(GAUGE, "late", "1", 100);
+        instrumental.notice("late");
+
+        assertThat(instrumental.isConnected())
+                .isFalse();
+        assertThat(instrumental.getDroppedLines())
+                .isEqualTo(2);
+        assertThat(ioThreads())
+                .isEqualTo(ioThreads);
+
+        instrumental.connect();
+        instrumental.send(GAUGE, "again", "2", 101);
+        assertThat(collector.awaitLines(1, 5, TimeUnit.SECONDS))
+                .isTrue();
+        assertThat(collector.getLines())
+                .containsExactly("gauge again 2 101");
+    }
+
+    @Test
+    public void coalescesAndRateLimitsNotices() throws Exception {
+        instrumental = new AsyncInstrumental(apiKey, collector.getAddress());
+        instrumental.setNoticeRateLimit(2);
+        instrumental.connect();
+
+        instrumental.notice("deployed", 1, TimeUnit.SECONDS, 0, TimeUnit.SECONDS);
+        instrumental.notice("deployed", 2, TimeUnit.SECONDS, 0, TimeUnit.SECONDS);
+        instrumental.notice("a", 3, TimeUnit.SECONDS, 0, TimeUnit.SECONDS);
+        instrumental.notice("b", 4, TimeUnit.SECONDS, 0, TimeUnit.SECONDS);
+
+        assertThat(collector.awaitLines(3, 5, TimeUnit.SECONDS))
+                .isTrue();
+        assertThat(collector.getLines())
+                .containsExactly("notice 1 0 deployed", "notice 3 0 a", "notice 4 0 b");
+        assertThat(instrumental.getCoalescedNotices())
+                .isEqualTo(1);
+    }
+
+    @Test
+    public void doesNotAllowDoubleConnections() throws Exception {
+        instrumental = new AsyncInstrumental(apiKey, collector.getAddress());
+        instrumental.connect();
+        try {
+            instrumental.connect();
+            failBecauseExceptionWasNotThrown(IllegalStateException.class);
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage())
+                    .isEqualTo("Already connected");
+        }
+    }
+
+    @Test
+    public void writesQueuedLinesOnClose() throws Exception {
+        instrumental = new AsyncInstrumental(apiKey, collector.getAddress());
+        instrumental.connect();
+        for (int i = 0; i < 1000; i++) {
+            instrumental.send(GAUGE, "name", Integer.toString(i), 100);
+        }
+        instrumental.close();
+
+        assertThat(collector.awaitLines(1000, 5, TimeUnit.SECONDS))
+                .isTrue();
+    }
+
+    @Test
+    public void doesNotBlockWhenCollectorIsUnreachable() throws Exception {
+        final InetSocketAddress unreachable = collector.getAddress();
+        collector.close();
+
+        instrumental = new AsyncInstrumental(apiKey, unreachable);
+        instrumental.setQueueSize(1024);
+        instrumental.connect();
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < 10000; i++) {
+            instrumental.send(GAUGE, "name", Integer.toString(i), 100);
+        }
+
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))
+                .isLessThan(1000);
+        assertThat(instrumental.getDroppedLines())
+                .isGreaterThan(9000);
+    }
+
+    @Test
+    public void countsConnectionFailures() throws Exception {
+        final InetSocketAddress unreachable = collector.getAddress();
+        collector.close();
+
+        instrumental = new AsyncInstrumental(apiKey, unreachable);
+        instrumental.setReconnectBackoff(10, 20, TimeUnit.MILLISECONDS);
+        instrumental.connect();
+        instrumental.send(GAUGE, "name", "value", 100);
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (instrumental.getFailures() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(instrumental.getFailures())
+                .isGreaterThanOrEqualTo(2);
+    }
+
+    private static int ioThreads() {
+        final Thread[] threads = new Thread[Thread.activeCount() * 2 + 10];
+        final int count = Thread.enumerate(threads);
+        int ioThreads = 0;
+        for (int i = 0; i < count; i++) {
+            if (threads[i].getName().equals("instrumental-io")) {
+                ioThreads++;
+            }
+        }
+        return ioThreads;
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static com.e_gineering.metrics.instrumental.MetricAttribute.*;
+
+public class AttributeRulesTest {
+    private final AttributeRules rules = new AttributeRules(
+            EnumSet.of(COUNT, MEAN),
+            Arrays.asList(Pattern.compile("http\\..*"), Pattern.compile("http\\.slow.*")),
+            Arrays.<Set<MetricAttribute>>asList(EnumSet.of(COUNT, P99, M1_RATE), EnumSet.of(MAX)));
+
+    @Test
+    public void usesDefaultsWhenNothingMatches() throws Exception {
+        final int mask = rules.resolve("db.query");
+
+        assertThat(AttributeRules.includes(mask, COUNT))
+                .isTrue();
+        assertThat(AttributeRules.includes(mask, MEAN))
+                .isTrue();
+        assertThat(AttributeRules.includes(mask, P99))
+                .isFalse();
+    }
+
+    @Test
+    public void usesTheFirstMatchingRule() throws Exception {
+        final int mask = rules.resolve("http.slow.requests");
+
+        assertThat(mask)
+                .isEqualTo(AttributeRules.mask(EnumSet.of(COUNT, P99, M1_RATE)));
+    }
+
+    @Test
+    public void matchesWholeNames() throws Exception {
+        assertThat(rules.resolve("api.http.requests"))
+                .isEqualTo(AttributeRules.mask(EnumSet.of(COUNT, MEAN)));
+    }
+
+    @Test
+    public void masksOnlyIncludeValidAttributes() throws Exception {
+        assertThat(AttributeRules.ALL)
+                .isNotEqualTo(AttributeRules.UNRESOLVED);
+        assertThat(AttributeRules.includes(AttributeRules.SNAPSHOT, COUNT))
+                .isFalse();
+        assertThat(AttributeRules.includes(AttributeRules.SNAPSHOT, P999))
+                .isTrue();
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CircuitBreakerTest {
+    private final CircuitBreaker breaker = new CircuitBreaker(new Random(42));
+
+    @Before
+    public void setUp() throws Exception {
+        breaker.setDelays(100, 1000, TimeUnit.NANOSECONDS);
+    }
+
+    @Test
+    public void allowsConnectingUntilSomethingFails() throws Exception {
+        assertThat(breaker.tryAcquire(0))
+                .isTrue();
+        assertThat(breaker.tryAcquire(0))
+                .isTrue();
+        assertThat(breaker.getState())
+                .isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void opensForUpToTheInitialDelayAfterAFailure() throws Exception {
+        breaker.onFailure(0);
+
+        assertThat(breaker.getState())
+                .isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(breaker.getFailures())
+                .isEqualTo(1);
+        assertThat(breaker.remaining(0))
+                .isGreaterThanOrEqualTo(50)
+                .isLessThanOrEqualTo(100);
+        assertThat(breaker.tryAcquire(49))
+                .isFalse();
+        assertThat(breaker.tryAcquire(100))
+                .isTrue();
+    }
+
+    @Test
+    public void allowsOneAttemptWhenHalfOpen() throws Exception {
+        breaker.onFailure(0);
+
+        assertThat(breaker.tryAcquire(100))
+                .isTrue();
+        assertThat(breaker.getState())
+                .isEqualTo(CircuitBreaker.State.HALF_OPEN);
+        assertThat(breaker.tryAcquire(100))
+                .isFalse();
+
+        breaker.onConnected();
+        assertThat(breaker.tryAcquire(100))
+                .isTrue();
+    }
+
+    @Test
+    public void doublesTheDelayUpToTheMaximum() throws Exception {
+        breaker.onFailure(0);
+        breaker.onFailure(0);
+        assertThat(breaker.remaining(0))
+                .isGreaterThanOrEqualTo(100)
+                .isLessThanOrEqualTo(200);
+
+        for (int i = 0; i < 100; i++) {
+            breaker.onFailure(0);
+        }
+        assertThat(breaker.remaining(0))
+                .isGreaterThanOrEqualTo(500)
+                .isLessThanOrEqualTo(1000);
+    }
+
+    @Test
+    public void resetsAfterSendingSuccessfully() throws Exception {
+        breaker.onFailure(0);
+        breaker.onFailure(0);
+        breaker.tryAcquire(1000);
+        breaker.onConnected();
+
+        assertThat(breaker.getFailures())
+                .isEqualTo(2);
+
+        breaker.onSuccess();
+        assertThat(breaker.getFailures())
+                .isZero();
+
+        breaker.onFailure(0);
+        assertThat(breaker.remaining(0))
+                .isLessThanOrEqualTo(100);
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CountTableTest {
+    private final MetricNames names = new MetricNames(null, 1000);
+    private final CountTable counts = new CountTable();
+    private final CountTable.Pending pending = new CountTable.Pending();
+
+    @Test
+    public void measuresFromZeroTheFirstTime() throws Exception {
+        assertThat(counts.delta(pending, names.get("counter"), 5))
+                .isEqualTo(5);
+    }
+
+    @Test
+    public void measuresFromTheLastCommittedCount() throws Exception {
+        final MetricNames.Entry counter = names.get("counter");
+        counts.delta(pending, counter, 5);
+        counts.commit(pending);
+
+        assertThat(counts.delta(pending, counter, 12))
+                .isEqualTo(7);
+        assertThat(counts.delta(pending, counter, 3))
+                .isEqualTo(-2);
+    }
+
+    @Test
+    public void keepsTheCommittedCountWhenDiscarding() throws Exception {
+        final MetricNames.Entry counter = names.get("counter");
+        counts.delta(pending, counter, 5);
+        counts.commit(pending);
+        counts.delta(pending, counter, 12);
+        pending.clear();
+
+        assertThat(counts.delta(pending, counter, 20))
+                .isEqualTo(15);
+    }
+
+    @Test
+    public void doesNotShareCountsWithReplacedMetrics() throws Exception {
+        counts.delta(pending, names.get("old"), 5);
+        counts.commit(pending);
+        names.remove("old");
+
+        final MetricNames.Entry replacement = names.get("new");
+        assertThat(counts.delta(pending, replacement, 8))
+                .isEqualTo(8);
+    }
+
+    @Test
+    public void growsWithTheNumberOfMetrics() throws Exception {
+        for (int i = 0; i < 500; i++) {
+            counts.delta(pending, names.get("counter" + i), i);
+        }
+        counts.commit(pending);
+
+        for (int i = 0; i < 500; i++) {
+            assertThat(counts.delta(pending, names.get("counter" + i), i + 1))
+                    .isEqualTo(1);
+        }
+    }
+}
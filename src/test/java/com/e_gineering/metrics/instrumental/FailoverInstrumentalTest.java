@@ -0,0 +1,207 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static com.e_gineering.metrics.instrumental.MetricType.*;
+
+/**
+ * How {@link FailoverInstrumental} chooses between, and fails over between, real collectors.
+ */
+public class FailoverInstrumentalTest {
+    private FakeCollector primary;
+    private FakeCollector secondary;
+    private FailoverInstrumental instrumental;
+
+    @Before
+    public void setUp() throws Exception {
+        primary = new FakeCollector();
+        secondary = new FakeCollector();
+        // Slow enough to reach that timing noise never makes the secondary preferred
+        instrumental = new FailoverInstrumental("Th3Ap1K3y", Arrays.asList(primary.getAddress(), secondary.getAddress()),
+                                                new SlowToReach(secondary.getAddress(), 20));
+        instrumental.setConnectTimeout(500, TimeUnit.MILLISECONDS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        instrumental.close();
+        primary.close();
+        secondary.close();
+    }
+
+    @Test
+    public void connectsToTheFirstCollectorWhichAccepts() throws Exception {
+        primary.close();
+
+        instrumental.connect();
+        instrumental.send(GAUGE, "up", "1", 100);
+        instrumental.flush();
+
+        assertThat(secondary.awaitLines(1, 5, TimeUnit.SECONDS)).isTrue();
+        assertThat(secondary.getLines()).containsExactly("gauge up 1 100");
+        assertThat(instrumental.getActiveCollector()).isEqualTo(secondary.getAddress());
+    }
+
+    @Test
+    public void replaysUnflushedLinesAfterFailingOver() throws Exception {
+        instrumental.connect();
+        instrumental.send(GAUGE, "before", "1", 100);
+        instrumental.flush();
+        assertThat(primary.awaitLines(1, 5, TimeUnit.SECONDS)).isTrue();
+
+        primary.resetConnections();
+        primary.close();
+        Thread.sleep(200);
+
+        instrumental.send(GAUGE, "during", "2", 101);
+        instrumental.send(GAUGE, "during", "3", 102);
+        instrumental.flush();
+
+        assertThat(secondary.awaitLines(2, 5, TimeUnit.SECONDS)).isTrue();
+        assertThat(secondary.getLines()).containsExactly("gauge during 2 101", "gauge during 3 102");
+        assertThat(primary.getLines()).containsExactly("gauge before 1 100");
+        assertThat(instrumental.getActiveCollector()).isEqualTo(secondary.getAddress());
+    }
+
+    @Test
+    public void sendsNoticesThroughTheCollectorFailedOverTo() throws Exception {
+        instrumental.connect();
+        primary.resetConnections();
+        primary.close();
+        Thread.sleep(200);
+
+        instrumental.notice("failed over");
+        instrumental.send(GAUGE, "after", "1", 100);
+        instrumental.flush();
+
+        assertThat(secondary.awaitLines(2, 5, TimeUnit.SECONDS)).isTrue();
+        assertThat(secondary.getLines().get(0)).isEqualTo("gauge after 1 100");
+        assertThat(secondary.getLines().get(1)).matches("notice \\d+ 0 failed.over");
+        assertThat(primary.getLines()).isEmpty();
+    }
+
+    @Test
+    public void sendsQueuedNoticesOnClose() throws Exception {
+        instrumental.connect();
+        instrumental.notice("stopping");
+        instrumental.close();
+
+        assertThat(primary.awaitLines(1, 5, TimeUnit.SECONDS)).isTrue();
+        assertThat(primary.getLines().get(0)).matches("notice \\d+ 0 stopping");
+        // Probes connect too, but never authenticate.
+        assertThat(primary.getAuthentications()).isEqualTo(1);
+        assertThat(secondary.getAuthentications()).isZero();
+    }
+
+    @Test
+    public void switchesToAMuchQuickerCollectorAtAFlush() throws Exception {
+        instrumental.close();
+        instrumental = new FailoverInstrumental("Th3Ap1K3y", Arrays.asList(primary.getAddress(), secondary.getAddress()),
+                                                new SlowToReach(primary.getAddress(), 50));
+
+        instrumental.connect();
+        assertThat(instrumental.getActiveCollector()).isEqualTo(primary.getAddress());
+        // Let the first probes finish
+        Thread.sleep(300);
+        instrumental.send(GAUGE, "slow", "1", 100);
+        instrumental.flush();
+
+        instrumental.send(GAUGE, "quick", "2", 101);
+        instrumental.flush();
+
+        assertThat(primary.awaitLines(1, 5, TimeUnit.SECONDS)).isTrue();
+        assertThat(primary.getLines()).containsExactly("gauge slow 1 100");
+        assertThat(secondary.awaitLines(1, 5, TimeUnit.SECONDS)).isTrue();
+        assertThat(secondary.getLines()).containsExactly("gauge quick 2 101");
+        assertThat(instrumental.getActiveCollector()).isEqualTo(secondary.getAddress());
+    }
+
+    @Test
+    public void sumsSenderStatsAcrossCollectors() throws Exception {
+        primary.close();
+
+        instrumental.connect();
+
+        // Unless a probe found the primary unreachable first, connecting to it failed.
+        assertThat(instrumental.getConnectAttempts()).isEqualTo(instrumental.getConnectFailures() + 1);
+        assertThat(instrumental.isConnected()).isTrue();
+        assertThat(instrumental.getActiveCollector()).isEqualTo(secondary.getAddress());
+    }
+
+    /**
+     * Creates sockets which take a while to connect to one address.
+     */
+    private static class SlowToReach extends SocketFactory {
+        private final InetSocketAddress slow;
+        private final long delayMillis;
+
+        private SlowToReach(InetSocketAddress slow, long delayMillis) {
+            this.slow = slow;
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        public Socket createSocket() {
+            return new Socket() {
+                @Override
+                public void connect(SocketAddress endpoint, int timeout) throws IOException {
+                    if (slow.equals(endpoint)) {
+                        try {
+                            Thread.sleep(delayMillis);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    super.connect(endpoint, timeout);
+                }
+            };
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A collector on a loopback port which speaks the Instrumental line protocol: it acknowledges {@code hello} and
+ * {@code authenticate}, then records every line it receives.
+ *
+ * Faults can be injected to test how senders cope with a real connection misbehaving: acknowledging the handshake
+ * slowly, reading slowly, rejecting the API key, and resetting connections.
+ */
+public class FakeCollector implements Closeable {
+    private static final Charset ASCII = Charset.forName("ASCII");
+
+    private final ServerSocket server;
+    private final Thread acceptor;
+    private final List<Socket> connections = new CopyOnWriteArrayList<Socket>();
+    private final Set<Socket> resets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private final List<String> lines = new ArrayList<String>();
+    private final AtomicLong lineCount = new AtomicLong();
+    private final AtomicLong malformedLines = new AtomicLong();
+    private final AtomicLong authentications = new AtomicLong();
+
+    private volatile long ackDelayMillis = 0;
+    private volatile long readDelayMillis = 0;
+    private volatile boolean rejectingApiKey = false;
+    private volatile long resetAfterLines = 0;
+    private volatile boolean recordingLines = true;
+
+    public FakeCollector() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        handle(server.accept());
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        }, "fake-collector");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+    }
+
+    /**
+     * Waits before acknowledging each handshake command.
+     */
+    public void setAckDelay(long delay, TimeUnit unit) {
+        ackDelayMillis = unit.toMillis(delay);
+    }
+
+    /**
+     * Waits after reading each line, so a fast sender fills the socket's buffers and has to wait for the collector.
+     */
+    public void setReadDelay(long delay, TimeUnit unit) {
+        readDelayMillis = unit.toMillis(delay);
+    }
+
+    /**
+     * Answers {@code authenticate} with {@code fail}, and closes the connection, as the collector does for an unknown
+     * API key.
+     */
+    public void setRejectingApiKey(boolean rejectingApiKey) {
+        this.rejectingApiKey = rejectingApiKey;
+    }
+
+    /**
+     * Resets each new connection once it has received the given number of lines after the handshake; 0 never does.
+     */
+    public void setResetAfterLines(long lines) {
+        resetAfterLines = lines;
+    }
+
+    /**
+     * Stops keeping the lines received, for load tests which only need them counted.
+     */
+    public void setRecordingLines(boolean recordingLines) {
+        this.recordingLines = recordingLines;
+    }
+
+    /**
+     * Resets every open connection, as a collector restarting or a dropped network would.
+     */
+    public void resetConnections() {
+        for (Socket socket : connections) {
+            reset(socket);
+        }
+    }
+
+    public int getConnections() {
+        return connections.size();
+    }
+
+    /**
+     * @return the number of connections which sent {@code authenticate}, whether or not it was accepted.
+     */
+    public long getAuthentications() {
+        return authentications.get();
+    }
+
+    /**
+     * @return the number of lines received after a handshake, recorded or not.
+     */
+    public long getLineCount() {
+        return lineCount.get();
+    }
+
+    /**
+     * @return the number of lines received which were not handshake, gauge, increment or notice commands.
+     */
+    public long getMalformedLines() {
+        return malformedLines.get();
+    }
+
+    public List<String> getLines() {
+        synchronized (lines) {
+            return new ArrayList<String>(lines);
+        }
+    }
+
+    /**
+     * Waits until at least the given number of lines have been received.
+     *
+     * @return whether they were received before the timeout.
+     */
+    public boolean awaitLines(int count, long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (lines) {
+            while (lineCount.get() < count) {
+                final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return false;
+                }
+                lines.wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        // A close racing with the acceptor starting to accept can leave the port listening until accept returns.
+        try {
+            acceptor.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Socket socket : connections) {
+            socket.close();
+        }
+    }
+
+    private void handle(final Socket socket) {
+        connections.add(socket);
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), ASCII));
+                    final OutputStream out = socket.getOutputStream();
+                    final long resetAfter = resetAfterLines;
+                    long received = 0;
+                    String line;
+                    while ((line = reader.readLine()) != null && !resets.contains(socket)) {
+                        if (line.startsWith("hello ")) {
+                            acknowledge(out, "ok");
+                        } else if (line.startsWith("authenticate ")) {
+                            authentications.incrementAndGet();
+                            if (rejectingApiKey) {
+                                acknowledge(out, "fail");
+                                return;
+                            }
+                            acknowledge(out, "ok");
+                        } else {
+                            receive(line);
+                            if (resetAfter > 0 && ++received >= resetAfter) {
+                                reset(socket);
+                                return;
+                            }
+                            pause(readDelayMillis);
+                        }
+                    }
+                } catch (IOException e) {
+                    // Connection closed
+                } finally {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        // Eat it.
+                    }
+                }
+            }
+        }, "fake-collector-connection");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void acknowledge(OutputStream out, String response) throws IOException {
+        pause(ackDelayMillis);
+        out.write((response + "\n").getBytes(ASCII));
+        out.flush();
+    }
+
+    private void receive(String line) {
+        if (!line.startsWith("gauge ") && !line.startsWith("gauge_absolute ") && !line.startsWith("increment ") && !line.startsWith("notice ")) {
+            malformedLines.incrementAndGet();
+        }
+        synchronized (lines) {
+            if (recordingLines) {
+                lines.add(line);
+            }
+            lineCount.incrementAndGet();
+            lines.notifyAll();
+        }
+    }
+
+    /**
+     * Stops reading from the socket, so its reader closes it, with a reset rather than an orderly shutdown so the
+     * sender's next writes fail. Closing it here instead could wait for a blocked read, which may still return lines;
+     * any it does return are ignored.
+     */
+    private void reset(Socket socket) {
+        resets.add(socket);
+        try {
+            socket.setSoLinger(true, 0);
+            socket.shutdownInput();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    private static void pause(long millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import com.codahale.metrics.Gauge;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Fail.failBecauseExceptionWasNotThrown;
+
+public class GaugeEvaluatorTest {
+    private static final long TIMEOUT = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final MetricNames names = new MetricNames(null, 100);
+    private final SlowGauge gauge = new SlowGauge();
+    private GaugeEvaluator evaluator;
+
+    @After
+    public void tearDown() throws Exception {
+        gauge.release();
+        evaluator.stop();
+    }
+
+    @Test
+    public void readsGaugesOnTheReportingThreadWithoutTimeout() throws Exception {
+        evaluator = new GaugeEvaluator(0, 3, Collections.<Pattern>emptyList(), Collections.<Long>emptyList());
+        gauge.release();
+
+        assertThat(evaluator.valueOf(names.get("gauge"), gauge))
+                .isEqualTo(1);
+        assertThat(gauge.thread)
+                .isSameAs(Thread.currentThread());
+    }
+
+    @Test
+    public void reportsLastValueWhileGaugeIsSlow() throws Exception {
+        evaluator = new GaugeEvaluator(TIMEOUT, 2, Collections.<Pattern>emptyList(), Collections.<Long>emptyList());
+        final MetricNames.Entry name = names.get("gauge");
+        gauge.release();
+        assertThat(evaluator.valueOf(name, gauge))
+                .isEqualTo(1);
+
+        gauge.block();
+        assertThat(evaluator.valueOf(name, gauge))
+                .isEqualTo(1);
+
+        // The late read isn't waited for again.
+        final long start = System.nanoTime();
+        assertThat(evaluator.valueOf(name, gauge))
+                .isEqualTo(1);
+        assertThat(System.nanoTime() - start)
+                .isLessThan(TIMEOUT);
+
+        // Until it returns, the value is stale.
+        assertThat(evaluator.valueOf(name, gauge))
+                .isNull();
+
+        gauge.release();
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(TIMEOUT));
+        assertThat(evaluator.valueOf(name, gauge))
+                .isEqualTo(2);
+        assertThat(evaluator.valueOf(name, gauge))
+                .isEqualTo(3);
+    }
+
+    @Test
+    public void cachesMatchingGauges() throws Exception {
+        evaluator = new GaugeEvaluator(0, 3, Collections.singletonList(Pattern.compile("expensive\\..*")), Collections.singletonList(TimeUnit.HOURS.toNanos(1)));
+        gauge.release();
+
+        assertThat(evaluator.valueOf(names.get("expensive.gauge"), gauge))
+                .isEqualTo(1);
+        assertThat(evaluator.valueOf(names.get("expensive.gauge"), gauge))
+                .isEqualTo(1);
+        assertThat(evaluator.valueOf(names.get("cheap.gauge"), gauge))
+                .isEqualTo(2);
+        assertThat(evaluator.valueOf(names.get("cheap.gauge"), gauge))
+                .isEqualTo(3);
+    }
+
+    @Test
+    public void propagatesGaugeFailures() throws Exception {
+        evaluator = new GaugeEvaluator(TIMEOUT, 3, Collections.<Pattern>emptyList(), Collections.<Long>emptyList());
+        final Gauge<Integer> failing = new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                throw new IllegalStateException("broken");
+            }
+        };
+
+        try {
+            evaluator.valueOf(names.get("gauge"), failing);
+            failBecauseExceptionWasNotThrown(IllegalStateException.class);
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage()).isEqualTo("broken");
+        }
+    }
+
+    /**
+     * Counts its reads, which wait while it is blocked.
+     */
+    private static class SlowGauge implements Gauge<Integer> {
+        private final AtomicInteger reads = new AtomicInteger();
+        private volatile CountDownLatch latch = new CountDownLatch(1);
+        private volatile Thread thread;
+
+        @Override
+        public Integer getValue() {
+            thread = Thread.currentThread();
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return reads.incrementAndGet();
+        }
+
+        private void block() {
+            latch = new CountDownLatch(1);
+        }
+
+        private void release() {
+            latch.countDown();
+        }
+    }
+}
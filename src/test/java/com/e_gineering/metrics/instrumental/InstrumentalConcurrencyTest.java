@@ -0,0 +1,191 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static com.e_gineering.metrics.instrumental.MetricType.*;
+
+public class InstrumentalConcurrencyTest {
+    private static final int THREADS = 8;
+    private static final int SENDS = 5000;
+    private static final int NOTICES = 50;
+
+    private static final Pattern GAUGE_LINE = Pattern.compile("gauge thread(\\d+) (\\d+) 100");
+    private static final Pattern NOTICE_LINE = Pattern.compile("notice \\d+ 0 thread(\\d+)\\.notice(\\d+)");
+
+    private FakeCollector collector;
+    private Instrumental instrumental;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        collector = new FakeCollector();
+        instrumental = new Instrumental("Th3Ap1K3y", collector.getAddress());
+        instrumental.setAggregationInterval(50, TimeUnit.MILLISECONDS);
+        instrumental.setNoticeRateLimit(THREADS * NOTICES);
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        instrumental.close();
+        collector.close();
+    }
+
+    @Test
+    public void sendsWholeLinesInOrderFromManyThreads() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    for (int i = 0; i < SENDS; i++) {
+                        instrumental.send(GAUGE, "thread" + thread, Integer.toString(i), 100);
+                        if (i % (SENDS / NOTICES) == 0) {
+                            instrumental.notice("thread" + thread + ".notice" + i);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        // Every thread connects on its first send, unless another one already has.
+        start.countDown();
+        for (Future<Void> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        instrumental.flush();
+
+        final int expected = THREADS * (SENDS + NOTICES);
+        assertThat(collector.awaitLines(expected, 10, TimeUnit.SECONDS))
+                .isTrue();
+        assertThat(collector.getConnections())
+                .isEqualTo(1);
+        assertThat(instrumental.getDroppedLines())
+                .isZero();
+
+        final Map<String, Integer> lastValues = new HashMap<String, Integer>();
+        final Map<String, Integer> lastNotices = new HashMap<String, Integer>();
+        for (String line : collector.getLines()) {
+            Matcher matcher = GAUGE_LINE.matcher(line);
+            if (matcher.matches()) {
+                assertInOrder(lastValues, matcher.group(1), Integer.parseInt(matcher.group(2)));
+                continue;
+            }
+            matcher = NOTICE_LINE.matcher(line);
+            assertThat(matcher.matches())
+                    .as(line)
+                    .isTrue();
+            assertInOrder(lastNotices, matcher.group(1), Integer.parseInt(matcher.group(2)));
+        }
+
+        assertThat(collector.getLines())
+                .hasSize(expected);
+        for (int t = 0; t < THREADS; t++) {
+            assertThat(lastValues.get(Integer.toString(t)))
+                    .isEqualTo(SENDS - 1);
+        }
+    }
+
+    @Test
+    public void sendsNoticesFromManyThreadsWithoutFlushing() throws Exception {
+        instrumental.connect();
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < NOTICES; i++) {
+                        instrumental.notice("thread" + thread + ".notice" + i);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+
+        // Notices are queued, then sent and flushed in the background.
+        assertThat(collector.awaitLines(THREADS * NOTICES, 10, TimeUnit.SECONDS))
+                .isTrue();
+    }
+
+    @Test
+    public void aggregatesIncrementsFromManyThreads() throws Exception {
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int t = 0; t < THREADS; t++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < SENDS; i++) {
+                        instrumental.increment("events");
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+
+        long total = 0;
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (total < THREADS * SENDS && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+            total = 0;
+            for (String line : collector.getLines()) {
+                assertThat(line).matches("increment events \\d+ \\d+");
+                total += Long.parseLong(line.split(" ")[2]);
+            }
+        }
+
+        assertThat(total)
+                .isEqualTo(THREADS * SENDS);
+        assertThat(collector.getLines().size())
+                .isLessThan(THREADS * SENDS);
+    }
+
+    private static void assertInOrder(Map<String, Integer> last, String thread, int value) {
+        final Integer previous = last.put(thread, value);
+        assertThat(value)
+                .as("thread " + thread)
+                .isGreaterThan(previous == null ? -1 : previous);
+    }
+}
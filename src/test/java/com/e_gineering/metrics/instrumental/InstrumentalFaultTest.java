@@ -0,0 +1,321 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Fail.failBecauseExceptionWasNotThrown;
+import static com.e_gineering.metrics.instrumental.MetricType.*;
+
+/**
+ * How {@link Instrumental} copes with a collector misbehaving over a real connection.
+ */
+public class InstrumentalFaultTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeCollector collector;
+    private Instrumental instrumental;
+
+    @Before
+    public void setUp() throws Exception {
+        collector = new FakeCollector();
+        instrumental = new Instrumental("Th3Ap1K3y", collector.getAddress());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        instrumental.close();
+        collector.close();
+    }
+
+    @Test
+    public void failsToConnectWhenApiKeyIsRejected() throws Exception {
+        collector.setRejectingApiKey(true);
+
+        try {
+            instrumental.connect();
+            failBecauseExceptionWasNotThrown(ProtocolException.class);
+        } catch (ProtocolException e) {
+            assertThat(e.getMessage()).isEqualTo("authenticate failed");
+        }
+        assertThat(instrumental.isConnected()).isFalse();
+        assertThat(instrumental.getConnectFailures()).isEqualTo(1);
+    }
+
+    @Test
+    public void timesOutSlowHandshake() throws Exception {
+        collector.setAckDelay(2, TimeUnit.SECONDS);
+        instrumental.setHandshakeTimeout(200, TimeUnit.MILLISECONDS);
+
+        final long start = System.nanoTime();
+        try {
+            instrumental.connect();
+            failBecauseExceptionWasNotThrown(SocketTimeoutException.class);
+        } catch (SocketTimeoutException e) {
+            // Expected
+        }
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(1000);
+        assertThat(instrumental.isConnected()).isFalse();
+    }
+
+    @Test
+    public void neverBlocksOnNoticesWhileCollectorIsSlow() throws Exception {
+        collector.setAckDelay(500, TimeUnit.MILLISECONDS);
+        instrumental.setAggregationInterval(50, TimeUnit.MILLISECONDS);
+
+        final long start = System.nanoTime();
+        instrumental.notice("deployed");
+        instrumental.notice("deployed");
+        instrumental.notice("failed over", 5, TimeUnit.SECONDS);
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(100);
+
+        assertThat(collector.awaitLines(2, 5, TimeUnit.SECONDS)).isTrue();
+        final List<String> lines = collector.getLines();
+        assertThat(lines.get(0)).matches("notice \\d+ 0 deployed");
+        assertThat(lines.get(1)).matches("notice \\d+ 5 failed.over");
+        assertThat(instrumental.getCoalescedNotices()).isEqualTo(1);
+    }
+
+    @Test
+    public void reconnectsAfterConnectionIsReset() throws Exception {
+        instrumental.connect();
+        instrumental.send(GAUGE, "before", "1", 100);
+        instrumental.flush();
+        assertThat(collector.awaitLines(1, 5, TimeUnit.SECONDS)).isTrue();
+
+        collector.resetConnections();
+
+        // Writes to the reset connection fail, and are given up on as the reporter does, then the circuit breaker
+        // holds off reconnecting for a while.
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (collector.getLineCount() < 2 && System.nanoTime() < deadline) {
+            try {
+                instrumental.send(GAUGE, "after", "2", 101);
+                instrumental.flush();
+                collector.awaitLines(2, 100, TimeUnit.MILLISECONDS);
+            } catch (IOException e) {
+                closeQuietly();
+                Thread.sleep(100);
+            }
+        }
+
+        final List<String> lines = collector.getLines();
+        assertThat(lines.get(0)).isEqualTo("gauge before 1 100");
+        assertThat(lines).contains("gauge after 2 101");
+        assertThat(collector.getConnections()).isEqualTo(2);
+        assertThat(instrumental.getConnectAttempts()).isEqualTo(2);
+    }
+
+    @Test
+    public void spoolsAReportWhoseFlushFails() throws Exception {
+        final AtomicLong now = new AtomicLong(100000);
+        final MetricRegistry registry = new MetricRegistry();
+        final InstrumentalReporter reporter = InstrumentalReporter.forRegistry(registry)
+                                                                  .withClock(new Clock() {
+                                                                      @Override
+                                                                      public long getTick() {
+                                                                          return System.nanoTime();
+                                                                      }
+
+                                                                      @Override
+                                                                      public long getTime() {
+                                                                          return now.addAndGet(1000);
+                                                                      }
+                                                                  })
+                                                                  .spoolTo(folder.newFile("spool"), 64 * 1024)
+                                                                  .build(instrumental);
+        registry.counter("requests").inc();
+        reporter.report();
+        assertThat(collector.awaitLines(1, 5, TimeUnit.SECONDS)).isTrue();
+
+        // The next report is written into the send buffer, and only fails once flushed.
+        collector.resetConnections();
+        Thread.sleep(200);
+        reporter.report();
+        assertThat(reporter.getStats().getSpooledBytes()).isGreaterThan(0);
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!collector.getLines().contains("gauge requests.count 1 102") && System.nanoTime() < deadline) {
+            Thread.sleep(100);
+            reporter.report();
+        }
+        assertThat(collector.getLines()).contains("gauge requests.count 1 101", "gauge requests.count 1 102");
+        reporter.stop();
+    }
+
+    @Test
+    public void countsFailuresUntilAFlushSucceeds() throws Exception {
+        instrumental.setReconnectBackoff(10, 10, TimeUnit.MILLISECONDS);
+        instrumental.connect();
+        instrumental.send(GAUGE, "before", "1", 100);
+        instrumental.flush();
+
+        collector.resetConnections();
+        Thread.sleep(200);
+        try {
+            instrumental.send(GAUGE, "lost", "2", 101);
+            instrumental.flush();
+            failBecauseExceptionWasNotThrown(IOException.class);
+        } catch (IOException e) {
+            closeQuietly();
+        }
+        assertThat(instrumental.getFailures()).isEqualTo(1);
+
+        Thread.sleep(50);
+        // Reconnects, but the line only reaches the send buffer.
+        instrumental.send(GAUGE, "after", "3", 102);
+        assertThat(instrumental.isConnected()).isTrue();
+        assertThat(instrumental.getFailures()).isEqualTo(1);
+
+        instrumental.flush();
+        assertThat(instrumental.getFailures()).isZero();
+    }
+
+    @Test
+    public void sendsEverythingToASlowCollector() throws Exception {
+        collector.setReadDelay(1, TimeUnit.MILLISECONDS);
+        collector.setRecordingLines(false);
+        instrumental.connect();
+
+        for (int i = 0; i < 500; i++) {
+            instrumental.send(INCREMENT, "slow", "1", 100);
+        }
+        instrumental.flush();
+
+        assertThat(collector.awaitLines(500, 10, TimeUnit.SECONDS)).isTrue();
+        assertThat(collector.getMalformedLines()).isZero();
+        assertThat(collector.getLines()).isEmpty();
+    }
+
+    @Test
+    public void waitsToWriteRatherThanDroppingAReport() throws Exception {
+        collector.setAckDelay(300, TimeUnit.MILLISECONDS);
+        collector.setRecordingLines(false);
+        final Thread connecting = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    instrumental.connect();
+                } catch (IOException e) {
+                    // The write below reconnects
+                }
+            }
+        });
+        connecting.start();
+        Thread.sleep(50);
+
+        // Several times what may be queued for a writing thread
+        final LineEncoder chunk = new LineEncoder();
+        int linesPerChunk = 0;
+        while (chunk.size() < 16 * 1024) {
+            chunk.encode(GAUGE, "bulk", "1", 100);
+            linesPerChunk++;
+        }
+        final int chunks = 3 * Instrumental.MAX_QUEUED_BYTES / chunk.size();
+        for (int i = 0; i < chunks; i++) {
+            instrumental.write(chunk.array(), 0, chunk.size());
+        }
+        instrumental.flush();
+        connecting.join();
+
+        assertThat(collector.awaitLines(chunks * linesPerChunk, 10, TimeUnit.SECONDS)).isTrue();
+        assertThat(instrumental.getDroppedLines()).isZero();
+    }
+
+    @Test
+    public void retriesNoticesWhoseSendFailed() throws Exception {
+        instrumental.setAggregationInterval(50, TimeUnit.MILLISECONDS);
+        instrumental.setReconnectBackoff(10, 20, TimeUnit.MILLISECONDS);
+        instrumental.notice("first");
+        assertThat(collector.awaitLines(1, 5, TimeUnit.SECONDS)).isTrue();
+
+        collector.resetConnections();
+        instrumental.notice("second");
+
+        assertThat(collector.awaitLines(2, 5, TimeUnit.SECONDS)).isTrue();
+        assertThat(collector.getLines().get(1)).matches("notice \\d+ 0 second");
+        assertThat(collector.getConnections()).isEqualTo(2);
+        // The breaker closes once the flush returns, which may be just after the collector has read the line.
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (instrumental.getFailures() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(instrumental.getFailures()).isZero();
+    }
+
+    @Test
+    public void stopsSendingInTheBackgroundOnClose() throws Exception {
+        final int before = schedulerThreads();
+        instrumental.setAggregationInterval(50, TimeUnit.MILLISECONDS);
+        instrumental.increment("before");
+        assertThat(collector.awaitLines(1, 5, TimeUnit.SECONDS)).isTrue();
+        assertThat(schedulerThreads()).isEqualTo(before + 1);
+
+        instrumental.close();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (schedulerThreads() > before && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(schedulerThreads()).isEqualTo(before);
+
+        // Held, rather than reopening the connection behind the closer's back...
+        instrumental.increment("after");
+        Thread.sleep(200);
+        assertThat(collector.getConnections()).isEqualTo(1);
+        assertThat(schedulerThreads()).isEqualTo(before);
+
+        // ...until it's used again.
+        instrumental.connect();
+        assertThat(collector.awaitLines(2, 5, TimeUnit.SECONDS)).isTrue();
+        assertThat(collector.getLines().get(0)).matches("increment before 1 \\d+");
+        assertThat(collector.getLines().get(1)).matches("increment after 1 \\d+");
+    }
+
+    private static int schedulerThreads() {
+        final Thread[] threads = new Thread[Thread.activeCount() * 2 + 10];
+        final int count = Thread.enumerate(threads);
+        int schedulerThreads = 0;
+        for (int i = 0; i < count; i++) {
+            if (threads[i].getName().equals("instrumental-scheduler")) {
+                schedulerThreads++;
+            }
+        }
+        return schedulerThreads;
+    }
+
+    private void closeQuietly() {
+        try {
+            instrumental.close();
+        } catch (IOException e) {
+            // The connection was already broken
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.SocketFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Fail.failBecauseExceptionWasNotThrown;
+
+/**
+ * How {@link InstrumentalHub} shares threads and connections between reporters, over a real connection.
+ */
+public class InstrumentalHubTest {
+    private FakeCollector collector;
+    private InstrumentalHub hub;
+    private final MetricRegistry first = new MetricRegistry();
+    private final MetricRegistry second = new MetricRegistry();
+    private final MetricRegistry third = new MetricRegistry();
+
+    @Before
+    public void setUp() throws Exception {
+        collector = new FakeCollector();
+        hub = new InstrumentalHub("127.0.0.1", collector.getAddress().getPort(), SocketFactory.getDefault(), 1);
+        first.counter("requests").inc();
+        second.counter("requests").inc(2);
+        third.counter("requests").inc(3);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        hub.close();
+        collector.close();
+    }
+
+    @Test
+    public void sharesOneConnectionPerApiKey() throws Exception {
+        hub.start(InstrumentalReporter.forRegistry(first).prefixedWith("first"), "Th3Ap1K3y", 50, TimeUnit.MILLISECONDS);
+        hub.start(InstrumentalReporter.forRegistry(second).prefixedWith("second"), "Th3Ap1K3y", 50, TimeUnit.MILLISECONDS);
+        hub.start(InstrumentalReporter.forRegistry(third).prefixedWith("third"), "An0th3rK3y", 50, TimeUnit.MILLISECONDS);
+
+        assertThat(awaitLineStartingWith("gauge first.requests.count 1 ")).isTrue();
+        assertThat(awaitLineStartingWith("gauge second.requests.count 2 ")).isTrue();
+        assertThat(awaitLineStartingWith("gauge third.requests.count 3 ")).isTrue();
+        assertThat(collector.getConnections()).isEqualTo(2);
+        assertThat(collector.getAuthentications()).isEqualTo(2);
+    }
+
+    @Test
+    public void keepsTheConnectionOpenWhenOneReporterStops() throws Exception {
+        final InstrumentalReporter stopped = hub.start(InstrumentalReporter.forRegistry(first).prefixedWith("first"), "Th3Ap1K3y", 50, TimeUnit.MILLISECONDS);
+        hub.start(InstrumentalReporter.forRegistry(second).prefixedWith("second"), "Th3Ap1K3y", 50, TimeUnit.MILLISECONDS);
+        assertThat(awaitLineStartingWith("gauge first.requests.count 1 ")).isTrue();
+
+        hub.stop(stopped);
+        second.counter("requests").inc(40);
+
+        assertThat(awaitLineStartingWith("gauge second.requests.count 42 ")).isTrue();
+        assertThat(hub.sender("Th3Ap1K3y").isConnected()).isTrue();
+        assertThat(collector.getConnections()).isEqualTo(1);
+    }
+
+    @Test
+    public void reconnectsAfterAFailedReport() throws Exception {
+        hub.start(InstrumentalReporter.forRegistry(first).prefixedWith("first"), "Th3Ap1K3y", 50, TimeUnit.MILLISECONDS);
+        assertThat(awaitLineStartingWith("gauge first.requests.count 1 ")).isTrue();
+
+        collector.resetConnections();
+        first.counter("requests").inc(9);
+
+        assertThat(awaitLineStartingWith("gauge first.requests.count 10 ")).isTrue();
+        assertThat(collector.getConnections()).isEqualTo(2);
+    }
+
+    @Test
+    public void rejectsReportersItDidNotStart() throws Exception {
+        final InstrumentalReporter reporter = InstrumentalReporter.forRegistry(first).build(hub.sender("Th3Ap1K3y"));
+        try {
+            hub.stop(reporter);
+            failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+        } catch (IllegalArgumentException e) {
+            // Expected
+        } finally {
+            reporter.stop();
+        }
+    }
+
+    @Test
+    public void sendsNoticesOnItsOwnThreadsAndLetsThemGoOnClose() throws Exception {
+        final int before = threadsNamed("instrumental-hub-") + threadsNamed("instrumental-scheduler");
+        hub.start(InstrumentalReporter.forRegistry(first).prefixedWith("first"), "Th3Ap1K3y", 50, TimeUnit.MILLISECONDS);
+        hub.sender("Th3Ap1K3y").notice("deployed");
+
+        assertThat(awaitLineStartingWith("gauge first.requests.count 1 ")).isTrue();
+        assertThat(awaitLineStartingWith("notice ")).isTrue();
+        assertThat(threadsNamed("instrumental-scheduler")).isEqualTo(0);
+        assertThat(collector.getConnections()).isEqualTo(1);
+
+        hub.close();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (threadsNamed("instrumental-hub-") + threadsNamed("instrumental-scheduler") > before
+                       && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        // Threads left by earlier tests' hubs may have gone too.
+        assertThat(threadsNamed("instrumental-hub-") + threadsNamed("instrumental-scheduler")).isLessThanOrEqualTo(before);
+    }
+
+    @Test
+    public void refusesNewConnectionsOnceClosed() throws Exception {
+        final InstrumentalSender open = hub.sender("Th3Ap1K3y");
+        hub.close();
+
+        assertThat(hub.sender("Th3Ap1K3y")).isSameAs(open);
+        try {
+            hub.sender("An0th3rK3y");
+            failBecauseExceptionWasNotThrown(IllegalStateException.class);
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    private boolean awaitLineStartingWith(String prefix) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (System.nanoTime() < deadline) {
+            for (String line : collector.getLines()) {
+                if (line.startsWith(prefix)) {
+                    return true;
+                }
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    private static int threadsNamed(String prefix) {
+        final Thread[] threads = new Thread[Thread.activeCount() * 2 + 10];
+        final int count = Thread.enumerate(threads);
+        int named = 0;
+        for (int i = 0; i < count; i++) {
+            if (threads[i].getName().startsWith(prefix)) {
+                named++;
+            }
+        }
+        return named;
+    }
+}
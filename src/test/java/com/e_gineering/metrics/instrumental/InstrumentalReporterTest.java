@@ -25,14 +25,30 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import java.io.File;
+import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
@@ -40,9 +56,10 @@ import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
-import static com.e_gineering.metrics.instrumental.MetricType.*;
 
 public class InstrumentalReporterTest {
+    private static final Charset ASCII = Charset.forName("ASCII");
+
     private final long timestamp = 1000198;
     private final Clock clock = mock(Clock.class);
     private final Instrumental instrumental = mock(Instrumental.class);
@@ -54,10 +71,25 @@ public class InstrumentalReporterTest {
                                                               .convertDurationsTo(TimeUnit.MILLISECONDS)
                                                               .filter(MetricFilter.ALL)
                                                               .build(instrumental);
+    private final List<String> lines = new ArrayList<String>();
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
 
     @Before
     public void setUp() throws Exception {
         when(clock.getTime()).thenReturn(timestamp * 1000);
+
+        // Record the lines written, since the buffer is reused once write() returns.
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                final Object[] args = invocation.getArguments();
+                final String written = new String((byte[]) args[0], (Integer) args[1], (Integer) args[2], ASCII);
+                lines.addAll(Arrays.asList(written.split("\n")));
+                return null;
+            }
+        }).when(instrumental).write(any(byte[].class), anyInt(), anyInt());
     }
 
     @Test
@@ -71,10 +103,12 @@ public class InstrumentalReporterTest {
         final InOrder inOrder = inOrder(instrumental);
         inOrder.verify(instrumental).isConnected();
         inOrder.verify(instrumental).connect();
-        inOrder.verify(instrumental, never()).send(GAUGE, "prefix.gauge", "value", timestamp);
+        inOrder.verify(instrumental, never()).write(any(byte[].class), anyInt(), anyInt());
         inOrder.verify(instrumental).flush();
 
         verifyNoMoreInteractions(instrumental);
+
+        assertThat(lines).isEmpty();
     }
 
     @Test
@@ -88,10 +122,36 @@ public class InstrumentalReporterTest {
         final InOrder inOrder = inOrder(instrumental);
         inOrder.verify(instrumental).isConnected();
         inOrder.verify(instrumental).connect();
-        inOrder.verify(instrumental).send(GAUGE, "prefix.gauge", "1.00", timestamp);
+        inOrder.verify(instrumental).write(any(byte[].class), anyInt(), anyInt());
         inOrder.verify(instrumental).flush();
 
         verifyNoMoreInteractions(instrumental);
+
+        assertThat(lines).containsExactly(
+                line("prefix.gauge", "1"));
+    }
+
+    @Test
+    public void sendsLinesOneAtATimeToSendersWithoutBulkWrites() throws Exception {
+        final InstrumentalSender sender = mock(InstrumentalSender.class);
+        final InstrumentalReporter reporter = InstrumentalReporter.forRegistry(registry)
+                                                                  .withClock(clock)
+                                                                  .prefixedWith("prefix")
+                                                                  .build(sender);
+
+        reporter.report(map("gauge", gauge(1)),
+                        this.<Counter>map(),
+                        this.<Histogram>map(),
+                        this.<Meter>map(),
+                        this.<Timer>map());
+
+        final InOrder inOrder = inOrder(sender);
+        inOrder.verify(sender).isConnected();
+        inOrder.verify(sender).connect();
+        inOrder.verify(sender).send(MetricType.GAUGE, "prefix.gauge", "1", timestamp);
+        inOrder.verify(sender).flush();
+
+        verifyNoMoreInteractions(sender);
     }
 
     @Test
@@ -105,10 +165,13 @@ public class InstrumentalReporterTest {
         final InOrder inOrder = inOrder(instrumental);
         inOrder.verify(instrumental).isConnected();
         inOrder.verify(instrumental).connect();
-        inOrder.verify(instrumental).send(GAUGE, "prefix.gauge", "1.00", timestamp);
+        inOrder.verify(instrumental).write(any(byte[].class), anyInt(), anyInt());
         inOrder.verify(instrumental).flush();
 
         verifyNoMoreInteractions(instrumental);
+
+        assertThat(lines).containsExactly(
+                line("prefix.gauge", "1"));
     }
 
     @Test
@@ -122,10 +185,13 @@ public class InstrumentalReporterTest {
         final InOrder inOrder = inOrder(instrumental);
         inOrder.verify(instrumental).isConnected();
         inOrder.verify(instrumental).connect();
-        inOrder.verify(instrumental).send(GAUGE, "prefix.gauge", "1.00", timestamp);
+        inOrder.verify(instrumental).write(any(byte[].class), anyInt(), anyInt());
         inOrder.verify(instrumental).flush();
 
         verifyNoMoreInteractions(instrumental);
+
+        assertThat(lines).containsExactly(
+                line("prefix.gauge", "1"));
     }
 
     @Test
@@ -139,10 +205,13 @@ public class InstrumentalReporterTest {
         final InOrder inOrder = inOrder(instrumental);
         inOrder.verify(instrumental).isConnected();
         inOrder.verify(instrumental).connect();
-        inOrder.verify(instrumental).send(GAUGE, "prefix.gauge", "1.00", timestamp);
+        inOrder.verify(instrumental).write(any(byte[].class), anyInt(), anyInt());
         inOrder.verify(instrumental).flush();
 
         verifyNoMoreInteractions(instrumental);
+
+        assertThat(lines).containsExactly(
+                line("prefix.gauge", "1"));
     }
 
     @Test
@@ -156,10 +225,13 @@ public class InstrumentalReporterTest {
         final InOrder inOrder = inOrder(instrumental);
         inOrder.verify(instrumental).isConnected();
         inOrder.verify(instrumental).connect();
-        inOrder.verify(instrumental).send(GAUGE, "prefix.gauge", "1.10", timestamp);
+        inOrder.verify(instrumental).write(any(byte[].class), anyInt(), anyInt());
         inOrder.verify(instrumental).flush();
 
         verifyNoMoreInteractions(instrumental);
+
+        assertThat(lines).containsExactly(
+                line("prefix.gauge", "1.1"));
     }
 
     @Test
@@ -173,10 +245,62 @@ public class InstrumentalReporterTest {
         final InOrder inOrder = inOrder(instrumental);
         inOrder.verify(instrumental).isConnected();
         inOrder.verify(instrumental).connect();
-        inOrder.verify(instrumental).send(GAUGE, "prefix.gauge", "1.10", timestamp);
+        inOrder.verify(instrumental).write(any(byte[].class), anyInt(), anyInt());
         inOrder.verify(instrumental).flush();
 
         verifyNoMoreInteractions(instrumental);
+
+        assertThat(lines).containsExactly(
+                line("prefix.gauge", "1.1"));
+    }
+
+    @Test
+    public void reportsLargeLongGaugeValuesExactly() throws Exception {
+        reporter.report(map("gauge", gauge(1234567890123456789L)),
+                        this.<Counter>map(),
+                        this.<Histogram>map(),
+                        this.<Meter>map(),
+                        this.<Timer>map());
+
+        assertThat(lines).containsExactly(
+                line("prefix.gauge", "1234567890123456789"));
+    }
+
+    @Test
+    public void reportsPrimitiveGaugeValuesWithoutBoxing() throws Exception {
+        final SortedMap<String, Gauge> gauges = new TreeMap<String, Gauge>();
+        gauges.put("double", new DoubleGauge() {
+            @Override
+            public double getDoubleValue() {
+                return 2.345;
+            }
+
+            @Override
+            public Double getValue() {
+                throw new AssertionError("Boxed value read");
+            }
+        });
+        gauges.put("long", new LongGauge() {
+            @Override
+            public long getLongValue() {
+                return Long.MAX_VALUE;
+            }
+
+            @Override
+            public Long getValue() {
+                throw new AssertionError("Boxed value read");
+            }
+        });
+
+        reporter.report(gauges,
+                        this.<Counter>map(),
+                        this.<Histogram>map(),
+                        this.<Meter>map(),
+                        this.<Timer>map());
+
+        assertThat(lines).containsExactly(
+                line("prefix.double", "2.35"),
+                line("prefix.long", "9223372036854775807"));
     }
 
     @Test
@@ -193,10 +317,13 @@ public class InstrumentalReporterTest {
         final InOrder inOrder = inOrder(instrumental);
         inOrder.verify(instrumental).isConnected();
         inOrder.verify(instrumental).connect();
-        inOrder.verify(instrumental).send(GAUGE, "prefix.counter.count", "100", timestamp);
+        inOrder.verify(instrumental).write(any(byte[].class), anyInt(), anyInt());
         inOrder.verify(instrumental).flush();
 
         verifyNoMoreInteractions(instrumental);
+
+        assertThat(lines).containsExactly(
+                line("prefix.counter.count", "100"));
     }
 
     @Test
@@ -227,20 +354,23 @@ public class InstrumentalReporterTest {
         final InOrder inOrder = inOrder(instrumental);
         inOrder.verify(instrumental).isConnected();
         inOrder.verify(instrumental).connect();
-        inOrder.verify(instrumental).send(GAUGE, "prefix.histogram.count", "1", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.histogram.max", "2", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.histogram.mean", "3.00", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.histogram.min", "4", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.histogram.stddev", "5.00", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.histogram.p50", "6.00", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.histogram.p75", "7.00", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.histogram.p95", "8.00", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.histogram.p98", "9.00", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.histogram.p99", "10.00", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.histogram.p999", "11.00", timestamp);
+        inOrder.verify(instrumental).write(any(byte[].class), anyInt(), anyInt());
         inOrder.verify(instrumental).flush();
 
         verifyNoMoreInteractions(instrumental);
+
+        assertThat(lines).containsExactly(
+                line("prefix.histogram.count", "1"),
+                line("prefix.histogram.max", "2"),
+                line("prefix.histogram.mean", "3"),
+                line("prefix.histogram.min", "4"),
+                line("prefix.histogram.stddev", "5"),
+                line("prefix.histogram.p50", "6"),
+                line("prefix.histogram.p75", "7"),
+                line("prefix.histogram.p95", "8"),
+                line("prefix.histogram.p98", "9"),
+                line("prefix.histogram.p99", "10"),
+                line("prefix.histogram.p999", "11"));
     }
 
     @Test
@@ -261,14 +391,17 @@ public class InstrumentalReporterTest {
         final InOrder inOrder = inOrder(instrumental);
         inOrder.verify(instrumental).isConnected();
         inOrder.verify(instrumental).connect();
-        inOrder.verify(instrumental).send(GAUGE, "prefix.meter.count", "1", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.meter.m1_rate", "2.00", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.meter.m5_rate", "3.00", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.meter.m15_rate", "4.00", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.meter.mean_rate", "5.00", timestamp);
+        inOrder.verify(instrumental).write(any(byte[].class), anyInt(), anyInt());
         inOrder.verify(instrumental).flush();
 
         verifyNoMoreInteractions(instrumental);
+
+        assertThat(lines).containsExactly(
+                line("prefix.meter.count", "1"),
+                line("prefix.meter.m1_rate", "2"),
+                line("prefix.meter.m5_rate", "3"),
+                line("prefix.meter.m15_rate", "4"),
+                line("prefix.meter.mean_rate", "5"));
     }
 
     @Test
@@ -304,24 +437,217 @@ public class InstrumentalReporterTest {
         final InOrder inOrder = inOrder(instrumental);
         inOrder.verify(instrumental).isConnected();
         inOrder.verify(instrumental).connect();
-        inOrder.verify(instrumental).send(GAUGE, "prefix.timer.max", "100.00", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.timer.mean", "200.00", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.timer.min", "300.00", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.timer.stddev", "400.00", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.timer.p50", "500.00", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.timer.p75", "600.00", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.timer.p95", "700.00", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.timer.p98", "800.00", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.timer.p99", "900.00", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.timer.p999", "1000.00", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.timer.count", "1", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.timer.m1_rate", "3.00", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.timer.m5_rate", "4.00", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.timer.m15_rate", "5.00", timestamp);
-        inOrder.verify(instrumental).send(GAUGE, "prefix.timer.mean_rate", "2.00", timestamp);
+        inOrder.verify(instrumental).write(any(byte[].class), anyInt(), anyInt());
         inOrder.verify(instrumental).flush();
 
         verifyNoMoreInteractions(instrumental);
+
+        assertThat(lines).containsExactly(
+                line("prefix.timer.max", "100"),
+                line("prefix.timer.mean", "200"),
+                line("prefix.timer.min", "300"),
+                line("prefix.timer.stddev", "400"),
+                line("prefix.timer.p50", "500"),
+                line("prefix.timer.p75", "600"),
+                line("prefix.timer.p95", "700"),
+                line("prefix.timer.p98", "800"),
+                line("prefix.timer.p99", "900"),
+                line("prefix.timer.p999", "1000"),
+                line("prefix.timer.count", "1"),
+                line("prefix.timer.m1_rate", "3"),
+                line("prefix.timer.m5_rate", "4"),
+                line("prefix.timer.m15_rate", "5"),
+                line("prefix.timer.mean_rate", "2"));
+    }
+
+    @Test
+    public void reportsValuesWithConfiguredPrecision() throws Exception {
+        final InstrumentalReporter reporter = InstrumentalReporter.forRegistry(registry)
+                                                                  .withClock(clock)
+                                                                  .withGaugePrecision(0)
+                                                                  .withRatePrecision(4)
+                                                                  .build(instrumental);
+        final Meter meter = mock(Meter.class);
+        when(meter.getCount()).thenReturn(1L);
+        when(meter.getOneMinuteRate()).thenReturn(0.12345);
+        when(meter.getFiveMinuteRate()).thenReturn(0.5);
+        when(meter.getFifteenMinuteRate()).thenReturn(1.0);
+        when(meter.getMeanRate()).thenReturn(2.00001);
+
+        reporter.report(map("gauge", gauge(1.6)),
+                        this.<Counter>map(),
+                        this.<Histogram>map(),
+                        this.<Meter>map("meter", meter),
+                        this.<Timer>map());
+
+        assertThat(lines).containsExactly(
+                line("gauge", "2"),
+                line("meter.count", "1"),
+                line("meter.m1_rate", "0.1235"),
+                line("meter.m5_rate", "0.5"),
+                line("meter.m15_rate", "1"),
+                line("meter.mean_rate", "2"));
+    }
+
+    @Test
+    public void reportsCountsAsIncrements() throws Exception {
+        final InstrumentalReporter reporter = InstrumentalReporter.forRegistry(registry)
+                                                                  .withClock(clock)
+                                                                  .reportCountsAsIncrements()
+                                                                  .build(instrumental);
+        final Counter counter = mock(Counter.class);
+        when(counter.getCount()).thenReturn(100L, 150L, 150L);
+
+        for (int i = 0; i < 3; i++) {
+            reporter.report(this.<Gauge>map(),
+                            this.<Counter>map("counter", counter),
+                            this.<Histogram>map(),
+                            this.<Meter>map(),
+                            this.<Timer>map());
+        }
+
+        assertThat(lines).containsExactly(
+                increment("counter.count", "100"),
+                increment("counter.count", "50"));
+    }
+
+    @Test
+    public void reportsIncrementsSinceTheLastSuccessfulReport() throws Exception {
+        final InstrumentalReporter reporter = InstrumentalReporter.forRegistry(registry)
+                                                                  .withClock(clock)
+                                                                  .reportCountsAsIncrements()
+                                                                  .build(instrumental);
+        final Meter meter = mock(Meter.class);
+        when(meter.getCount()).thenReturn(10L, 15L, 20L);
+
+        reporter.report(this.<Gauge>map(),
+                        this.<Counter>map(),
+                        this.<Histogram>map(),
+                        this.<Meter>map("meter", meter),
+                        this.<Timer>map());
+        doThrow(new UnknownHostException("UNKNOWN-HOST")).when(instrumental).flush();
+        reporter.report(this.<Gauge>map(),
+                        this.<Counter>map(),
+                        this.<Histogram>map(),
+                        this.<Meter>map("meter", meter),
+                        this.<Timer>map());
+        doNothing().when(instrumental).flush();
+        lines.clear();
+        reporter.report(this.<Gauge>map(),
+                        this.<Counter>map(),
+                        this.<Histogram>map(),
+                        this.<Meter>map("meter", meter),
+                        this.<Timer>map());
+
+        assertThat(lines).contains(increment("meter.count", "10"));
+    }
+
+    @Test
+    public void suppressesUnchangedValues() throws Exception {
+        final InstrumentalReporter reporter = InstrumentalReporter.forRegistry(registry)
+                                                                  .withClock(clock)
+                                                                  .suppressUnchangedValues(5, TimeUnit.MINUTES)
+                                                                  .build(instrumental);
+        final Counter counter = mock(Counter.class);
+        when(counter.getCount()).thenReturn(1L, 1L, 2L);
+
+        for (int i = 0; i < 3; i++) {
+            reporter.report(map("gauge", gauge(1.001)),
+                            this.<Counter>map("counter", counter),
+                            this.<Histogram>map(),
+                            this.<Meter>map(),
+                            this.<Timer>map());
+        }
+
+        assertThat(lines).containsExactly(
+                line("gauge", "1"),
+                line("counter.count", "1"),
+                line("counter.count", "2"));
+    }
+
+    @Test
+    public void sendsUnchangedValuesAfterTheMaxSilence() throws Exception {
+        final InstrumentalReporter reporter = InstrumentalReporter.forRegistry(registry)
+                                                                  .withClock(clock)
+                                                                  .suppressUnchangedValues(1, TimeUnit.MINUTES)
+                                                                  .build(instrumental);
+        when(clock.getTime()).thenReturn(timestamp * 1000, (timestamp + 30) * 1000, (timestamp + 60) * 1000);
+
+        for (int i = 0; i < 3; i++) {
+            reporter.report(map("gauge", gauge(1)),
+                            this.<Counter>map(),
+                            this.<Histogram>map(),
+                            this.<Meter>map(),
+                            this.<Timer>map());
+        }
+
+        assertThat(lines).containsExactly(
+                "gauge gauge 1 " + timestamp,
+                "gauge gauge 1 " + (timestamp + 60));
+    }
+
+    @Test
+    public void reportsSelectedAttributes() throws Exception {
+        final InstrumentalReporter reporter = InstrumentalReporter.forRegistry(registry)
+                                                                  .withClock(clock)
+                                                                  .withAttributes(EnumSet.of(MetricAttribute.COUNT))
+                                                                  .withAttributes("http\\..*", EnumSet.of(MetricAttribute.P99, MetricAttribute.M1_RATE))
+                                                                  .build(instrumental);
+        final Snapshot snapshot = mock(Snapshot.class);
+        when(snapshot.get99thPercentile()).thenReturn(2000000.0);
+        final Timer timer = mock(Timer.class);
+        when(timer.getCount()).thenReturn(1L);
+        when(timer.getOneMinuteRate()).thenReturn(3.0);
+        when(timer.getSnapshot()).thenReturn(snapshot);
+        final Timer other = mock(Timer.class);
+        when(other.getCount()).thenReturn(2L);
+        final SortedMap<String, Timer> timers = this.<Timer>map("http.requests", timer);
+        timers.put("other", other);
+
+        reporter.report(this.<Gauge>map(),
+                        this.<Counter>map(),
+                        this.<Histogram>map(),
+                        this.<Meter>map(),
+                        timers);
+
+        assertThat(lines).containsExactly(
+                line("http.requests.p99", "2"),
+                line("http.requests.m1_rate", "3"),
+                line("other.count", "2"));
+        verify(other, never()).getSnapshot();
+    }
+
+    @Test
+    public void reportsInParallelInTheSameOrder() throws Exception {
+        final InstrumentalReporter reporter = InstrumentalReporter.forRegistry(registry)
+                                                                  .withClock(clock)
+                                                                  .withParallelism(3)
+                                                                  .build(instrumental);
+        final SortedMap<String, Gauge> gauges = this.map();
+        final SortedMap<String, Counter> counters = this.map();
+        final List<String> expected = new ArrayList<String>();
+        for (int i = 10; i < 60; i++) {
+            gauges.put("gauge" + i, gauge(i));
+            expected.add(line("gauge" + i, Integer.toString(i)));
+        }
+        for (int i = 10; i < 60; i++) {
+            final Counter counter = new Counter();
+            counter.inc(i);
+            counters.put("counter" + i, counter);
+            expected.add(line("counter" + i + ".count", Integer.toString(i)));
+        }
+
+        try {
+            reporter.report(gauges,
+                            counters,
+                            this.<Histogram>map(),
+                            this.<Meter>map(),
+                            this.<Timer>map());
+        } finally {
+            reporter.stop();
+        }
+
+        assertThat(lines).containsExactly(expected.toArray(new String[expected.size()]));
     }
 
     @Test
@@ -341,6 +667,150 @@ public class InstrumentalReporterTest {
         verifyNoMoreInteractions(instrumental);
     }
 
+    @Test
+    public void spoolsMetricsWhileInstrumentalIsUnavailable() throws Exception {
+        final InstrumentalReporter reporter = InstrumentalReporter.forRegistry(registry)
+                                                                  .withClock(clock)
+                                                                  .spoolTo(new File(folder.getRoot(), "spool"), 1024)
+                                                                  .build(instrumental);
+
+        doThrow(new UnknownHostException("UNKNOWN-HOST")).when(instrumental).connect();
+        reporter.report(map("gauge", gauge(1)),
+                        this.<Counter>map(),
+                        this.<Histogram>map(),
+                        this.<Meter>map(),
+                        this.<Timer>map());
+
+        verify(instrumental).close();
+        verify(instrumental, never()).write(any(byte[].class), anyInt(), anyInt());
+
+        doNothing().when(instrumental).connect();
+        reporter.report(map("gauge", gauge(2)),
+                        this.<Counter>map(),
+                        this.<Histogram>map(),
+                        this.<Meter>map(),
+                        this.<Timer>map());
+
+        assertThat(lines).containsExactly(
+                line("gauge", "2"),
+                line("gauge", "1"));
+
+        reporter.stop();
+    }
+
+    @Test
+    public void spoolsAReportWhoseFlushFails() throws Exception {
+        final InstrumentalReporter reporter = InstrumentalReporter.forRegistry(registry)
+                                                                  .withClock(clock)
+                                                                  .spoolTo(new File(folder.getRoot(), "spool"), 1024)
+                                                                  .build(instrumental);
+
+        doThrow(new SocketException("Connection reset")).doNothing().when(instrumental).flush();
+        reporter.report(map("gauge", gauge(1)),
+                        this.<Counter>map(),
+                        this.<Histogram>map(),
+                        this.<Meter>map(),
+                        this.<Timer>map());
+
+        verify(instrumental).close();
+
+        reporter.report(map("gauge", gauge(2)),
+                        this.<Counter>map(),
+                        this.<Histogram>map(),
+                        this.<Meter>map(),
+                        this.<Timer>map());
+
+        // The first line was lost with the connection, then replayed from the spool.
+        assertThat(lines).containsExactly(
+                line("gauge", "1"),
+                line("gauge", "2"),
+                line("gauge", "1"));
+
+        reporter.stop();
+    }
+
+    @Test
+    public void keepsSpooledLinesWhoseReplayFailsToFlush() throws Exception {
+        final InstrumentalReporter reporter = InstrumentalReporter.forRegistry(registry)
+                                                                  .withClock(clock)
+                                                                  .spoolTo(new File(folder.getRoot(), "spool"), 1024)
+                                                                  .build(instrumental);
+
+        doThrow(new UnknownHostException("UNKNOWN-HOST")).when(instrumental).connect();
+        reporter.report(map("gauge", gauge(1)),
+                        this.<Counter>map(),
+                        this.<Histogram>map(),
+                        this.<Meter>map(),
+                        this.<Timer>map());
+
+        doNothing().when(instrumental).connect();
+        // The report flushes, then the replay's flush fails.
+        doNothing().doThrow(new SocketException("Connection reset")).doNothing().when(instrumental).flush();
+        reporter.report(map("gauge", gauge(2)),
+                        this.<Counter>map(),
+                        this.<Histogram>map(),
+                        this.<Meter>map(),
+                        this.<Timer>map());
+        reporter.report(map("gauge", gauge(3)),
+                        this.<Counter>map(),
+                        this.<Histogram>map(),
+                        this.<Meter>map(),
+                        this.<Timer>map());
+
+        assertThat(lines).containsExactly(
+                line("gauge", "2"),
+                line("gauge", "1"),
+                line("gauge", "3"),
+                line("gauge", "1"));
+
+        reporter.stop();
+    }
+
+    @Test
+    public void recordsReportsInItsStats() throws Exception {
+        final Counter counter = mock(Counter.class);
+        when(counter.getCount()).thenReturn(2L);
+
+        reporter.report(map("gauge", gauge(1)),
+                        this.<Counter>map("counter", counter),
+                        this.<Histogram>map(),
+                        this.<Meter>map(),
+                        this.<Timer>map());
+
+        final InstrumentalReporterMXBean stats = reporter.getStats();
+        assertThat(stats.getReports()).isEqualTo(1);
+        assertThat(stats.getFailedReports()).isZero();
+        assertThat(stats.getLinesReported()).isEqualTo(2);
+        assertThat(stats.getBytesReported())
+                .isEqualTo(line("prefix.gauge", "1").length() + line("prefix.counter.count", "2").length() + 2);
+
+        doThrow(new UnknownHostException("UNKNOWN-HOST")).when(instrumental).connect();
+        reporter.report(map("gauge", gauge(1)),
+                        this.<Counter>map(),
+                        this.<Histogram>map(),
+                        this.<Meter>map(),
+                        this.<Timer>map());
+
+        assertThat(stats.getReports()).isEqualTo(2);
+        assertThat(stats.getFailedReports()).isEqualTo(1);
+        assertThat(stats.getLinesReported()).isEqualTo(2);
+    }
+
+    @Test
+    public void registersSelfMetricsUntilStopped() throws Exception {
+        final MetricRegistry registry = new MetricRegistry();
+        final InstrumentalReporter reporter = InstrumentalReporter.forRegistry(registry)
+                                                                  .reportSelfMetrics("instrumental.reporter")
+                                                                  .build(instrumental);
+
+        assertThat(registry.getGauges().keySet())
+                .contains("instrumental.reporter.reports", "instrumental.reporter.lines", "instrumental.reporter.connects.failed");
+
+        reporter.stop();
+
+        assertThat(registry.getGauges()).isEmpty();
+    }
+
     @Test
     public void closesConnectionOnReporterStop() throws Exception {
         reporter.stop();
@@ -350,6 +820,14 @@ public class InstrumentalReporterTest {
         verifyNoMoreInteractions(instrumental);
     }
 
+    private String line(String name, String value) {
+        return "gauge " + name + " " + value + " " + timestamp;
+    }
+
+    private String increment(String name, String value) {
+        return "increment " + name + " " + value + " " + timestamp;
+    }
+
     private <T> SortedMap<String, T> map() {
         return new TreeMap<String, T>();
     }
@@ -25,6 +25,7 @@ import javax.net.SocketFactory;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ProtocolException;
@@ -36,8 +37,11 @@ import java.util.concurrent.TimeUnit;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Fail.failBecauseExceptionWasNotThrown;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static com.e_gineering.metrics.instrumental.MetricType.*;
@@ -110,7 +114,7 @@ public class InstrumentalTest {
         verify(socket).setTrafficClass(0x04 | 0x10);
         verify(socket).setPerformancePreferences(0, 2, 1);
         verify(socket).setSoTimeout(5000);
-        verify(socket).connect(address);
+        verify(socket).connect(address, 5000);
     }
 
     @Test
@@ -126,7 +130,20 @@ public class InstrumentalTest {
         verify(socket).setTrafficClass(0x04 | 0x10);
         verify(socket).setPerformancePreferences(0, 2, 1);
         verify(socket).setSoTimeout(5000);
-        verify(socket).connect(address);
+        verify(socket).connect(address, 5000);
+    }
+
+    @Test
+    public void connectsWithConfiguredTimeouts() throws Exception {
+        instrumental = new Instrumental(apiKey, address, socketFactory);
+        instrumental.setConnectTimeout(2, TimeUnit.SECONDS);
+        instrumental.setHandshakeTimeout(500, TimeUnit.MILLISECONDS);
+        addResponse("ok");
+        addResponse("ok");
+        instrumental.connect();
+
+        verify(socket).setSoTimeout(500);
+        verify(socket).connect(address, 2000);
     }
 
     @Test
@@ -136,6 +153,31 @@ public class InstrumentalTest {
                 .isZero();
     }
 
+    @Test
+    public void backsOffAfterFailingToConnect() throws Exception {
+        doThrow(new ConnectException("Connection refused")).when(socket).connect(address, 5000);
+        instrumental = new Instrumental(apiKey, address, socketFactory);
+        instrumental.setReconnectBackoff(1, 1, TimeUnit.MINUTES);
+
+        try {
+            instrumental.connect();
+            failBecauseExceptionWasNotThrown(ConnectException.class);
+        } catch (ConnectException e) {
+            assertThat(instrumental.getFailures())
+                    .isEqualTo(1);
+        }
+
+        try {
+            instrumental.connect();
+            failBecauseExceptionWasNotThrown(CircuitOpenException.class);
+        } catch (CircuitOpenException e) {
+            assertThat(e.getRetryDelay(TimeUnit.SECONDS))
+                    .isGreaterThan(0);
+        }
+
+        verify(socketFactory, times(1)).createSocket();
+    }
+
     @Test
     public void disconnectsFromInstrumental() throws Exception {
         instrumental = new Instrumental(apiKey, address, socketFactory);
@@ -178,6 +220,18 @@ public class InstrumentalTest {
     }
 
 
+    @Test
+    public void reportsConfiguredLocalHostname() throws Exception {
+        instrumental = new Instrumental(apiKey, address, socketFactory);
+        instrumental.setLocalHostname("app-1");
+        addResponse("ok");
+        addResponse("ok");
+        instrumental.connect();
+
+        verify(socket, never()).getLocalAddress();
+        assertThat(output.toString()).matches("hello version .* hostname app-1 pid .* runtime .* platform .*\\n.*\\n");
+    }
+
     @Test
     public void handshakeFailsIfHelloBad() throws Exception {
         instrumental = new Instrumental(apiKey, address, socketFactory);
@@ -190,7 +244,18 @@ public class InstrumentalTest {
         }
 
         assertThat(!instrumental.isConnected());
-        assertThat(output.toString()).matches("hello version .* hostname .* pid .* runtime .* platform .*\\n");
+        assertThat(output.toString()).matches("hello version .* hostname .* pid .* runtime .* platform .*\\n.*\\n");
+    }
+
+    @Test
+    public void sendsHandshakeCommandsTogether() throws Exception {
+        instrumental = new Instrumental(apiKey, address, socketFactory);
+        addResponse("ok");
+        addResponse("ok");
+        instrumental.connect();
+
+        verify(output, times(1)).flush();
+        assertThat(output.toString()).matches("hello version .* hostname .* pid .* runtime .* platform .*\\nauthenticate " + apiKey + "\\n");
     }
 
     @Test
@@ -227,6 +292,40 @@ public class InstrumentalTest {
                 .isEqualTo("gauge name value 100\n");
     }
 
+    @Test
+    public void buffersValuesUntilFlushed() throws Exception {
+        instrumental = new Instrumental(apiKey, address, socketFactory);
+        addResponse("ok");
+        addResponse("ok");
+        instrumental.connect();
+        output.reset();
+        instrumental.send(GAUGE, "name", "value", 100);
+        instrumental.send(GAUGE, "name", "value", 101);
+
+        assertThat(output.size())
+                .isZero();
+
+        instrumental.flush();
+
+        assertThat(output.toString())
+                .isEqualTo("gauge name value 100\ngauge name value 101\n");
+    }
+
+    @Test
+    public void writesWhenSendBufferFills() throws Exception {
+        instrumental = new Instrumental(apiKey, address, socketFactory);
+        instrumental.setSendBufferSize(32);
+        addResponse("ok");
+        addResponse("ok");
+        instrumental.connect();
+        output.reset();
+        instrumental.send(GAUGE, "name", "value", 100);
+        instrumental.send(GAUGE, "name", "value", 101);
+
+        assertThat(output.toString())
+                .isEqualTo("gauge name value 100\n");
+    }
+
     @Test
     public void sanitizesNames() throws Exception {
         instrumental = new Instrumental(apiKey, address, socketFactory);
@@ -0,0 +1,161 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Locale;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static com.e_gineering.metrics.instrumental.MetricType.*;
+
+public class LineEncoderTest {
+    private final LineEncoder encoder = new LineEncoder(16);
+
+    @Test
+    public void encodesLines() throws Exception {
+        encoder.encode(GAUGE, "name", "value", 100);
+
+        assertThat(encoder.toString())
+                .isEqualTo("gauge name value 100\n");
+    }
+
+    @Test
+    public void appendsLinesUntilReset() throws Exception {
+        encoder.encode(GAUGE, "a", "1", 100);
+        encoder.encode(INCREMENT, "b", "2", 100);
+
+        assertThat(encoder.toString())
+                .isEqualTo("gauge a 1 100\nincrement b 2 100\n");
+
+        encoder.reset();
+        assertThat(encoder.size())
+                .isZero();
+    }
+
+    @Test
+    public void truncatesToEarlierSize() throws Exception {
+        encoder.encode(GAUGE, "a", "1", 100);
+        final int size = encoder.size();
+        encoder.encode(GAUGE, "b", "2", 100);
+
+        assertThat(encoder.truncate(size).toString())
+                .isEqualTo("gauge a 1 100\n");
+    }
+
+    @Test
+    public void hashesEncodedBytes() throws Exception {
+        final long hash = encoder.appendAscii("gauge a ").append(1.5, 2).hash(8);
+
+        assertThat(encoder.reset().appendAscii("gauge b ").append(1.5, 2).hash(8))
+                .isEqualTo(hash);
+        assertThat(encoder.reset().appendAscii("gauge a ").append(1.25, 2).hash(8))
+                .isNotEqualTo(hash);
+    }
+
+    @Test
+    public void growsPastInitialCapacity() throws Exception {
+        final StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            name.append("ab(");
+        }
+        encoder.appendName(name);
+
+        assertThat(encoder.size())
+                .isEqualTo(400);
+    }
+
+    @Test
+    public void sanitizesNames() throws Exception {
+        assertThat(LineEncoder.sanitizeName("name woo/foo$bar.invoked(param1, param2)"))
+                .isEqualTo("name.woo.foo.bar.invoked__param1-param2__");
+        assertThat(LineEncoder.sanitizeName("a((b))c"))
+                .isEqualTo("a__b__c");
+        assertThat(LineEncoder.sanitizeName("a,b, c"))
+                .isEqualTo("a.b-c");
+        assertThat(LineEncoder.sanitizeName("café 😀"))
+                .isEqualTo("caf...");
+    }
+
+    @Test
+    public void sanitizesValues() throws Exception {
+        assertThat(LineEncoder.sanitizeValue("value \t\r\n woo"))
+                .isEqualTo("value.woo");
+        assertThat(LineEncoder.sanitizeValue("café"))
+                .isEqualTo("caf?");
+    }
+
+    @Test
+    public void encodesLongs() throws Exception {
+        final long[] values = {0, 7, -7, 10, 1000198, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long value : values) {
+            assertThat(encoder.reset().append(value).toString())
+                    .isEqualTo(Long.toString(value));
+        }
+    }
+
+    @Test
+    public void encodesDoublesWithPrecision() throws Exception {
+        assertThat(encoder.reset().append(3.0, 2).toString())
+                .isEqualTo("3");
+        assertThat(encoder.reset().append(1.1, 2).toString())
+                .isEqualTo("1.1");
+        assertThat(encoder.reset().append(2.345, 2).toString())
+                .isEqualTo("2.35");
+        assertThat(encoder.reset().append(0.05, 2).toString())
+                .isEqualTo("0.05");
+        assertThat(encoder.reset().append(-1.999, 2).toString())
+                .isEqualTo("-2");
+        assertThat(encoder.reset().append(-0.001, 2).toString())
+                .isEqualTo("0");
+        assertThat(encoder.reset().append(1.23456789, 0).toString())
+                .isEqualTo("1");
+        assertThat(encoder.reset().append(1.23456789, 9).toString())
+                .isEqualTo("1.23456789");
+    }
+
+    @Test
+    public void roundsHalvesAsStringFormatDid() throws Exception {
+        final double[] values = {1.005, 2.675, 1.115, 0.125, 0.005, 0.995, 9.995, 1.0049999, 123456.785, 1.5, 2.5,
+                                 -1.005, -2.675, 4.35, 1.0005, 0.1 + 0.2, 1234567890.125};
+        for (int precision = 0; precision <= 3; precision++) {
+            for (double value : values) {
+                final String formatted = String.format(Locale.US, "%." + precision + "f", value);
+                final String encoded = encoder.reset().append(value, precision).toString();
+                assertThat(new BigDecimal(encoded).compareTo(new BigDecimal(formatted)))
+                        .as(value + " to " + precision + " places: " + encoded + " rather than " + formatted)
+                        .isZero();
+            }
+        }
+    }
+
+    @Test
+    public void encodesLargeDoublesAsIntegers() throws Exception {
+        assertThat(encoder.reset().append(1.0e17, 2).toString())
+                .isEqualTo("100000000000000000");
+        assertThat(encoder.reset().append(-1.0e30, 2).toString())
+                .isEqualTo("-1000000000000000019884624838656");
+    }
+
+    @Test
+    public void encodesSpecialDoubles() throws Exception {
+        assertThat(encoder.reset().append(Double.NaN, 2).toString())
+                .isEqualTo("NaN");
+        assertThat(encoder.reset().append(Double.NEGATIVE_INFINITY, 2).toString())
+                .isEqualTo("-Infinity");
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MetricIndexTest {
+    private final MetricRegistry registry = new MetricRegistry();
+    private final MetricNames names = new MetricNames("prefix", 100);
+    private final MetricIndex index = new MetricIndex(names, new MetricFilter() {
+        @Override
+        public boolean matches(String name, Metric metric) {
+            return !name.startsWith("ignored");
+        }
+    });
+
+    @Before
+    public void setUp() throws Exception {
+        registry.counter("existing");
+        registry.addListener(index);
+    }
+
+    @Test
+    public void ordersMetricsByKindThenName() throws Exception {
+        registry.meter("b");
+        registry.counter("c");
+        registry.meter("a");
+        registry.timer("t");
+        registry.histogram("h");
+
+        assertThat(namesOf(index.metrics()))
+                .containsExactly("c", "existing", "h", "a", "b", "t");
+    }
+
+    @Test
+    public void filtersMetricsAsTheyAreAdded() throws Exception {
+        registry.counter("ignored.counter");
+
+        assertThat(namesOf(index.metrics()))
+                .containsExactly("existing");
+        assertThat(names.size())
+                .isEqualTo(1);
+    }
+
+    @Test
+    public void sharesMetricsUntilTheRegistryChanges() throws Exception {
+        final Metrics metrics = index.metrics();
+        assertThat(index.metrics())
+                .isSameAs(metrics);
+
+        registry.remove("existing");
+
+        assertThat(index.metrics().size)
+                .isZero();
+        assertThat(names.size())
+                .isZero();
+    }
+
+    @Test
+    public void keepsMetricsWithTheirNames() throws Exception {
+        final Counter counter = registry.counter("counter");
+        final Metrics metrics = index.metrics();
+
+        assertThat(metrics.metrics[0])
+                .isSameAs(counter);
+        assertThat(metrics.kinds[0])
+                .isEqualTo(Metrics.COUNTER);
+        assertThat(new String(metrics.names[0].encoded(), "ASCII"))
+                .isEqualTo("prefix.counter");
+    }
+
+    private static List<String> namesOf(Metrics metrics) {
+        final List<String> names = new ArrayList<String>();
+        for (int i = 0; i < metrics.size; i++) {
+            names.add(metrics.names[i].getName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MetricNamesTest {
+    private static final Charset ASCII = Charset.forName("ASCII");
+
+    private final MetricNames names = new MetricNames("prefix", 2);
+
+    @Test
+    public void encodesPrefixedNames() throws Exception {
+        final MetricNames.Entry entry = names.get("some timer(a, b)");
+
+        assertThat(new String(entry.encoded(), ASCII))
+                .isEqualTo("prefix.some.timer__a-b__");
+        assertThat(new String(entry.encoded(MetricAttribute.P99), ASCII))
+                .isEqualTo("prefix.some.timer__a-b__.p99");
+    }
+
+    @Test
+    public void encodesNamesWithoutPrefix() throws Exception {
+        final MetricNames.Entry entry = new MetricNames(null, 2).get("counter");
+
+        assertThat(new String(entry.encoded(MetricAttribute.COUNT), ASCII))
+                .isEqualTo("counter.count");
+    }
+
+    @Test
+    public void cachesNames() throws Exception {
+        final MetricNames.Entry entry = names.get("timer");
+
+        assertThat(names.get("timer"))
+                .isSameAs(entry);
+        assertThat(entry.encoded(MetricAttribute.MAX))
+                .isSameAs(entry.encoded(MetricAttribute.MAX));
+    }
+
+    @Test
+    public void evictsRemovedNames() throws Exception {
+        final MetricNames.Entry entry = names.get("timer");
+        names.remove("timer");
+
+        assertThat(names.size())
+                .isZero();
+        assertThat(names.get("timer"))
+                .isNotSameAs(entry);
+    }
+
+    @Test
+    public void reusesSlotsOfRemovedNames() throws Exception {
+        final MetricNames.Entry removed = names.get("a");
+        names.remove("a");
+        final MetricNames.Entry entry = names.get("b");
+
+        assertThat(entry.getSlot())
+                .isEqualTo(removed.getSlot());
+        assertThat(entry.getSerial())
+                .isNotEqualTo(removed.getSerial());
+    }
+
+    @Test
+    public void doesNotGrowPastMaxSize() throws Exception {
+        names.get("a");
+        names.get("b");
+        final MetricNames.Entry entry = names.get("c");
+
+        assertThat(names.size())
+                .isEqualTo(2);
+        assertThat(new String(entry.encoded(), ASCII))
+                .isEqualTo("prefix.c");
+        assertThat(entry.getSlot())
+                .isEqualTo(MetricNames.Entry.NO_SLOT);
+    }
+}
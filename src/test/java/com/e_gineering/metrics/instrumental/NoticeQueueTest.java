@@ -0,0 +1,90 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NoticeQueueTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final NoticeQueue notices = new NoticeQueue();
+    private final LineEncoder lines = new LineEncoder();
+
+    @Test
+    public void encodesNoticesInOrder() throws Exception {
+        notices.offer("first notice", 100, 0, 0);
+        notices.offer("second", 101, 5, 0);
+
+        notices.drainTo(lines, 0);
+
+        assertThat(lines.toString())
+                .isEqualTo("notice 100 0 first.notice\nnotice 101 5 second\n");
+        assertThat(notices.size())
+                .isZero();
+    }
+
+    @Test
+    public void coalescesRepeatsWithinTheWindow() throws Exception {
+        assertThat(notices.offer("failover", 100, 0, 0)).isTrue();
+        assertThat(notices.offer("failover", 101, 0, SECOND)).isFalse();
+        assertThat(notices.offer("other", 101, 0, SECOND)).isTrue();
+        assertThat(notices.offer("failover", 200, 0, NoticeQueue.DEFAULT_COALESCING_WINDOW)).isTrue();
+
+        assertThat(notices.getCoalesced())
+                .isEqualTo(1);
+        assertThat(notices.size())
+                .isEqualTo(3);
+    }
+
+    @Test
+    public void limitsRate() throws Exception {
+        notices.setRateLimit(2);
+        notices.setCoalescingWindow(0);
+        for (int i = 0; i < 5; i++) {
+            notices.offer("notice", i, 0, 0);
+        }
+
+        notices.drainTo(lines, 0);
+        assertThat(notices.size()).isEqualTo(3);
+
+        notices.drainTo(lines, SECOND / 2);
+        assertThat(notices.size()).isEqualTo(2);
+
+        notices.drainTo(lines, 10 * SECOND);
+        assertThat(notices.size()).isZero();
+    }
+
+    @Test
+    public void dropsNoticesBeyondCapacity() throws Exception {
+        notices.setCoalescingWindow(0);
+        for (int i = 0; i <= NoticeQueue.CAPACITY; i++) {
+            notices.offer("notice", i, 0, 0);
+        }
+
+        assertThat(notices.size())
+                .isEqualTo(NoticeQueue.CAPACITY);
+        assertThat(notices.getDropped())
+                .isEqualTo(1);
+
+        notices.drainAllTo(lines);
+        assertThat(notices.size())
+                .isZero();
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Fail.failBecauseExceptionWasNotThrown;
+
+public class PerLineSenderTest {
+    private static final Charset ASCII = Charset.forName("ASCII");
+
+    private final RecordingSender recorded = new RecordingSender();
+    private final PerLineSender sender = new PerLineSender(recorded);
+
+    @Test
+    public void sendsEachLine() throws Exception {
+        final byte[] lines = "xxgauge a.b 1.5 100\nincrement c 2 101\ngauge_absolute d -3 102\nxx".getBytes(ASCII);
+
+        sender.write(lines, 2, lines.length - 4);
+
+        assertThat(recorded.sent).containsExactly("GAUGE a.b 1.5 100", "INCREMENT c 2 101", "GAUGE_ABSOLUTE d -3 102");
+    }
+
+    @Test
+    public void rejectsLinesWhichAreNotMetrics() throws Exception {
+        final byte[] lines = "notice 100 0 deployed\n".getBytes(ASCII);
+
+        try {
+            sender.write(lines, 0, lines.length);
+            failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).isEqualTo("Unknown metric type: notice");
+        }
+    }
+
+    private static class RecordingSender implements InstrumentalSender {
+        private final List<String> sent = new ArrayList<String>();
+
+        @Override
+        public void connect() throws IOException {
+        }
+
+        @Override
+        public void send(MetricType type, String name, String value, long timestamp) throws IOException {
+            sent.add(type + " " + name + " " + value + " " + timestamp);
+        }
+
+        @Override
+        public void notice(String name) {
+        }
+
+        @Override
+        public void notice(String name, long duration, TimeUnit durationUnit) {
+        }
+
+        @Override
+        public void notice(String name, long start, TimeUnit startUnit, long duration, TimeUnit durationUnit) {
+        }
+
+        @Override
+        public void flush() throws IOException {
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public int getFailures() {
+            return 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ReporterStatsTest {
+
+    @Test
+    public void accumulatesReports() throws Exception {
+        final ReporterStats stats = new ReporterStats(new SilentSender());
+
+        stats.onReport(TimeUnit.MILLISECONDS.toNanos(3), 10, 200, true);
+        stats.onReport(TimeUnit.MICROSECONDS.toNanos(1500), 5, 100, false);
+        stats.onFlush(TimeUnit.MILLISECONDS.toNanos(2));
+
+        assertThat(stats.getReports()).isEqualTo(2);
+        assertThat(stats.getFailedReports()).isEqualTo(1);
+        assertThat(stats.getLinesReported()).isEqualTo(15);
+        assertThat(stats.getBytesReported()).isEqualTo(300);
+        assertThat(stats.getLastReportMillis()).isEqualTo(1.5);
+        assertThat(stats.getLastFlushMillis()).isEqualTo(2.0);
+    }
+
+    @Test
+    public void readsFiguresKeptBySender() throws Exception {
+        final ReporterStats stats = new ReporterStats(new CountingSender());
+
+        assertThat(stats.getConnectAttempts()).isEqualTo(1);
+        assertThat(stats.getConnectFailures()).isEqualTo(2);
+        assertThat(stats.getBytesWritten()).isEqualTo(3);
+        assertThat(stats.getDroppedLines()).isEqualTo(4);
+        assertThat(stats.getQueuedBytes()).isEqualTo(5);
+    }
+
+    @Test
+    public void readsZeroForSendersWhichKeepNoFigures() throws Exception {
+        final ReporterStats stats = new ReporterStats(new SilentSender());
+
+        assertThat(stats.getConnectAttempts()).isZero();
+        assertThat(stats.getBytesWritten()).isZero();
+    }
+
+    @Test
+    public void gaugesReadCurrentFigures() throws Exception {
+        final ReporterStats stats = new ReporterStats(new CountingSender());
+        final com.codahale.metrics.Gauge<Number> reports = ReporterStats.Stat.REPORTS.gauge(stats);
+
+        assertThat(reports.getValue()).isEqualTo(0L);
+        stats.onReport(1, 1, 1, true);
+        assertThat(reports.getValue()).isEqualTo(1L);
+        assertThat(ReporterStats.Stat.QUEUED_BYTES.gauge(stats).getValue()).isEqualTo(5L);
+    }
+
+    private static class SilentSender implements InstrumentalSender {
+        @Override
+        public void connect() throws IOException {
+        }
+
+        @Override
+        public void send(MetricType type, String name, String value, long timestamp) throws IOException {
+        }
+
+        @Override
+        public void notice(String name) {
+        }
+
+        @Override
+        public void notice(String name, long duration, TimeUnit durationUnit) {
+        }
+
+        @Override
+        public void notice(String name, long start, TimeUnit startUnit, long duration, TimeUnit durationUnit) {
+        }
+
+        @Override
+        public void flush() throws IOException {
+        }
+
+        @Override
+        public boolean isConnected() {
+            return false;
+        }
+
+        @Override
+        public int getFailures() {
+            return 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    private static class CountingSender extends SilentSender implements SenderStats {
+        @Override
+        public long getConnectAttempts() {
+            return 1;
+        }
+
+        @Override
+        public long getConnectFailures() {
+            return 2;
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return 3;
+        }
+
+        @Override
+        public long getDroppedLines() {
+            return 4;
+        }
+
+        @Override
+        public long getQueuedBytes() {
+            return 5;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SentValuesTest {
+    private final MetricNames names = new MetricNames(null, 1000);
+    private final SentValues sent = new SentValues(60);
+    private final SentValues.Pending pending = new SentValues.Pending();
+    private final MetricNames.Entry gauge = names.get("gauge");
+
+    @Test
+    public void sendsNewValues() throws Exception {
+        assertThat(sent.shouldSend(pending, gauge, SentValues.VALUE, 1, 1000))
+                .isTrue();
+    }
+
+    @Test
+    public void skipsUnchangedValues() throws Exception {
+        sent.shouldSend(pending, gauge, SentValues.VALUE, 1, 1000);
+        sent.commit(pending, 1000);
+
+        assertThat(sent.shouldSend(pending, gauge, SentValues.VALUE, 1, 1010))
+                .isFalse();
+        assertThat(sent.shouldSend(pending, gauge, SentValues.VALUE, 2, 1010))
+                .isTrue();
+    }
+
+    @Test
+    public void tracksEachAttributeSeparately() throws Exception {
+        sent.shouldSend(pending, gauge, MetricAttribute.MAX.ordinal(), 1, 1000);
+        sent.commit(pending, 1000);
+
+        assertThat(sent.shouldSend(pending, gauge, MetricAttribute.MIN.ordinal(), 1, 1010))
+                .isTrue();
+    }
+
+    @Test
+    public void sendsUnchangedValuesAfterTheMaxSilence() throws Exception {
+        sent.shouldSend(pending, gauge, SentValues.VALUE, 1, 1000);
+        sent.commit(pending, 1000);
+
+        assertThat(sent.shouldSend(pending, gauge, SentValues.VALUE, 1, 1059))
+                .isFalse();
+        assertThat(sent.shouldSend(pending, gauge, SentValues.VALUE, 1, 1060))
+                .isTrue();
+    }
+
+    @Test
+    public void sendsAgainIfDiscarded() throws Exception {
+        sent.shouldSend(pending, gauge, SentValues.VALUE, 1, 1000);
+        sent.commit(pending, 1000);
+        sent.shouldSend(pending, gauge, SentValues.VALUE, 2, 1010);
+        pending.clear();
+
+        assertThat(sent.shouldSend(pending, gauge, SentValues.VALUE, 2, 1020))
+                .isTrue();
+    }
+}
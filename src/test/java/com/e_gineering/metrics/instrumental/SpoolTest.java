@@ -0,0 +1,159 @@
+/**
+ * Copyright 2015 E-Gineering, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.e_gineering.metrics.instrumental;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpoolTest {
+    private static final Charset ASCII = Charset.forName("ASCII");
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeCollector collector;
+    private Instrumental instrumental;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        collector = new FakeCollector();
+        instrumental = new Instrumental("Th3Ap1K3y", collector.getAddress());
+        file = new File(folder.getRoot(), "spool");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        instrumental.close();
+        collector.close();
+    }
+
+    @Test
+    public void replaysSpooledLinesInOrder() throws Exception {
+        final Spool spool = new Spool(file, 1024, 64);
+        append(spool, "gauge a 1 100\ngauge b 2 100\n");
+        append(spool, "gauge a 3 160\n");
+
+        assertThat(spool.replay(instrumental, Long.MAX_VALUE))
+                .isEqualTo(42);
+        instrumental.flush();
+        spool.advance(42);
+
+        assertThat(collector.awaitLines(3, 5, TimeUnit.SECONDS))
+                .isTrue();
+        assertThat(collector.getLines())
+                .containsExactly("gauge a 1 100", "gauge b 2 100", "gauge a 3 160");
+        assertThat(spool.isEmpty())
+                .isTrue();
+        spool.close();
+    }
+
+    @Test
+    public void replaysWholeLinesUpToTheLimit() throws Exception {
+        final Spool spool = new Spool(file, 1024, 64);
+        append(spool, "gauge a 1 100\ngauge b 2 100\ngauge c 3 100\n");
+
+        assertThat(spool.replay(instrumental, 20))
+                .isEqualTo(14);
+        spool.advance(14);
+        assertThat(spool.size())
+                .isEqualTo(28);
+
+        assertThat(spool.replay(instrumental, 28))
+                .isEqualTo(28);
+        instrumental.flush();
+        spool.advance(28);
+
+        assertThat(collector.awaitLines(3, 5, TimeUnit.SECONDS))
+                .isTrue();
+        assertThat(collector.getLines())
+                .containsExactly("gauge a 1 100", "gauge b 2 100", "gauge c 3 100");
+        spool.close();
+    }
+
+    @Test
+    public void dropsLinesWhichDoNotFit() throws Exception {
+        final Spool spool = new Spool(file, 20, 64);
+
+        assertThat(append(spool, "gauge a 1 100\ngauge b 2 100\n"))
+                .isEqualTo(14);
+        assertThat(spool.getDroppedBytes())
+                .isEqualTo(14);
+
+        spool.advance(spool.replay(instrumental, Long.MAX_VALUE));
+        assertThat(append(spool, "gauge b 2 100\n"))
+                .isEqualTo(14);
+        spool.close();
+    }
+
+    @Test
+    public void replaysLinesSpooledBeforeReopening() throws Exception {
+        final Spool spool = new Spool(file, 1024, 64);
+        append(spool, "gauge a 1 100\ngauge b 2 100\n");
+        spool.advance(spool.replay(instrumental, 1));
+        spool.close();
+
+        final Spool reopened = new Spool(file, 1024, 64);
+        assertThat(reopened.size())
+                .isEqualTo(14);
+        reopened.advance(reopened.replay(instrumental, Long.MAX_VALUE));
+        instrumental.flush();
+
+        assertThat(collector.awaitLines(2, 5, TimeUnit.SECONDS))
+                .isTrue();
+        assertThat(collector.getLines())
+                .containsExactly("gauge a 1 100", "gauge b 2 100");
+        reopened.close();
+    }
+
+    @Test
+    public void keepsReplayedLinesUntilAdvanced() throws Exception {
+        final Spool spool = new Spool(file, 1024, 64);
+        append(spool, "gauge a 1 100\ngauge b 2 100\n");
+
+        assertThat(spool.replay(instrumental, Long.MAX_VALUE))
+                .isEqualTo(28);
+        // The flush failed, so the lines are replayed again.
+        assertThat(spool.size())
+                .isEqualTo(28);
+        assertThat(spool.replay(instrumental, Long.MAX_VALUE))
+                .isEqualTo(28);
+        spool.advance(28);
+        instrumental.flush();
+
+        assertThat(spool.isEmpty())
+                .isTrue();
+        assertThat(collector.awaitLines(4, 5, TimeUnit.SECONDS))
+                .isTrue();
+        assertThat(collector.getLines())
+                .containsExactly("gauge a 1 100", "gauge b 2 100", "gauge a 1 100", "gauge b 2 100");
+        spool.close();
+    }
+
+    private int append(Spool spool, String lines) throws Exception {
+        final byte[] bytes = lines.getBytes(ASCII);
+        return spool.append(bytes, 0, bytes.length);
+    }
+}